@@ -9,20 +9,56 @@ import org.openrdf.sail.SailConnection;
 import org.openrdf.sail.SailException;
 import org.openrdf.sail.helpers.SailWrapper;
 
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
 /**
  * A StackableSail which is constrained in reading and writing triples by a pair
  * of Dataset objects.  A connection may only read statements from the set of
  * named graphs in the readable Dataset, and may only write statements to the
  * named graphs in the writeable Dataset.
+ * <p>
+ * The readable and writable graphs may be changed while the Sail is in use.  Each change publishes a new,
+ * immutable pair of permission sets; a connection uses the pair which was current when it was opened.
  * 
  * @author Joshua Shinavier (http://fortytwo.net)
  */
 public class ConstrainedSail extends SailWrapper {
 
+    /**
+     * Strategies for restricting a query to the readable graphs
+     */
+    public enum QueryEvaluationMode {
+        /**
+         * Evaluate the query in the base store, with a Dataset of the readable graphs.
+         * Efficient, but only correct for stores which honor the Dataset.
+         */
+        GRAPH_NAMES,
+        /**
+         * Evaluate the query pattern by pattern, retrieving statements through the constrained connection.
+         * Correct for any store, but the base store cannot optimize the query.
+         */
+        DECOMPOSITION,
+        /**
+         * Evaluate the query in the base store, with a filter on the context of each statement pattern.
+         * Correct for any store, and leaves the query to the optimizer of the base store.
+         */
+        CONTEXT_FILTERS
+    }
+
     private final URI defaultWriteContext;
     private final boolean hideNonWritableContexts;
-    protected final Dataset readableSet;
-    protected final Dataset writableSet;
+    private volatile Permissions permissions;
+    private final WildcardReadPlanner readPlanner = new WildcardReadPlanner();
+    private volatile QueryEvaluationMode evaluationMode = QueryEvaluationMode.GRAPH_NAMES;
+    private volatile FanOut fanOut = null;
+    // replaced executors which are still in use by open connections
+    private final Set<FanOut> retiredFanOuts = Collections.newSetFromMap(new ConcurrentHashMap<FanOut, Boolean>());
+    private volatile ContextSizes contextSizes = null;
 
     /**
      * Constructor.
@@ -45,8 +81,8 @@ public class ConstrainedSail extends SailWrapper {
                            final URI defaultWriteContext,
                            final boolean hideNonWritableContexts) {
         super(baseSail);
-        this.readableSet = readableSet;
-        this.writableSet = writableSet;
+        this.permissions = new Permissions(
+                PermissionSet.of(readableSet.getDefaultGraphs()), PermissionSet.of(writableSet.getDefaultGraphs()));
         this.defaultWriteContext = defaultWriteContext;
         this.hideNonWritableContexts = hideNonWritableContexts;
     }
@@ -57,24 +93,173 @@ public class ConstrainedSail extends SailWrapper {
         this(baseSail, new DatasetImpl(), new DatasetImpl(), defaultWriteContext, hideNonWritableContexts);
     }
 
-    public void addReadableGraph(final URI g) {
+    public synchronized void addReadableGraph(final URI g) {
         //System.out.println("adding readable analysis: " + g);
-        readableSet.getDefaultGraphs().add(g);
+        permissions = new Permissions(permissions.readable.with(g), permissions.writable);
     }
 
-    public void addWritableGraph(final URI g) {
+    public synchronized void addWritableGraph(final URI g) {
         //System.out.println("adding writable analysis: " + g);
-        writableSet.getDefaultGraphs().add(g);
+        permissions = new Permissions(permissions.readable, permissions.writable.with(g));
+    }
+
+    public synchronized void removeReadableGraph(final URI g) {
+        permissions = new Permissions(permissions.readable.without(g), permissions.writable);
+    }
+
+    public synchronized void removeWritableGraph(final URI g) {
+        permissions = new Permissions(permissions.readable, permissions.writable.without(g));
+    }
+
+    /**
+     * Replaces both the readable and the writable graphs at once
+     *
+     * @param readable the graphs from which connections opened from now on may read
+     * @param writable the graphs to which connections opened from now on may write
+     */
+    public synchronized void setPermissions(final PermissionSet readable,
+                                            final PermissionSet writable) {
+        permissions = new Permissions(readable, writable);
+    }
+
+    /**
+     * @return the graphs from which new connections may read
+     */
+    public PermissionSet getReadableGraphs() {
+        return permissions.readable;
+    }
+
+    /**
+     * @return the graphs to which new connections may write
+     */
+    public PermissionSet getWritableGraphs() {
+        return permissions.writable;
     }
 
     public SailConnection getConnection() throws SailException {
         // For now, use reasonable defaults for namespace and null context access.
-        return new ConstrainedSailConnection(getBaseSail().getConnection(),
-                getValueFactory(),
-                readableSet,
-                writableSet,
-                defaultWriteContext,
-                true, true, hideNonWritableContexts);
+        Permissions p = permissions;
+        final FanOut f = acquireFanOut();
+        ConstrainedSailConnection c;
+        boolean opened = false;
+        try {
+            c = new ConstrainedSailConnection(getBaseSail().getConnection(),
+                    getValueFactory(),
+                    p.readable,
+                    p.writable,
+                    defaultWriteContext,
+                    true, true, hideNonWritableContexts,
+                    readPlanner) {
+                @Override
+                public void close() throws SailException {
+                    boolean open = isOpen();
+                    try {
+                        super.close();
+                    } finally {
+                        if (open && null != f) {
+                            f.release();
+                        }
+                    }
+                }
+            };
+            opened = true;
+        } finally {
+            if (!opened && null != f) {
+                f.release();
+            }
+        }
+
+        c.setEvaluationMode(evaluationMode);
+        if (null != f) {
+            c.setFanOutExecutor(f.executor);
+            c.setFanOutBufferSize(f.bufferSize);
+        }
+        if (null != contextSizes) {
+            c.setContextSizes(contextSizes);
+        }
+
+        return c;
+    }
+
+    /**
+     * Enables the concurrent retrieval of statements from the contexts of a multi-context read,
+     * for base stores (e.g. remote or disk-bound ones) whose connections support concurrent reads.
+     * Applies to connections opened from now on.  If parallel fan-out is already enabled, the threads of the previous
+     * executor finish the reads of the connections which use them, and are stopped once those connections are closed.
+     *
+     * @param threads    the number of threads with which to retrieve statements, shared by all connections
+     * @param bufferSize the maximum number of statements retrieved by a read but not yet consumed
+     */
+    public synchronized void enableParallelFanOut(final int threads,
+                                                  final int bufferSize) {
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(r, "constrained-sail-fan-out");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        FanOut previous = fanOut;
+        fanOut = new FanOut(executor, bufferSize);
+        if (null != previous) {
+            retiredFanOuts.add(previous);
+            previous.retire();
+        }
+    }
+
+    // Note: the executor may be replaced between reading it and acquiring it, in which case the new one is used
+    private FanOut acquireFanOut() {
+        FanOut f = fanOut;
+        while (null != f && !f.acquire()) {
+            f = fanOut;
+        }
+
+        return f;
+    }
+
+    /**
+     * Enables the answering of size requests from in-memory statement counts, kept up to date by the changes
+     * which connections commit, rather than by counting the statements of each readable context.
+     * The size of a wildcard context then becomes the number of statements in all readable graphs.
+     * The counts also serve the read planner as estimates of the size of each context.
+     * Changes made to the base Sail other than through this Sail are only reflected once the counts are reconciled.
+     * <p>
+     * Counting is not free for writers: each statement added to or removed from a context which is counted costs
+     * a lookup of that statement in the base Sail, so as to tell whether the size of the context changes.
+     * For a store without an index on complete statements, or for large loads into counted contexts, this may
+     * outweigh the savings in size requests.  Changes to contexts which are not yet counted cost nothing,
+     * as those contexts are counted again when their size is next requested.
+     *
+     * @return the statement counts, e.g. for setting their maximum age
+     */
+    public synchronized ContextSizes enableSizeCounting() {
+        if (null == contextSizes) {
+            contextSizes = new ContextSizes();
+            readPlanner.setContextSizes(contextSizes);
+        }
+
+        return contextSizes;
+    }
+
+    public QueryEvaluationMode getEvaluationMode() {
+        return evaluationMode;
+    }
+
+    /**
+     * @param evaluationMode the strategy with which connections opened from now on restrict queries
+     *                       to the readable graphs
+     */
+    public void setEvaluationMode(final QueryEvaluationMode evaluationMode) {
+        this.evaluationMode = evaluationMode;
+    }
+
+    /**
+     * @return the planner which chooses how connections retrieve statements from a wildcard context,
+     * e.g. for tuning its cost model
+     */
+    public WildcardReadPlanner getReadPlanner() {
+        return readPlanner;
     }
 
     public URI getDefaultWriteContext() {
@@ -91,9 +276,76 @@ public class ConstrainedSail extends SailWrapper {
      */
     public boolean isWritable() throws SailException {
         return getBaseSail().isWritable()
-                && (writableSet.getNamedGraphs().size() > 0);  // TODO: OR the default analysis is writable
+                && !permissions.writable.isEmpty();
+    }
+
+    /**
+     * Stops the threads of parallel fan-out, if enabled, including those of replaced executors.
+     * Parallel reads which are still open then fail, rather than waiting for statements which will never arrive.
+     */
+    public synchronized void shutDown() throws SailException {
+        FanOut f = fanOut;
+        fanOut = null;
+        if (null != f) {
+            f.retire();
+            f.executor.shutdownNow();
+        }
+
+        for (FanOut r : retiredFanOuts) {
+            r.executor.shutdownNow();
+        }
+        retiredFanOuts.clear();
     }
 
-    public void shutDown() throws SailException {
+    // an executor for parallel fan-out, with its buffer size and the number of open connections which use it
+    private class FanOut {
+        private final ExecutorService executor;
+        private final int bufferSize;
+        private int connections = 0;
+        private boolean retired = false;
+
+        private FanOut(final ExecutorService executor,
+                       final int bufferSize) {
+            this.executor = executor;
+            this.bufferSize = bufferSize;
+        }
+
+        private synchronized boolean acquire() {
+            if (retired) {
+                return false;
+            }
+
+            connections++;
+            return true;
+        }
+
+        private synchronized void release() {
+            connections--;
+            drainIfUnused();
+        }
+
+        private synchronized void retire() {
+            retired = true;
+            drainIfUnused();
+        }
+
+        private void drainIfUnused() {
+            if (retired && 0 == connections) {
+                executor.shutdown();
+                retiredFanOuts.remove(this);
+            }
+        }
+    }
+
+    // the readable and writable graphs, published together
+    private static class Permissions {
+        private final PermissionSet readable;
+        private final PermissionSet writable;
+
+        private Permissions(final PermissionSet readable,
+                            final PermissionSet writable) {
+            this.readable = readable;
+            this.writable = writable;
+        }
     }
 }
@@ -14,6 +14,7 @@ import org.openrdf.model.ValueFactory;
 import org.openrdf.query.BindingSet;
 import org.openrdf.query.Dataset;
 import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.QueryRoot;
 import org.openrdf.query.algebra.TupleExpr;
 import org.openrdf.query.algebra.evaluation.TripleSource;
 import org.openrdf.query.algebra.evaluation.impl.EvaluationStrategyImpl;
@@ -22,8 +23,14 @@ import org.openrdf.sail.SailConnection;
 import org.openrdf.sail.SailException;
 import org.openrdf.sail.helpers.SailConnectionWrapper;
 
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
 /**
  * @author Joshua Shinavier (http://fortytwo.net)
@@ -39,6 +46,8 @@ public class ConstrainedSailConnection extends SailConnectionWrapper {
     // remove only the ones which are in writable named graphs.
     private static final boolean WILDCARD_REMOVE_FROM_ALL_CONTEXTS = true;
 
+    private static final int DEFAULT_FAN_OUT_BUFFER_SIZE = 1000;
+
     private boolean namespacesAreReadable;
     private boolean namespacesAreWritable;
     private boolean hideNonWritableContexts;
@@ -46,16 +55,23 @@ public class ConstrainedSailConnection extends SailConnectionWrapper {
     private ValueFactory valueFactory;
 
     // For now, it is assumed that no requestor has permission to see the total
-    // number of statements in all contexts.
+    // number of statements in all contexts.  With size counting enabled, the size
+    // of a wildcard context is instead the size of all readable contexts.
     private boolean allowWildcardSize = false;
 
     // For now, it is assumed that no requestor has permission to clear
     // statements from all contexts.
     private boolean allowWildcardClear = false;
 
-    private Dataset readableSet;
-    private Dataset writableSet;
+    private final PermissionSet readableSet;
+    private final PermissionSet writableSet;
     private Resource defaultWriteContext;
+    private WildcardReadPlanner readPlanner;
+    private ExecutorService fanOutExecutor = null;
+    private ConstrainedSail.QueryEvaluationMode evaluationMode = ConstrainedSail.QueryEvaluationMode.GRAPH_NAMES;
+    private int fanOutBufferSize = DEFAULT_FAN_OUT_BUFFER_SIZE;
+    private ContextSizes contextSizes = null;
+    private ContextSizes.Changes sizeChanges = null;
 
     /**
      * @param baseSailConnection      a subordinate SailConnection.  When this SailConnection is
@@ -85,7 +101,37 @@ public class ConstrainedSailConnection extends SailConnectionWrapper {
                                      final boolean namespacesAreReadable,
                                      final boolean namespacesAreWritable,
                                      final boolean hideNonWritableContexts) throws SailException {
+        this(baseSailConnection, valueFactory,
+                PermissionSet.of(readableSet.getDefaultGraphs()), PermissionSet.of(writableSet.getDefaultGraphs()),
+                defaultWriteContext, namespacesAreReadable, namespacesAreWritable, hideNonWritableContexts, null);
+    }
+
+    /**
+     * @param baseSailConnection      a subordinate SailConnection
+     * @param valueFactory            ValueFactory from wrapped sail.
+     * @param readableSet             all contexts from which the requestor is allowed to read
+     *                                (possibly including the null context)
+     * @param writableSet             all contexts to or from which the requestor is allowed to add or delete
+     *                                statements
+     * @param defaultWriteContext     the default context to or from which to add or remove statements
+     * @param namespacesAreReadable   whether the requestor can see namespace definitions
+     * @param namespacesAreWritable   whether the requestor can modify namespace definitions
+     * @param hideNonWritableContexts removes context information from non-writable graphs.
+     * @param readPlanner             chooses how to retrieve statements from a wildcard context.
+     *                                If null, statements are always retrieved from all contexts and then filtered.
+     * @throws SailException If there is an error communicating with the base SAIL
+     */
+    public ConstrainedSailConnection(final SailConnection baseSailConnection,
+                                     final ValueFactory valueFactory,
+                                     final PermissionSet readableSet,
+                                     final PermissionSet writableSet,
+                                     final Resource defaultWriteContext,
+                                     final boolean namespacesAreReadable,
+                                     final boolean namespacesAreWritable,
+                                     final boolean hideNonWritableContexts,
+                                     final WildcardReadPlanner readPlanner) throws SailException {
         super(baseSailConnection);
+        this.readPlanner = readPlanner;
         this.valueFactory = valueFactory;
         this.readableSet = readableSet;
         this.writableSet = writableSet;
@@ -100,6 +146,43 @@ public class ConstrainedSailConnection extends SailConnectionWrapper {
         }
     }
 
+    /**
+     * Enables or disables the concurrent retrieval of statements from several contexts.
+     * This is worthwhile for remote or disk-bound stores whose connections support concurrent reads.
+     *
+     * @param fanOutExecutor the executor in which to retrieve the statements of each context.
+     *                       If null (the default), the statements of each context are retrieved in turn.
+     */
+    public void setFanOutExecutor(final ExecutorService fanOutExecutor) {
+        this.fanOutExecutor = fanOutExecutor;
+    }
+
+    /**
+     * @param evaluationMode the strategy with which to restrict queries to the readable contexts
+     */
+    public void setEvaluationMode(final ConstrainedSail.QueryEvaluationMode evaluationMode) {
+        this.evaluationMode = evaluationMode;
+    }
+
+    /**
+     * @param fanOutBufferSize the maximum number of statements retrieved concurrently but not yet consumed
+     */
+    public void setFanOutBufferSize(final int fanOutBufferSize) {
+        this.fanOutBufferSize = fanOutBufferSize;
+    }
+
+    /**
+     * Enables or disables the answering of size requests from in-memory statement counts.
+     * The counts are kept up to date by the changes which this connection commits.
+     *
+     * @param contextSizes the statement counts, shared by all connections to the same base store.
+     *                     If null (the default), each context is counted in the base store.
+     */
+    public void setContextSizes(final ContextSizes contextSizes) {
+        this.contextSizes = contextSizes;
+        this.sizeChanges = null == contextSizes ? null : contextSizes.new Changes();
+    }
+
     /**
      * Adds a statement to each of the given contexts for which the requestor
      * has write access.  If no context is given, statements will be written to
@@ -112,6 +195,7 @@ public class ConstrainedSailConnection extends SailConnectionWrapper {
                              final Resource... contexts) throws SailException {
         if (0 == contexts.length) {
             if (writePermitted(defaultWriteContext)) {
+                recordAddition(subj, pred, obj, defaultWriteContext);
                 if (null == defaultWriteContext) {
 //System.out.println("wildcard write to null context");
                     super.addStatement(subj, pred, obj);
@@ -123,12 +207,63 @@ public class ConstrainedSailConnection extends SailConnectionWrapper {
         } else {
             for (Resource context : contexts) {
                 if (writePermitted(context)) {
+                    recordAddition(subj, pred, obj, context);
                     super.addStatement(subj, pred, obj, context);
                 }
             }
         }
     }
 
+    // Note: a statement which is already present in the context leaves its size unchanged,
+    // so an addition to a counted context costs a lookup in the base store
+    private void recordAddition(final Resource subj,
+                                final URI pred,
+                                final Value obj,
+                                final Resource context) throws SailException {
+        if (null != sizeChanges && sizeChanges.isTracked(context) && !hasMatch(subj, pred, obj, context)) {
+            sizeChanges.added(context);
+        }
+    }
+
+    private void recordRemoval(final Resource subj,
+                               final URI pred,
+                               final Value obj,
+                               final Resource context) throws SailException {
+        if (null != sizeChanges) {
+            if (null == subj || null == pred || null == obj) {
+                sizeChanges.removedUnknown(context);
+            } else if (sizeChanges.isTracked(context) && hasMatch(subj, pred, obj, context)) {
+                sizeChanges.removed(context);
+            }
+        }
+    }
+
+    @Override
+    public void commit() throws SailException {
+        if (null == sizeChanges) {
+            super.commit();
+            return;
+        }
+
+        boolean committed = false;
+        sizeChanges.beginCommit();
+        try {
+            super.commit();
+            committed = true;
+        } finally {
+            sizeChanges.endCommit(committed);
+        }
+    }
+
+    @Override
+    public void rollback() throws SailException {
+        if (null != sizeChanges) {
+            sizeChanges.reset();
+        }
+
+        super.rollback();
+    }
+
     /**
      * Clears the statements in all of the given contexts for which the
      * requestor has write access.  If no context is given, the default write
@@ -139,14 +274,23 @@ public class ConstrainedSailConnection extends SailConnectionWrapper {
         if (0 == contexts.length) {
             if (null != defaultWriteContext) {
                 if (deletePermitted(defaultWriteContext)) {
+                    if (null != sizeChanges) {
+                        sizeChanges.cleared(defaultWriteContext);
+                    }
                     super.clear(defaultWriteContext);
                 }
             } else if (allowWildcardClear) {
                 super.clear();
+                if (null != contextSizes) {
+                    contextSizes.reconcile();
+                }
             }
         } else {
             for (Resource context : contexts) {
                 if (writePermitted(context)) {
+                    if (null != sizeChanges) {
+                        sizeChanges.cleared(context);
+                    }
                     super.clear(context);
                 }
             }
@@ -166,8 +310,58 @@ public class ConstrainedSailConnection extends SailConnectionWrapper {
             final Dataset dataset,
             final BindingSet bindings,
             final boolean includeInferred) throws SailException {
-        return evaluateByGraphNames(tupleExpr, dataset, bindings, includeInferred);
-        //return evaluateByDecomposition(tupleExpr, dataset, bindings, includeInferred);
+        switch (evaluationMode) {
+            case GRAPH_NAMES:
+                return evaluateByGraphNames(tupleExpr, dataset, bindings, includeInferred);
+            case DECOMPOSITION:
+                return evaluateByDecomposition(tupleExpr, dataset, bindings, includeInferred);
+            case CONTEXT_FILTERS:
+                return evaluateWithContextFilters(tupleExpr, dataset, bindings, includeInferred);
+            default:
+                throw new IllegalStateException("no such evaluation mode: " + evaluationMode);
+        }
+    }
+
+    /**
+     * Evaluates a query in the base store after restricting each of its statement patterns to the readable
+     * contexts (or to those of the given dataset which are readable) with a filter on its context variable.
+     * This does not depend on the base store honoring a Dataset, and unlike evaluation by decomposition,
+     * it leaves the query to be evaluated, and optimized, by the base store.
+     */
+    public CloseableIteration<? extends BindingSet, QueryEvaluationException> evaluateWithContextFilters(
+            final TupleExpr tupleExpr,
+            final Dataset dataset,
+            final BindingSet bindings,
+            final boolean includeInferred) throws SailException {
+        Collection<Resource> defaultContexts = readableSet.getContexts();
+        Collection<Resource> namedContexts = new HashSet<Resource>(defaultContexts);
+        namedContexts.remove(null);
+
+        // graphs of the dataset which are not readable are ignored.  An empty set of graphs is no restriction.
+        if (null != dataset) {
+            if (!dataset.getDefaultGraphs().isEmpty()) {
+                defaultContexts = readableSubset(dataset.getDefaultGraphs());
+            }
+            if (!dataset.getNamedGraphs().isEmpty()) {
+                namedContexts = readableSubset(dataset.getNamedGraphs());
+            }
+        }
+
+        TupleExpr restricted = new QueryRoot(tupleExpr.clone());
+        new ContextFilterInjector(defaultContexts, namedContexts).inject(restricted);
+
+        return super.evaluate(restricted, null, bindings, includeInferred);
+    }
+
+    private Collection<Resource> readableSubset(final Collection<URI> graphs) throws SailException {
+        Collection<Resource> readable = new HashSet<Resource>();
+        for (URI g : graphs) {
+            if (readPermitted(g)) {
+                readable.add(g);
+            }
+        }
+
+        return readable;
     }
 
     // TODO: more thorough testing involving both "FROM" and "FROM NAMED" clauses in SPARQL queries
@@ -179,7 +373,7 @@ public class ConstrainedSailConnection extends SailConnectionWrapper {
         Dataset d;
 
         if (null == dataset) {
-            d = this.readableSet;
+            d = this.readableSet.asDataset();
         } else {
             DatasetImpl di = new DatasetImpl();
             d = di;
@@ -200,7 +394,7 @@ public class ConstrainedSailConnection extends SailConnectionWrapper {
         return super.evaluate(tupleExpr, d, bindings, includeInferred);
     }
 
-    private CloseableIteration<? extends BindingSet, QueryEvaluationException> evaluateByDecomposition(
+    public CloseableIteration<? extends BindingSet, QueryEvaluationException> evaluateByDecomposition(
             final TupleExpr tupleExpr,
             final Dataset dataset,
             final BindingSet bindings,
@@ -248,31 +442,57 @@ public class ConstrainedSailConnection extends SailConnectionWrapper {
             final Value obj,
             final boolean includeInferred,
             final Resource... contexts) throws SailException {
-        // Get statements from a wildcard context --> filter after retrieving
-        // statements.
+        // Get statements from a wildcard context --> either filter after retrieving
+        // statements from all contexts, or retrieve statements only from the
+        // readable contexts, whichever the planner expects to be cheaper.
         if (0 == contexts.length) {
-            return new ReadableStatementIteration(
-                    super.getStatements(subj, pred, obj, includeInferred));
+            Collection<Resource> readable = readableSet.getContexts();
+            if (null != readPlanner && readPlanner.isFanOutPreferred(readable, getWrappedConnection())) {
+                // the statements are known to be readable, but may still need their contexts hidden
+                return new ReadableStatementIteration(
+                        getStatementsInContexts(subj, pred, obj, includeInferred, readable));
+            } else {
+                return new ReadableStatementIteration(
+                        super.getStatements(subj, pred, obj, includeInferred));
+            }
         }
 
         // Get statements in specific contexts --> filter before retrieving
         // statements.  The statements retrieved are assumed to be in one of the
         // requested contexts.
         else {
-            Collection<CloseableIteration<? extends Statement, SailException>>
-                    iterations = new LinkedList<CloseableIteration<? extends Statement, SailException>>();
-
+            List<Resource> permitted = new LinkedList<Resource>();
             for (Resource context : contexts) {
                 if (readPermitted(context)) {
-                    iterations.add(super.getStatements(
-                            subj, pred, obj, INCLUDE_INFERRED_STATEMENTS, context));
+                    permitted.add(context);
                 }
             }
 
-            return new CompoundCloseableIteration(iterations);
+            return getStatementsInContexts(subj, pred, obj, INCLUDE_INFERRED_STATEMENTS, permitted);
         }
     }
 
+    private CloseableIteration<? extends Statement, SailException> getStatementsInContexts(
+            final Resource subj,
+            final URI pred,
+            final Value obj,
+            final boolean includeInferred,
+            final Collection<? extends Resource> contexts) throws SailException {
+        if (null != fanOutExecutor && contexts.size() > 1) {
+            return new ParallelStatementIteration(getWrappedConnection(),
+                    subj, pred, obj, includeInferred, contexts, fanOutExecutor, fanOutBufferSize);
+        }
+
+        Collection<CloseableIteration<? extends Statement, SailException>>
+                iterations = new LinkedList<CloseableIteration<? extends Statement, SailException>>();
+
+        for (Resource context : contexts) {
+            iterations.add(super.getStatements(subj, pred, obj, includeInferred, context));
+        }
+
+        return new CompoundCloseableIteration(iterations);
+    }
+
     @Override
     public void removeNamespace(final String prefix) throws SailException {
         if (namespacesAreWritable) {
@@ -290,22 +510,12 @@ public class ConstrainedSailConnection extends SailConnectionWrapper {
                                  final Resource... contexts) throws SailException {
         if (0 == contexts.length) {
             if (WILDCARD_REMOVE_FROM_ALL_CONTEXTS) {
-                Collection<Resource> toRemove = new LinkedList<Resource>();
-                boolean includeInferred = false;
-                CloseableIteration<? extends Statement, SailException> iter
-                        = super.getStatements(subj, pred, obj, includeInferred);
-                try {
-                    while (iter.hasNext()) {
-                        Resource context = iter.next().getContext();
-                        if (null != context && writePermitted(context)) {
-                            toRemove.add(context);
-                        }
-                    }
-                } finally {
-                    iter.close();
-                }
+                Collection<Resource> toRemove = findWritableContextsWithMatches(subj, pred, obj);
 
                 if (0 < toRemove.size()) {
+                    for (Resource context : toRemove) {
+                        recordRemoval(subj, pred, obj, context);
+                    }
                     Resource[] ctxArray = new Resource[toRemove.size()];
                     toRemove.toArray(ctxArray);
                     super.removeStatements(subj, pred, obj, ctxArray);
@@ -313,6 +523,7 @@ public class ConstrainedSailConnection extends SailConnectionWrapper {
             } else {
                 if (null != defaultWriteContext) {
                     if (deletePermitted(defaultWriteContext)) {
+                        recordRemoval(subj, pred, obj, defaultWriteContext);
                         super.removeStatements(subj, pred, obj, defaultWriteContext);
                     }
                 }
@@ -322,12 +533,63 @@ public class ConstrainedSailConnection extends SailConnectionWrapper {
         } else {
             for (Resource context : contexts) {
                 if (deletePermitted(context)) {
+                    recordRemoval(subj, pred, obj, context);
                     super.removeStatements(subj, pred, obj, context);
                 }
             }
         }
     }
 
+    // Finds each writable named graph which contains at least one matching statement, either by probing each
+    // writable graph or by scanning the matching statements of all graphs, whichever the planner expects to be
+    // cheaper.  Each graph is found only once, and a scan stops as soon as all writable graphs have been found.
+    private Collection<Resource> findWritableContextsWithMatches(final Resource subj,
+                                                                 final URI pred,
+                                                                 final Value obj) throws SailException {
+        Set<Resource> found = new LinkedHashSet<Resource>();
+        Collection<Resource> writable = writableSet.getContexts();
+        int writableNamedGraphs = writable.contains(null) ? writable.size() - 1 : writable.size();
+        if (0 == writableNamedGraphs) {
+            return found;
+        }
+
+        if (null != readPlanner && readPlanner.isFanOutPreferred(writable, getWrappedConnection())) {
+            for (Resource context : writable) {
+                if (null != context && hasMatch(subj, pred, obj, context)) {
+                    found.add(context);
+                }
+            }
+        } else {
+            CloseableIteration<? extends Statement, SailException> iter
+                    = super.getStatements(subj, pred, obj, false);
+            try {
+                while (iter.hasNext() && found.size() < writableNamedGraphs) {
+                    Resource context = iter.next().getContext();
+                    if (null != context && writePermitted(context)) {
+                        found.add(context);
+                    }
+                }
+            } finally {
+                iter.close();
+            }
+        }
+
+        return found;
+    }
+
+    private boolean hasMatch(final Resource subj,
+                             final URI pred,
+                             final Value obj,
+                             final Resource context) throws SailException {
+        CloseableIteration<? extends Statement, SailException> iter
+                = super.getStatements(subj, pred, obj, false, context);
+        try {
+            return iter.hasNext();
+        } finally {
+            iter.close();
+        }
+    }
+
     @Override
     public void setNamespace(final String prefix, final String name) throws SailException {
         if (namespacesAreWritable) {
@@ -337,9 +599,29 @@ public class ConstrainedSailConnection extends SailConnectionWrapper {
 
     /**
      * Returns the number of readable statements in the given contexts.
+     * If size counting is enabled, the size of a wildcard context is the number of statements in all readable
+     * contexts, and the size of each context is taken from the in-memory counts
+     * unless this connection has uncommitted changes to it.
      */
     @Override
     public long size(final Resource... contexts) throws SailException {
+        if (null != contextSizes) {
+            Collection<Resource> counted = 0 == contexts.length
+                    ? readableSet.getContexts()
+                    : Arrays.asList(contexts);
+
+            long count = 0;
+            for (Resource context : counted) {
+                if (readPermitted(context)) {
+                    count += sizeChanges.isChanged(context)
+                            ? super.size(context)
+                            : contextSizes.size(context, getWrappedConnection());
+                }
+            }
+
+            return count;
+        }
+
         if (0 == contexts.length) {
             return (allowWildcardSize)
                     ? super.size()
@@ -358,11 +640,11 @@ public class ConstrainedSailConnection extends SailConnectionWrapper {
     }
 
     public boolean readPermitted(final Resource context) throws SailException {
-        return readableSet.getDefaultGraphs().contains(context);
+        return readableSet.contains(context);
     }
 
     public boolean writePermitted(final Resource context) throws SailException {
-        return writableSet.getDefaultGraphs().contains(context);
+        return writableSet.contains(context);
     }
 
     public boolean deletePermitted(final Resource context) throws SailException {
@@ -0,0 +1,148 @@
+
+package net.fortytwo.sesametools.constrained;
+
+import org.openrdf.model.Resource;
+import org.openrdf.model.Value;
+import org.openrdf.query.algebra.Bound;
+import org.openrdf.query.algebra.EmptySet;
+import org.openrdf.query.algebra.Filter;
+import org.openrdf.query.algebra.ListMemberOperator;
+import org.openrdf.query.algebra.Not;
+import org.openrdf.query.algebra.Or;
+import org.openrdf.query.algebra.StatementPattern;
+import org.openrdf.query.algebra.TupleExpr;
+import org.openrdf.query.algebra.Union;
+import org.openrdf.query.algebra.ValueConstant;
+import org.openrdf.query.algebra.ValueExpr;
+import org.openrdf.query.algebra.Var;
+import org.openrdf.query.algebra.helpers.QueryModelVisitorBase;
+
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Restricts each statement pattern of a query to a set of permitted contexts, by means of a filter on the
+ * pattern's context variable.
+ * A pattern without a context variable is given an anonymous one, so that the filter can refer to it.
+ * A pattern whose context is a constant is kept if the context is permitted, and otherwise replaced by an empty set.
+ * A pattern in the default graph, when only a few named graphs are permitted, is instead replaced by a union of
+ * copies of the pattern, one for each graph, so that each copy is a lookup in a single context.
+ * <p>
+ * The restrictions are part of the query itself, so they hold for any store, whether or not it honors a Dataset,
+ * and a store which pushes filters into its statement lookups evaluates them where the statements are found.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class ContextFilterInjector {
+    private static final String CONTEXT_VAR_PREFIX = "-constrained-context-";
+
+    // the greatest number of contexts for which a pattern is expanded into a union
+    private static final int MAX_EXPANDED_CONTEXTS = 64;
+
+    private final Collection<? extends Resource> defaultContexts;
+    private final Collection<? extends Resource> namedContexts;
+
+    /**
+     * @param defaultContexts the contexts permitted to patterns in the default graph
+     *                        (possibly including the null context)
+     * @param namedContexts   the contexts permitted to patterns in named graphs, i.e. in GRAPH clauses
+     */
+    public ContextFilterInjector(final Collection<? extends Resource> defaultContexts,
+                                 final Collection<? extends Resource> namedContexts) {
+        this.defaultContexts = defaultContexts;
+        this.namedContexts = namedContexts;
+    }
+
+    /**
+     * Restricts the statement patterns of a query
+     *
+     * @param tupleExpr the query.  It is modified in place.
+     */
+    public void inject(final TupleExpr tupleExpr) {
+        final List<StatementPattern> patterns = new LinkedList<StatementPattern>();
+        tupleExpr.visit(new QueryModelVisitorBase<RuntimeException>() {
+            @Override
+            public void meet(final StatementPattern node) {
+                patterns.add(node);
+            }
+        });
+
+        int i = 0;
+        for (StatementPattern p : patterns) {
+            restrict(p, i++);
+        }
+    }
+
+    private void restrict(final StatementPattern pattern,
+                          final int index) {
+        Collection<? extends Resource> permitted = StatementPattern.Scope.NAMED_CONTEXTS == pattern.getScope()
+                ? namedContexts
+                : defaultContexts;
+
+        Var contextVar = pattern.getContextVar();
+        if (null != contextVar && contextVar.hasValue()) {
+            Value context = contextVar.getValue();
+            if (!(context instanceof Resource) || !permitted.contains(context)) {
+                pattern.replaceWith(new EmptySet());
+            }
+            return;
+        }
+
+        boolean nullPermitted = permitted.contains(null);
+        int named = nullPermitted ? permitted.size() - 1 : permitted.size();
+        if (0 == named && !nullPermitted) {
+            pattern.replaceWith(new EmptySet());
+            return;
+        }
+
+        if (null == contextVar) {
+            // the context is not visible to the rest of the query, so it may be fixed in each branch of a union
+            if (!nullPermitted && named <= MAX_EXPANDED_CONTEXTS) {
+                pattern.replaceWith(expand(pattern, permitted, index));
+                return;
+            }
+
+            contextVar = new Var(CONTEXT_VAR_PREFIX + index);
+            contextVar.setAnonymous(true);
+            pattern.setContextVar(contextVar);
+        }
+
+        ValueExpr condition;
+        if (0 == named) {
+            condition = new Not(new Bound(contextVar.clone()));
+        } else {
+            ListMemberOperator in = new ListMemberOperator();
+            in.addArgument(contextVar.clone());
+            for (Resource r : permitted) {
+                if (null != r) {
+                    in.addArgument(new ValueConstant(r));
+                }
+            }
+
+            // statements in the null context leave the context variable unbound
+            condition = nullPermitted ? new Or(new Not(new Bound(contextVar.clone())), in) : in;
+        }
+
+        Filter filter = new Filter();
+        pattern.replaceWith(filter);
+        filter.setArg(pattern);
+        filter.setCondition(condition);
+    }
+
+    private TupleExpr expand(final StatementPattern pattern,
+                             final Collection<? extends Resource> contexts,
+                             final int index) {
+        TupleExpr union = null;
+        for (Resource r : contexts) {
+            StatementPattern branch = pattern.clone();
+            Var contextVar = new Var(CONTEXT_VAR_PREFIX + index, r);
+            contextVar.setAnonymous(true);
+            branch.setContextVar(contextVar);
+
+            union = null == union ? branch : new Union(union, branch);
+        }
+
+        return union;
+    }
+}
@@ -0,0 +1,290 @@
+
+package net.fortytwo.sesametools.constrained;
+
+import org.openrdf.model.Resource;
+import org.openrdf.sail.SailConnection;
+import org.openrdf.sail.SailException;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * In-memory statement counts of the contexts of a store, so that the size of a set of contexts is found
+ * without counting the statements of each context.
+ * <p>
+ * A context is counted in the base store when its size is first requested.  From then on, the count is kept up to
+ * date by the changes which constrained connections commit: statements added and removed, and contexts cleared.
+ * A change whose effect on the count is unknown (e.g. the removal of a pattern with wildcards) causes the context to
+ * be counted again when its size is next requested.
+ * Counts are also reconciled with the base store once they reach a maximum age,
+ * which bounds the error due to changes made other than through constrained connections.
+ * <p>
+ * A count is only kept if no commit affecting its context began or ended while it was being taken, and a commit
+ * which overlaps another commit to the same context invalidates the count rather than applying its changes to it.
+ * This keeps the counts exact when contexts are counted, and changes committed, concurrently.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class ContextSizes {
+    private static final long DEFAULT_MAX_AGE = 5 * 60 * 1000;
+
+    // stands in for the null context, which cannot be a key of a ConcurrentHashMap
+    private static final Object NULL_CONTEXT = new Object();
+
+    // read without locking, but only written while holding this object's lock
+    private final ConcurrentMap<Object, Count> counts = new ConcurrentHashMap<Object, Count>();
+
+    // the number of commits in progress to each context
+    private final Map<Object, Integer> committing = new HashMap<Object, Integer>();
+    // the logical time at which a commit to each context last began or ended
+    private final Map<Object, Long> changed = new HashMap<Object, Long>();
+    private long clock = 0;
+    private long reconciled = 0;
+
+    private volatile long maxAge = DEFAULT_MAX_AGE;
+
+    /**
+     * @param context        a context, or null for the null context
+     * @param baseConnection a connection to the base store, with which the context is counted if necessary
+     * @return the number of statements in the context
+     * @throws SailException if the context cannot be counted
+     */
+    public long size(final Resource context,
+                     final SailConnection baseConnection) throws SailException {
+        Object key = keyOf(context);
+        long now = System.currentTimeMillis();
+
+        Count c = counts.get(key);
+        if (null != c && now - c.time <= maxAge) {
+            return c.size;
+        }
+
+        long start;
+        synchronized (this) {
+            start = clock;
+        }
+
+        long size = baseConnection.size(context);
+
+        // a count which may have missed, or already includes, a concurrently committed change is not kept
+        synchronized (this) {
+            Long t = changed.get(key);
+            if (reconciled <= start && !committing.containsKey(key) && (null == t || t <= start)) {
+                counts.put(key, new Count(size, now));
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * @param context a context, or null for the null context
+     * @return the last count of the context, however old, or -1 if it is not counted.
+     * The base store is not consulted.
+     */
+    public long getCount(final Resource context) {
+        Count c = counts.get(keyOf(context));
+        return null == c ? -1 : c.size;
+    }
+
+    /**
+     * @param context a context, or null for the null context
+     * @return whether the size of the context is currently counted
+     */
+    public boolean isCounted(final Resource context) {
+        return counts.containsKey(keyOf(context));
+    }
+
+    /**
+     * Causes all contexts to be counted again when their size is next requested,
+     * e.g. after the base store has been modified directly
+     */
+    public synchronized void reconcile() {
+        counts.clear();
+        reconciled = ++clock;
+    }
+
+    /**
+     * @return the time, in milliseconds, after which a count is reconciled with the base store
+     */
+    public long getMaxAge() {
+        return maxAge;
+    }
+
+    /**
+     * @param maxAge the time, in milliseconds, after which a count is reconciled with the base store
+     */
+    public void setMaxAge(final long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    private synchronized void beginCommit(final Changes changes) {
+        for (Object key : changes.keys()) {
+            Integer n = committing.get(key);
+            committing.put(key, null == n ? 1 : n + 1);
+            changed.put(key, ++clock);
+        }
+    }
+
+    private synchronized void endCommit(final Changes changes,
+                                        final boolean committed) {
+        for (Object key : changes.keys()) {
+            int n = committing.get(key);
+            if (1 == n) {
+                committing.remove(key);
+            } else {
+                committing.put(key, n - 1);
+            }
+            changed.put(key, ++clock);
+
+            // the order in which overlapping commits took effect is unknown
+            if (!committed || n > 1 || changes.unknown.contains(key)) {
+                counts.remove(key);
+                continue;
+            }
+
+            Long delta = changes.deltas.get(key);
+            long d = null == delta ? 0 : delta;
+            Count c = counts.get(key);
+            if (changes.cleared.contains(key)) {
+                counts.put(key, new Count(d, null == c ? System.currentTimeMillis() : c.time));
+            } else if (null != c) {
+                // a context which has not been counted yet will be counted when needed
+                counts.put(key, new Count(c.size + d, c.time));
+            }
+        }
+    }
+
+    private static Object keyOf(final Resource context) {
+        return null == context ? NULL_CONTEXT : context;
+    }
+
+    /**
+     * The changes to context sizes made in a transaction of a single connection.
+     * They are applied to the counts only if the transaction is committed.
+     */
+    public class Changes {
+        private final Map<Object, Long> deltas = new HashMap<Object, Long>();
+        private final Set<Object> cleared = new HashSet<Object>();
+        private final Set<Object> unknown = new HashSet<Object>();
+
+        /**
+         * Records a statement added to a context in which it was not already present
+         */
+        public void added(final Resource context) {
+            delta(keyOf(context), 1);
+        }
+
+        /**
+         * Records a statement removed from a context in which it was present
+         */
+        public void removed(final Resource context) {
+            delta(keyOf(context), -1);
+        }
+
+        /**
+         * Records an unknown number of statements removed from a context
+         */
+        public void removedUnknown(final Resource context) {
+            Object key = keyOf(context);
+            deltas.remove(key);
+            unknown.add(key);
+        }
+
+        /**
+         * Records a cleared context
+         */
+        public void cleared(final Resource context) {
+            Object key = keyOf(context);
+            deltas.remove(key);
+            unknown.remove(key);
+            cleared.add(key);
+        }
+
+        /**
+         * Decides whether the effect of a change to a context must be recorded exactly.
+         * A context which is not counted at its first change in a transaction need not be:
+         * it is instead counted again when its size is next requested.
+         *
+         * @return whether the change should be recorded with {@link #added} or {@link #removed},
+         * which may require a lookup in the base store
+         */
+        public boolean isTracked(final Resource context) {
+            Object key = keyOf(context);
+            if (unknown.contains(key)) {
+                return false;
+            } else if (deltas.containsKey(key) || cleared.contains(key) || counts.containsKey(key)) {
+                return true;
+            } else {
+                unknown.add(key);
+                return false;
+            }
+        }
+
+        /**
+         * @return whether any change to the given context has been recorded
+         */
+        public boolean isChanged(final Resource context) {
+            Object key = keyOf(context);
+            return deltas.containsKey(key) || cleared.contains(key) || unknown.contains(key);
+        }
+
+        /**
+         * Marks the changed contexts as being committed, so that no count taken in the meantime is kept.
+         * To be called before the transaction is committed in the base store,
+         * and followed by {@link #endCommit} whether or not that succeeds.
+         */
+        public void beginCommit() {
+            ContextSizes.this.beginCommit(this);
+        }
+
+        /**
+         * Applies the changes to the counts if the transaction was committed, or otherwise causes the changed
+         * contexts to be counted again
+         *
+         * @param committed whether the transaction was committed in the base store
+         */
+        public void endCommit(final boolean committed) {
+            ContextSizes.this.endCommit(this, committed);
+            if (committed) {
+                reset();
+            }
+        }
+
+        public void reset() {
+            deltas.clear();
+            cleared.clear();
+            unknown.clear();
+        }
+
+        private Set<Object> keys() {
+            Set<Object> keys = new HashSet<Object>(deltas.keySet());
+            keys.addAll(cleared);
+            keys.addAll(unknown);
+            return keys;
+        }
+
+        private void delta(final Object key,
+                           final long d) {
+            if (!unknown.contains(key)) {
+                Long l = deltas.get(key);
+                deltas.put(key, null == l ? d : l + d);
+            }
+        }
+    }
+
+    private static class Count {
+        private final long size;
+        private final long time;
+
+        private Count(final long size,
+                      final long time) {
+            this.size = size;
+            this.time = time;
+        }
+    }
+}
@@ -0,0 +1,371 @@
+
+package net.fortytwo.sesametools.constrained;
+
+import info.aduna.iteration.CloseableIteration;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.sail.SailConnection;
+import org.openrdf.sail.SailException;
+
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An iteration over the statements matching a pattern in each of several contexts,
+ * which retrieves the statements of all contexts concurrently.
+ * A producer for each context reads its statements into a shared, bounded buffer, from which they are consumed
+ * in the order in which they arrive.
+ * The time to retrieve the statements of many contexts from a remote or disk-bound store is thus close to that
+ * of the slowest context, rather than the sum over all contexts.
+ * <p>
+ * A producer never waits for space in the buffer while holding a thread of the executor: when the buffer is full,
+ * it suspends, keeping its base iteration open, and is resubmitted once the consumer has made room.
+ * So an iteration which is not being consumed does not prevent other reads, including reads nested within the
+ * consumption of this one, from using the executor.
+ * If the executor is shut down while the iteration is open, the iteration fails rather than waiting for
+ * statements which will never arrive.
+ * <p>
+ * The base connection is read from several threads at once, so it must support concurrent reads.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class ParallelStatementIteration implements CloseableIteration<Statement, SailException> {
+    // how long the consumer waits for a statement before checking whether the executor has been shut down
+    private static final long POLL_TIMEOUT = 100;
+
+    private static final Object END_OF_CONTEXT = new Object();
+
+    // the states of a producer
+    private static final int
+            QUEUED = 0,
+            RUNNING = 1,
+            SUSPENDED = 2,
+            DONE = 3;
+
+    private final SailConnection baseConnection;
+    private final Resource subj;
+    private final URI pred;
+    private final Value obj;
+    private final boolean includeInferred;
+    private final ExecutorService executor;
+
+    private final BlockingQueue<Object> buffer;
+    private final int resumeThreshold;
+
+    // guards the states of the producers, and is notified whenever a producer stops running
+    private final Object lock = new Object();
+    private final Collection<Producer> producers = new LinkedList<Producer>();
+    private final Collection<Producer> suspended = new LinkedList<Producer>();
+    private int running = 0;
+
+    private volatile boolean closed = false;
+    private SailException closeFailure = null;
+    private int remaining;
+    private Statement nextStatement = null;
+
+    /**
+     * @param baseConnection  the connection from which to retrieve statements
+     * @param subj            the subject of matching statements, or null for any subject
+     * @param pred            the predicate of matching statements, or null for any predicate
+     * @param obj             the object of matching statements, or null for any object
+     * @param includeInferred whether to include inferred statements
+     * @param contexts        the contexts from which to retrieve statements
+     * @param executor        the executor in which to retrieve statements
+     * @param bufferSize      the maximum number of statements retrieved but not yet consumed
+     */
+    public ParallelStatementIteration(final SailConnection baseConnection,
+                                      final Resource subj,
+                                      final URI pred,
+                                      final Value obj,
+                                      final boolean includeInferred,
+                                      final Collection<? extends Resource> contexts,
+                                      final ExecutorService executor,
+                                      final int bufferSize) {
+        this.baseConnection = baseConnection;
+        this.subj = subj;
+        this.pred = pred;
+        this.obj = obj;
+        this.includeInferred = includeInferred;
+        this.executor = executor;
+        this.buffer = new ArrayBlockingQueue<Object>(bufferSize);
+        this.resumeThreshold = bufferSize / 2;
+        this.remaining = contexts.size();
+
+        for (Resource context : contexts) {
+            producers.add(new Producer(context));
+        }
+        for (Producer p : producers) {
+            if (!submit(p)) {
+                break;
+            }
+        }
+    }
+
+    public boolean hasNext() throws SailException {
+        if (null != nextStatement) {
+            return true;
+        }
+
+        while (remaining > 0 && !closed) {
+            Object o;
+            try {
+                o = buffer.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                closeAfterFailure();
+                throw new SailException(e);
+            }
+
+            if (null == o) {
+                // once the executor has terminated, no producer will deliver anything more
+                if (executor.isTerminated() && buffer.isEmpty()) {
+                    closeAfterFailure();
+                    throw new SailException("fan-out executor was shut down before the iteration was complete");
+                }
+                continue;
+            }
+
+            resumeProducers();
+
+            if (END_OF_CONTEXT == o) {
+                remaining--;
+            } else if (o instanceof Failure) {
+                closeAfterFailure();
+                throw new SailException(((Failure) o).cause);
+            } else {
+                nextStatement = (Statement) o;
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    public Statement next() throws SailException {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        Statement st = nextStatement;
+        nextStatement = null;
+        return st;
+    }
+
+    /**
+     * Has no effect.
+     */
+    public void remove() throws SailException {
+    }
+
+    /**
+     * Closes the iteration, waiting for running producers to close their base iterations,
+     * and closing those of producers which are suspended or have not yet started.
+     */
+    public void close() throws SailException {
+        Collection<Producer> idle = new LinkedList<Producer>();
+
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            // producers which are not running will not run again
+            for (Producer p : producers) {
+                if (QUEUED == p.state || SUSPENDED == p.state) {
+                    p.state = DONE;
+                    idle.add(p);
+                }
+            }
+            suspended.clear();
+        }
+
+        buffer.clear();
+
+        for (Producer p : idle) {
+            p.closeIteration();
+        }
+
+        // running producers notice that the iteration is closed, and close their own iterations
+        synchronized (lock) {
+            while (running > 0) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SailException(e);
+                }
+            }
+
+            if (null != closeFailure) {
+                throw closeFailure;
+            }
+        }
+    }
+
+    // Closes the iteration after a failure which takes precedence over any failure to close
+    private void closeAfterFailure() {
+        try {
+            close();
+        } catch (SailException e) {
+            // the original failure is reported
+        }
+    }
+
+    // Returns false if the producer could not be submitted, in which case the iteration fails
+    private boolean submit(final Producer p) {
+        try {
+            executor.execute(p);
+            return true;
+        } catch (RejectedExecutionException e) {
+            synchronized (lock) {
+                p.state = DONE;
+            }
+            // there is room for the failure, as nothing is buffered by a producer which has not run
+            buffer.offer(new Failure(new SailException("fan-out executor has been shut down")));
+            return false;
+        }
+    }
+
+    // Resubmits suspended producers once the consumer has made enough room in the buffer
+    private void resumeProducers() {
+        Collection<Producer> resumed;
+
+        synchronized (lock) {
+            if (suspended.isEmpty() || buffer.size() > resumeThreshold) {
+                return;
+            }
+
+            resumed = new LinkedList<Producer>(suspended);
+            suspended.clear();
+            for (Producer p : resumed) {
+                p.state = QUEUED;
+            }
+        }
+
+        for (Producer p : resumed) {
+            if (!submit(p)) {
+                p.closeIteration();
+            }
+        }
+    }
+
+    private class Producer implements Runnable {
+        private final Resource context;
+        private CloseableIteration<? extends Statement, SailException> iter = null;
+        // an item which did not fit in the buffer
+        private Object pending = null;
+        private int state = QUEUED;
+
+        private Producer(final Resource context) {
+            this.context = context;
+        }
+
+        public void run() {
+            synchronized (lock) {
+                if (QUEUED != state) {
+                    return;
+                }
+                state = RUNNING;
+                running++;
+            }
+
+            try {
+                while (!closed) {
+                    if (null == pending) {
+                        pending = nextItem();
+                    }
+
+                    Object item = pending;
+                    if (!offer(item)) {
+                        // the consumer resubmits this producer once there is room in the buffer
+                        return;
+                    }
+                    pending = null;
+
+                    if (END_OF_CONTEXT == item || item instanceof Failure) {
+                        break;
+                    }
+                }
+
+                closeIteration();
+                synchronized (lock) {
+                    state = DONE;
+                }
+            } finally {
+                synchronized (lock) {
+                    running--;
+                    lock.notifyAll();
+                }
+            }
+        }
+
+        private Object nextItem() {
+            try {
+                if (null == iter) {
+                    iter = baseConnection.getStatements(subj, pred, obj, includeInferred, context);
+                }
+
+                if (iter.hasNext()) {
+                    return iter.next();
+                }
+
+                CloseableIteration<? extends Statement, SailException> i = iter;
+                iter = null;
+                i.close();
+                return END_OF_CONTEXT;
+            } catch (Throwable t) {
+                return new Failure(t);
+            }
+        }
+
+        // Returns false if the buffer is full, in which case the producer is suspended.
+        // An item offered after the iteration has been closed is discarded.
+        private boolean offer(final Object item) {
+            if (buffer.offer(item)) {
+                return true;
+            }
+
+            synchronized (lock) {
+                if (closed || buffer.offer(item)) {
+                    return true;
+                }
+
+                state = SUSPENDED;
+                suspended.add(this);
+                return false;
+            }
+        }
+
+        private void closeIteration() {
+            if (null != iter) {
+                try {
+                    iter.close();
+                } catch (SailException e) {
+                    synchronized (lock) {
+                        if (null == closeFailure) {
+                            closeFailure = e;
+                        }
+                    }
+                } finally {
+                    iter = null;
+                }
+            }
+        }
+    }
+
+    private static class Failure {
+        private final Throwable cause;
+
+        private Failure(final Throwable cause) {
+            this.cause = cause;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+
+package net.fortytwo.sesametools.constrained;
+
+import org.openrdf.model.Resource;
+import org.openrdf.model.URI;
+import org.openrdf.query.Dataset;
+import org.openrdf.query.impl.DatasetImpl;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * An immutable set of contexts to which a requestor has access (possibly including the null context).
+ * Membership is checked with a hash lookup, which neither locks nor allocates,
+ * so that a set may be checked once per statement by any number of threads.
+ * A set is never modified once created; a changed set is a new instance.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class PermissionSet {
+    private static final PermissionSet EMPTY = new PermissionSet(new HashSet<Resource>());
+
+    private final Set<Resource> contexts;
+
+    // a view of the set as a Dataset, built when first needed
+    private volatile Dataset dataset = null;
+
+    private PermissionSet(final Set<Resource> contexts) {
+        this.contexts = Collections.unmodifiableSet(contexts);
+    }
+
+    /**
+     * @return a set containing no contexts
+     */
+    public static PermissionSet empty() {
+        return EMPTY;
+    }
+
+    /**
+     * @param contexts the contexts to which access is permitted.  They are copied.
+     * @return a set containing the given contexts
+     */
+    public static PermissionSet of(final Collection<? extends Resource> contexts) {
+        return new PermissionSet(new HashSet<Resource>(contexts));
+    }
+
+    /**
+     * @param context a context, or null for the null context
+     * @return whether access to the given context is permitted
+     */
+    public boolean contains(final Resource context) {
+        return contexts.contains(context);
+    }
+
+    /**
+     * @return whether access to no context is permitted
+     */
+    public boolean isEmpty() {
+        return contexts.isEmpty();
+    }
+
+    public int size() {
+        return contexts.size();
+    }
+
+    /**
+     * @return the contexts in this set.  The set may not be modified.
+     */
+    public Set<Resource> getContexts() {
+        return contexts;
+    }
+
+    /**
+     * @param context a context to add
+     * @return a set containing the contexts of this set and the given context
+     */
+    public PermissionSet with(final Resource context) {
+        if (contexts.contains(context)) {
+            return this;
+        }
+
+        Set<Resource> s = new HashSet<Resource>(contexts);
+        s.add(context);
+        return new PermissionSet(s);
+    }
+
+    /**
+     * @param context a context to remove
+     * @return a set containing the contexts of this set other than the given context
+     */
+    public PermissionSet without(final Resource context) {
+        if (!contexts.contains(context)) {
+            return this;
+        }
+
+        Set<Resource> s = new HashSet<Resource>(contexts);
+        s.remove(context);
+        return new PermissionSet(s);
+    }
+
+    /**
+     * @return a Dataset whose default graphs are the named graphs of this set.  It should not be modified.
+     */
+    public Dataset asDataset() {
+        Dataset d = dataset;
+        if (null == d) {
+            DatasetImpl di = new DatasetImpl();
+            for (Resource r : contexts) {
+                if (r instanceof URI) {
+                    di.addDefaultGraph((URI) r);
+                }
+            }
+            d = di;
+            dataset = d;
+        }
+
+        return d;
+    }
+}
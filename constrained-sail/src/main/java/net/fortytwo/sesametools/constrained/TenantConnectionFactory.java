@@ -0,0 +1,289 @@
+
+package net.fortytwo.sesametools.constrained;
+
+import org.openrdf.sail.Sail;
+import org.openrdf.sail.SailConnection;
+import org.openrdf.sail.SailException;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A multi-tenant front to a shared base Sail, which opens a constrained connection for any principal
+ * without a ConstrainedSail per principal.
+ * The permissions of each principal are loaded from an application-defined source (e.g. an ACL store) when first
+ * needed, and cached, so that opening a connection usually costs no more than a cache lookup.
+ * <p>
+ * The cache is bounded, and evicts the least recently used principals.
+ * Cached permissions are invalidated either for a single principal, with <code>invalidate</code>, or all at once,
+ * by advancing the ACL version with <code>advanceVersion</code>: permissions loaded under an older version are
+ * reloaded when next needed.  Connections which are already open keep the permissions with which they were opened.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class TenantConnectionFactory {
+    private static final int DEFAULT_CAPACITY = 10000;
+
+    /**
+     * A source of the permissions of principals
+     */
+    public interface PermissionLoader {
+        /**
+         * @param principal the name of a principal
+         * @return the permissions of the principal.  A principal without permissions should be given empty sets,
+         * rather than null.
+         * @throws SailException if the permissions cannot be loaded
+         */
+        TenantPermissions load(String principal) throws SailException;
+    }
+
+    private final Sail baseSail;
+    private final PermissionLoader loader;
+    private final Map<String, CachedPermissions> cache;
+
+    // Guarded by the cache.  Each invalidation made while loads are in progress is stamped with the number of
+    // invalidations so far, so that a load which began before it does not cache stale permissions.
+    private long invalidationCount = 0;
+    private int loadsInProgress = 0;
+    private final Map<String, Long> invalidationStamps = new HashMap<String, Long>();
+    private final WildcardReadPlanner readPlanner = new WildcardReadPlanner();
+
+    private final AtomicLong version = new AtomicLong(0);
+    private final AtomicLong
+            hits = new AtomicLong(0),
+            loads = new AtomicLong(0),
+            evictions = new AtomicLong(0);
+
+    private volatile boolean hideNonWritableContexts = false;
+    private volatile ConstrainedSail.QueryEvaluationMode evaluationMode
+            = ConstrainedSail.QueryEvaluationMode.GRAPH_NAMES;
+    private volatile ContextSizes contextSizes = null;
+
+    /**
+     * @param baseSail the store shared by all principals
+     * @param loader   the source of the permissions of principals
+     * @param capacity the maximum number of principals whose permissions are cached
+     */
+    public TenantConnectionFactory(final Sail baseSail,
+                                   final PermissionLoader loader,
+                                   final int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+
+        this.baseSail = baseSail;
+        this.loader = loader;
+
+        cache = new LinkedHashMap<String, CachedPermissions>(capacity + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, CachedPermissions> eldest) {
+                if (size() > capacity) {
+                    evictions.incrementAndGet();
+                    return true;
+                } else {
+                    return false;
+                }
+            }
+        };
+    }
+
+    public TenantConnectionFactory(final Sail baseSail,
+                                   final PermissionLoader loader) {
+        this(baseSail, loader, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Opens a connection to the base Sail which is constrained by the permissions of a principal
+     *
+     * @param principal the name of a principal
+     * @return a new connection, which the caller must close
+     * @throws SailException if the permissions of the principal cannot be loaded, or a connection cannot be opened
+     */
+    public SailConnection getConnection(final String principal) throws SailException {
+        TenantPermissions p = getPermissions(principal);
+
+        ConstrainedSailConnection c = new ConstrainedSailConnection(baseSail.getConnection(),
+                baseSail.getValueFactory(),
+                p.getReadable(),
+                p.getWritable(),
+                p.getDefaultWriteContext(),
+                true, true, hideNonWritableContexts,
+                readPlanner);
+        c.setEvaluationMode(evaluationMode);
+        if (null != contextSizes) {
+            c.setContextSizes(contextSizes);
+        }
+
+        return c;
+    }
+
+    /**
+     * Finds the permissions of a principal in the cache, or loads and caches them
+     *
+     * @param principal the name of a principal
+     * @return the current permissions of the principal
+     * @throws SailException if the permissions cannot be loaded
+     */
+    public TenantPermissions getPermissions(final String principal) throws SailException {
+        long v = version.get();
+
+        CachedPermissions cached;
+        synchronized (cache) {
+            cached = cache.get(principal);
+        }
+
+        if (null != cached && cached.version == v) {
+            hits.incrementAndGet();
+            return cached.permissions;
+        }
+
+        // load outside of the lock; in the worst case, two threads load the same permissions
+        long stamp;
+        synchronized (cache) {
+            stamp = invalidationCount;
+            loadsInProgress++;
+        }
+
+        TenantPermissions p;
+        try {
+            loads.incrementAndGet();
+            p = loader.load(principal);
+            if (null == p) {
+                throw new SailException("no permissions for principal " + principal);
+            }
+
+            synchronized (cache) {
+                // Permissions loaded before the principal was invalidated may be stale, and are not cached.
+                // Nor is an entry loaded under a later version replaced.
+                Long invalidated = invalidationStamps.get(principal);
+                CachedPermissions current = cache.get(principal);
+                if ((null == invalidated || invalidated <= stamp)
+                        && (null == current || current.version <= v)) {
+                    cache.put(principal, new CachedPermissions(p, v));
+                }
+            }
+        } finally {
+            synchronized (cache) {
+                // stamps are only needed while loads which began before them are in progress
+                if (0 == --loadsInProgress) {
+                    invalidationStamps.clear();
+                }
+            }
+        }
+
+        return p;
+    }
+
+    /**
+     * Discards the cached permissions of a principal, e.g. after its ACL has changed.
+     * Permissions of the principal which are being loaded at the same time are not cached.
+     *
+     * @param principal the name of a principal
+     */
+    public void invalidate(final String principal) {
+        synchronized (cache) {
+            cache.remove(principal);
+
+            invalidationCount++;
+            if (loadsInProgress > 0) {
+                invalidationStamps.put(principal, invalidationCount);
+            }
+        }
+    }
+
+    /**
+     * Advances the ACL version, so that all cached permissions are reloaded when next needed.
+     * Unlike clearing the cache, this takes constant time.
+     *
+     * @return the new version
+     */
+    public long advanceVersion() {
+        return version.incrementAndGet();
+    }
+
+    /**
+     * @return the current ACL version
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * @return the planner shared by all connections for reads from a wildcard context
+     */
+    public WildcardReadPlanner getReadPlanner() {
+        return readPlanner;
+    }
+
+    /**
+     * @param hideNonWritableContexts whether connections opened from now on remove the context of statements
+     *                                in non-writable graphs
+     */
+    public void setHideNonWritableContexts(final boolean hideNonWritableContexts) {
+        this.hideNonWritableContexts = hideNonWritableContexts;
+    }
+
+    /**
+     * @param evaluationMode the strategy with which connections opened from now on restrict queries
+     */
+    public void setEvaluationMode(final ConstrainedSail.QueryEvaluationMode evaluationMode) {
+        this.evaluationMode = evaluationMode;
+    }
+
+    /**
+     * Enables the answering of size requests from in-memory statement counts shared by all principals,
+     * so that the size of a principal's readable graphs is found without counting the statements of each graph
+     *
+     * @return the statement counts, e.g. for setting their maximum age
+     */
+    public synchronized ContextSizes enableSizeCounting() {
+        if (null == contextSizes) {
+            contextSizes = new ContextSizes();
+        }
+
+        return contextSizes;
+    }
+
+    /**
+     * @return the number of principals whose permissions are currently cached
+     */
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    /**
+     * @return the number of lookups answered from the cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of times permissions have been loaded
+     */
+    public long getLoads() {
+        return loads.get();
+    }
+
+    /**
+     * @return the number of principals evicted from the cache to make room for others
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    private static class CachedPermissions {
+        private final TenantPermissions permissions;
+        private final long version;
+
+        private CachedPermissions(final TenantPermissions permissions,
+                                  final long version) {
+            this.permissions = permissions;
+            this.version = version;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+
+package net.fortytwo.sesametools.constrained;
+
+import org.openrdf.model.Resource;
+
+/**
+ * The access rights of a principal (e.g. a tenant or user) to the named graphs of a store:
+ * the graphs it may read, the graphs it may write, and the graph to which it writes by default
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class TenantPermissions {
+    private final PermissionSet readable;
+    private final PermissionSet writable;
+    private final Resource defaultWriteContext;
+
+    /**
+     * @param readable            the contexts from which the principal may read
+     * @param writable            the contexts to which the principal may write
+     * @param defaultWriteContext the context to which statements are written when no other context is given.
+     *                            May be null.
+     */
+    public TenantPermissions(final PermissionSet readable,
+                             final PermissionSet writable,
+                             final Resource defaultWriteContext) {
+        this.readable = readable;
+        this.writable = writable;
+        this.defaultWriteContext = defaultWriteContext;
+    }
+
+    public PermissionSet getReadable() {
+        return readable;
+    }
+
+    public PermissionSet getWritable() {
+        return writable;
+    }
+
+    public Resource getDefaultWriteContext() {
+        return defaultWriteContext;
+    }
+}
@@ -0,0 +1,189 @@
+
+package net.fortytwo.sesametools.constrained;
+
+import org.openrdf.model.Resource;
+import org.openrdf.sail.SailConnection;
+import org.openrdf.sail.SailException;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Chooses how a ConstrainedSailConnection answers a getStatements call with a wildcard context:
+ * either by retrieving matching statements from all contexts and discarding those in unreadable contexts
+ * (post-filtering), or by retrieving matching statements from each readable context in turn (fanning out).
+ * <p>
+ * Fanning out is chosen when the estimated number of statements in the readable contexts,
+ * plus a fixed cost for each context visited, is less than the estimated number of statements in the store.
+ * A requestor who may read only a few of many contexts thus touches only its own data,
+ * while a requestor who may read most contexts scans the store once rather than visiting each context.
+ * <p>
+ * The number of statements in the store is not counted by the planner, as counting is a full scan for many stores;
+ * it is given to the planner instead (see {@link #setTotalSize}).  Until it is given, fanning out is chosen whenever
+ * there are few enough readable contexts.
+ * The size of each context is taken from the statement counts of the Sail, if it keeps them (see
+ * {@link ConstrainedSail#enableSizeCounting}), or otherwise from the <code>size</code> of the context in the base store.
+ * Context sizes are cached for a configurable time, so that they cost nothing for most calls,
+ * and are shared by all connections of a Sail.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class WildcardReadPlanner {
+    private static final long
+            DEFAULT_CONTEXT_COST = 100,
+            DEFAULT_MAX_ESTIMATE_AGE = 60000;
+
+    private static final int DEFAULT_MAX_FAN_OUT = 1000;
+
+    // stands in for the null context, which cannot be a key of a ConcurrentHashMap
+    private static final Object NULL_CONTEXT = new Object();
+
+    private final ConcurrentMap<Object, Estimate> contextSizes = new ConcurrentHashMap<Object, Estimate>();
+    private volatile long totalSize = -1;
+    private volatile ContextSizes sizeCounts = null;
+
+    private volatile long contextCost = DEFAULT_CONTEXT_COST;
+    private volatile long maxEstimateAge = DEFAULT_MAX_ESTIMATE_AGE;
+    private volatile int maxFanOut = DEFAULT_MAX_FAN_OUT;
+
+    /**
+     * @param readableContexts the contexts which the requestor may read (possibly including the null context)
+     * @param baseConnection   a connection to the base store, used to estimate the size of contexts
+     * @return whether to retrieve statements from each readable context, rather than from all contexts
+     * @throws SailException if the size of a context cannot be determined
+     */
+    public boolean isFanOutPreferred(final Collection<? extends Resource> readableContexts,
+                                     final SailConnection baseConnection) throws SailException {
+        if (readableContexts.isEmpty()) {
+            return true;
+        } else if (readableContexts.size() > maxFanOut) {
+            return false;
+        }
+
+        long total = totalSize;
+        if (total < 0) {
+            return true;
+        }
+
+        long now = System.currentTimeMillis();
+
+        // stop estimating as soon as fanning out is known to be more expensive
+        long cost = 0;
+        for (Resource context : readableContexts) {
+            cost += contextCost + getSize(context, baseConnection, now);
+            if (cost >= total) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Discards all estimates of context sizes, e.g. after a bulk load
+     */
+    public void clearEstimates() {
+        contextSizes.clear();
+    }
+
+    /**
+     * @return the number of statements in the store, as given to the planner, or -1 if it has not been given
+     */
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    /**
+     * @param totalSize an estimate of the number of statements in the store, e.g. from the statistics of the store
+     *                  or from a count made outside of the read path, or -1 if unknown
+     */
+    public void setTotalSize(final long totalSize) {
+        this.totalSize = totalSize;
+    }
+
+    /**
+     * @param sizeCounts the statement counts from which to take the size of a context, where it is counted,
+     *                   or null to take each size from the base store
+     */
+    public void setContextSizes(final ContextSizes sizeCounts) {
+        this.sizeCounts = sizeCounts;
+    }
+
+    /**
+     * @return the cost of retrieving statements from a context, apart from the statements themselves,
+     * as a number of statements
+     */
+    public long getContextCost() {
+        return contextCost;
+    }
+
+    /**
+     * @param contextCost the cost of retrieving statements from a context, apart from the statements themselves,
+     *                    as a number of statements
+     */
+    public void setContextCost(final long contextCost) {
+        this.contextCost = contextCost;
+    }
+
+    /**
+     * @return the time, in milliseconds, after which size estimates are refreshed
+     */
+    public long getMaxEstimateAge() {
+        return maxEstimateAge;
+    }
+
+    /**
+     * @param maxEstimateAge the time, in milliseconds, after which size estimates are refreshed
+     */
+    public void setMaxEstimateAge(final long maxEstimateAge) {
+        this.maxEstimateAge = maxEstimateAge;
+    }
+
+    /**
+     * @return the greatest number of readable contexts for which fanning out is considered
+     */
+    public int getMaxFanOut() {
+        return maxFanOut;
+    }
+
+    /**
+     * @param maxFanOut the greatest number of readable contexts for which fanning out is considered.
+     *                  If zero, statements are always post-filtered.
+     */
+    public void setMaxFanOut(final int maxFanOut) {
+        this.maxFanOut = maxFanOut;
+    }
+
+    private long getSize(final Resource context,
+                         final SailConnection c,
+                         final long now) throws SailException {
+        ContextSizes counts = sizeCounts;
+        if (null != counts) {
+            long count = counts.getCount(context);
+            if (count >= 0) {
+                return count;
+            }
+        }
+
+        Object key = null == context ? NULL_CONTEXT : context;
+        Estimate e = contextSizes.get(key);
+        if (null == e || now - e.time > maxEstimateAge) {
+            e = new Estimate(c.size(context), now);
+            contextSizes.put(key, e);
+        }
+
+        return e.size;
+    }
+
+    private static class Estimate {
+        private final long size;
+        private final long time;
+
+        private Estimate(final long size,
+                         final long time) {
+            this.size = size;
+            this.time = time;
+        }
+    }
+}
@@ -3,7 +3,15 @@ package net.fortytwo.sesametools.constrained;
 
 import info.aduna.iteration.CloseableIteration;
 import junit.framework.TestCase;
+import org.openrdf.model.Resource;
 import org.openrdf.model.Statement;
+import org.openrdf.model.Value;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.QueryLanguage;
+import org.openrdf.query.impl.EmptyBindingSet;
+import org.openrdf.query.parser.ParsedQuery;
+import org.openrdf.query.parser.QueryParserUtil;
 import org.openrdf.model.URI;
 import org.openrdf.model.impl.URIImpl;
 import org.openrdf.model.vocabulary.RDF;
@@ -11,8 +19,18 @@ import org.openrdf.query.impl.DatasetImpl;
 import org.openrdf.sail.Sail;
 import org.openrdf.sail.SailConnection;
 import org.openrdf.sail.SailException;
+import org.openrdf.sail.helpers.SailConnectionWrapper;
+import org.openrdf.sail.helpers.SailWrapper;
 import org.openrdf.sail.memory.MemoryStore;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
 /**
  * @author Joshua Shinavier (http://fortytwo.net)
  */
@@ -104,6 +122,555 @@ public class ConstrainedSailTest extends TestCase {
         sc.close();
     }
 
+    public void testWildcardDeleteByProbingWritableGraphs() throws Exception {
+        SailConnection sc;
+
+        sc = baseSail.getConnection();
+        sc.begin();
+        for (int i = 0; i < 10; i++) {
+            sc.addStatement(RDF.TYPE, RDF.TYPE, new URIImpl("http://example.org/thing" + i),
+                    CONTEXT1_RW, CONTEXT2_R);
+        }
+        for (int i = 0; i < 100; i++) {
+            sc.addStatement(RDF.TYPE, RDF.TYPE, RDF.TYPE, new URIImpl("http://example.org/other" + i));
+        }
+        sc.commit();
+        sc.close();
+
+        // Probe each writable graph rather than scanning all matching statements
+        constrainedSail.getReadPlanner().setContextCost(0);
+
+        sc = constrainedSail.getConnection();
+        sc.begin();
+        sc.removeStatements(RDF.TYPE, null, null);
+        sc.commit();
+        sc.close();
+
+        sc = baseSail.getConnection();
+        assertEquals(0, count(sc.getStatements(RDF.TYPE, null, null, false, CONTEXT1_RW)));
+        assertEquals(10, count(sc.getStatements(RDF.TYPE, null, null, false, CONTEXT2_R)));
+        assertEquals(110, count(sc.getStatements(RDF.TYPE, null, null, false)));
+        sc.close();
+    }
+
+    public void testWildcardReadPlans() throws Exception {
+        SailConnection sc;
+
+        // Add a statement to each of the three named graphs, and to many unreadable graphs
+        sc = baseSail.getConnection();
+        sc.begin();
+        sc.addStatement(RDF.TYPE, RDF.TYPE, RDF.TYPE, CONTEXT1_RW, CONTEXT2_R, CONTEXT3_W);
+        for (int i = 0; i < 100; i++) {
+            sc.addStatement(RDF.TYPE, RDF.TYPE, RDF.TYPE, new URIImpl("http://example.org/other" + i));
+        }
+        sc.commit();
+        sc.close();
+
+        // a sail with the same permissions, which records the reads it makes from the base sail
+        ReadRecordingSail recorder = new ReadRecordingSail(baseSail);
+        ConstrainedSail sail = new ConstrainedSail(recorder, CONTEXT3_W, false);
+        sail.addReadableGraph(CONTEXT1_RW);
+        sail.addReadableGraph(CONTEXT2_R);
+        sail.addWritableGraph(CONTEXT1_RW);
+        sail.addWritableGraph(CONTEXT3_W);
+        sail.initialize();
+        WildcardReadPlanner planner = sail.getReadPlanner();
+        Set<List<Resource>> fanOut = new HashSet<List<Resource>>();
+        fanOut.add(Arrays.<Resource>asList(CONTEXT1_RW));
+        fanOut.add(Arrays.<Resource>asList(CONTEXT2_R));
+        List<Resource> allContexts = Collections.emptyList();
+
+        // Fan out to the readable graphs
+        planner.setContextCost(0);
+        sc = sail.getConnection();
+        assertEquals(2, count(sc.getStatements(RDF.TYPE, null, null, false)));
+        assertEquals(fanOut, new HashSet<List<Resource>>(recorder.reads));
+        assertEquals(2, recorder.reads.size());
+        recorder.reads.clear();
+        assertEquals(2, count(sc.getStatements(null, null, null, false)));
+        assertEquals(fanOut, new HashSet<List<Resource>>(recorder.reads));
+        assertEquals(2, recorder.reads.size());
+        recorder.reads.clear();
+        sc.close();
+
+        // Filter the statements of all graphs
+        planner.setMaxFanOut(0);
+        sc = sail.getConnection();
+        assertEquals(2, count(sc.getStatements(RDF.TYPE, null, null, false)));
+        assertEquals(Collections.singletonList(allContexts), recorder.reads);
+        recorder.reads.clear();
+        assertEquals(2, count(sc.getStatements(null, null, null, false)));
+        assertEquals(Collections.singletonList(allContexts), recorder.reads);
+        recorder.reads.clear();
+        sc.close();
+
+        // Fan out while the size of the store is unknown, however costly each graph
+        planner.setMaxFanOut(1000);
+        planner.setContextCost(1000);
+        sc = sail.getConnection();
+        assertEquals(2, count(sc.getStatements(RDF.TYPE, null, null, false)));
+        assertEquals(fanOut, new HashSet<List<Resource>>(recorder.reads));
+        recorder.reads.clear();
+        sc.close();
+
+        // Filter, rather than fan out, when visiting each readable graph costs more than a scan of the store
+        planner.setTotalSize(103);
+        sc = sail.getConnection();
+        assertEquals(2, count(sc.getStatements(RDF.TYPE, null, null, false)));
+        assertEquals(Collections.singletonList(allContexts), recorder.reads);
+        sc.close();
+
+        sail.shutDown();
+    }
+
+    public void testParallelFanOut() throws Exception {
+        SailConnection sc;
+
+        sc = baseSail.getConnection();
+        sc.begin();
+        for (int i = 0; i < 100; i++) {
+            sc.addStatement(new URIImpl("http://example.org/thing" + i), RDF.TYPE, RDF.TYPE,
+                    CONTEXT1_RW, CONTEXT2_R, CONTEXT3_W);
+        }
+        sc.commit();
+        sc.close();
+
+        // a small buffer, so that producers must wait for the consumer
+        constrainedSail.enableParallelFanOut(4, 10);
+
+        sc = constrainedSail.getConnection();
+        assertEquals(200, count(sc.getStatements(null, RDF.TYPE, null, false, CONTEXT1_RW, CONTEXT2_R, CONTEXT3_W)));
+        assertEquals(100, count(sc.getStatements(null, RDF.TYPE, null, false, CONTEXT1_RW)));
+
+        // an iteration closed early releases its producers
+        CloseableIteration<? extends Statement, SailException> iter
+                = sc.getStatements(null, RDF.TYPE, null, false, CONTEXT1_RW, CONTEXT2_R);
+        assertTrue(iter.hasNext());
+        iter.next();
+        iter.close();
+        assertFalse(iter.hasNext());
+        sc.close();
+    }
+
+    public void testNestedParallelReads() throws Exception {
+        URI context4 = new URIImpl("http://example.org/context4");
+        URI context5 = new URIImpl("http://example.org/context5");
+        constrainedSail.addReadableGraph(context4);
+        constrainedSail.addReadableGraph(context5);
+
+        SailConnection sc = baseSail.getConnection();
+        sc.begin();
+        for (int i = 0; i < 100; i++) {
+            sc.addStatement(new URIImpl("http://example.org/thing" + i), RDF.TYPE, RDF.TYPE,
+                    CONTEXT1_RW, CONTEXT2_R, context4, context5);
+        }
+        sc.commit();
+        sc.close();
+
+        // fewer threads than the contexts of a read, and a buffer smaller than any context
+        constrainedSail.enableParallelFanOut(2, 10);
+
+        final SailConnection csc = constrainedSail.getConnection();
+        final CloseableIteration<? extends Statement, SailException> outer
+                = csc.getStatements(null, RDF.TYPE, null, false, CONTEXT1_RW, CONTEXT2_R, context4, context5);
+        assertTrue(outer.hasNext());
+        outer.next();
+
+        // A read nested within the consumption of another, as in the evaluation of a query by decomposition,
+        // is not starved of threads by the producers of the outer read.
+        final int[] nested = new int[]{-1};
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    nested[0] = count(csc.getStatements(null, RDF.TYPE, null, false, CONTEXT1_RW, CONTEXT2_R));
+                } catch (SailException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        t.start();
+        t.join(10000);
+        assertFalse(t.isAlive());
+        assertEquals(200, nested[0]);
+
+        assertEquals(399, count(outer));
+        csc.close();
+    }
+
+    public void testShutDownFailsOpenParallelReads() throws Exception {
+        SailConnection sc = baseSail.getConnection();
+        sc.begin();
+        for (int i = 0; i < 100; i++) {
+            sc.addStatement(new URIImpl("http://example.org/thing" + i), RDF.TYPE, RDF.TYPE,
+                    CONTEXT1_RW, CONTEXT2_R);
+        }
+        sc.commit();
+        sc.close();
+
+        constrainedSail.enableParallelFanOut(2, 10);
+
+        sc = constrainedSail.getConnection();
+        CloseableIteration<? extends Statement, SailException> iter
+                = sc.getStatements(null, RDF.TYPE, null, false, CONTEXT1_RW, CONTEXT2_R);
+        assertTrue(iter.hasNext());
+        iter.next();
+
+        constrainedSail.shutDown();
+
+        // the iteration fails, rather than waiting for the statements of producers which will never run
+        int c = 1;
+        try {
+            while (iter.hasNext()) {
+                iter.next();
+                c++;
+            }
+            fail("iteration completed after shutdown");
+        } catch (SailException e) {
+            // expected
+        }
+        assertTrue(c < 200);
+        assertFalse(iter.hasNext());
+        iter.close();
+        sc.close();
+    }
+
+    public void testReplacedFanOutExecutorDrains() throws Exception {
+        SailConnection sc = baseSail.getConnection();
+        sc.begin();
+        for (int i = 0; i < 100; i++) {
+            sc.addStatement(new URIImpl("http://example.org/thing" + i), RDF.TYPE, RDF.TYPE,
+                    CONTEXT1_RW, CONTEXT2_R);
+        }
+        sc.commit();
+        sc.close();
+
+        constrainedSail.enableParallelFanOut(2, 10);
+
+        SailConnection before = constrainedSail.getConnection();
+        CloseableIteration<? extends Statement, SailException> iter
+                = before.getStatements(null, RDF.TYPE, null, false, CONTEXT1_RW, CONTEXT2_R);
+        assertTrue(iter.hasNext());
+        iter.next();
+
+        // the old executor keeps serving the read which was opened with it
+        constrainedSail.enableParallelFanOut(4, 10);
+        SailConnection after = constrainedSail.getConnection();
+        assertEquals(200, count(after.getStatements(null, RDF.TYPE, null, false, CONTEXT1_RW, CONTEXT2_R)));
+        assertEquals(199, count(iter));
+        before.close();
+
+        // connections opened after the old executor has been stopped use the new one
+        assertEquals(200, count(after.getStatements(null, RDF.TYPE, null, false, CONTEXT1_RW, CONTEXT2_R)));
+        after.close();
+        sc = constrainedSail.getConnection();
+        assertEquals(200, count(sc.getStatements(null, RDF.TYPE, null, false, CONTEXT1_RW, CONTEXT2_R)));
+        sc.close();
+    }
+
+    public void testPermissionSnapshots() throws Exception {
+        SailConnection sc = baseSail.getConnection();
+        sc.begin();
+        sc.addStatement(RDF.TYPE, RDF.TYPE, RDF.TYPE, CONTEXT1_RW, CONTEXT2_R, CONTEXT3_W);
+        sc.commit();
+        sc.close();
+
+        SailConnection before = constrainedSail.getConnection();
+        constrainedSail.addReadableGraph(CONTEXT3_W);
+        constrainedSail.removeReadableGraph(CONTEXT2_R);
+        SailConnection after = constrainedSail.getConnection();
+
+        // A connection keeps the permissions which were current when it was opened
+        assertEquals(1, count(before.getStatements(RDF.TYPE, null, null, false, CONTEXT2_R)));
+        assertEquals(0, count(before.getStatements(RDF.TYPE, null, null, false, CONTEXT3_W)));
+        assertEquals(0, count(after.getStatements(RDF.TYPE, null, null, false, CONTEXT2_R)));
+        assertEquals(1, count(after.getStatements(RDF.TYPE, null, null, false, CONTEXT3_W)));
+        assertEquals(2, count(after.getStatements(RDF.TYPE, null, null, false)));
+        before.close();
+        after.close();
+    }
+
+    public void testQueryEvaluationModes() throws Exception {
+        SailConnection sc = baseSail.getConnection();
+        sc.begin();
+        sc.addStatement(RDF.TYPE, RDF.TYPE, RDF.TYPE, CONTEXT1_RW, CONTEXT2_R, CONTEXT3_W);
+        sc.addStatement(RDF.TYPE, RDF.TYPE, RDF.TYPE);
+        sc.commit();
+        sc.close();
+
+        ParsedQuery all = QueryParserUtil.parseQuery(QueryLanguage.SPARQL,
+                "SELECT ?s WHERE { ?s ?p ?o }", null);
+        ParsedQuery graphs = QueryParserUtil.parseQuery(QueryLanguage.SPARQL,
+                "SELECT ?g WHERE { GRAPH ?g { ?s ?p ?o } }", null);
+        ParsedQuery unreadable = QueryParserUtil.parseQuery(QueryLanguage.SPARQL,
+                "SELECT ?s WHERE { GRAPH <" + CONTEXT3_W + "> { ?s ?p ?o } }", null);
+
+        for (ConstrainedSail.QueryEvaluationMode mode : ConstrainedSail.QueryEvaluationMode.values()) {
+            constrainedSail.setEvaluationMode(mode);
+            sc = constrainedSail.getConnection();
+            // only the statements in the two readable named graphs are visible
+            assertEquals(mode.name(), 2, countSolutions(sc.evaluate(all.getTupleExpr(), null,
+                    EmptyBindingSet.getInstance(), false)));
+            if (ConstrainedSail.QueryEvaluationMode.GRAPH_NAMES != mode) {
+                assertEquals(mode.name(), 2, countSolutions(sc.evaluate(graphs.getTupleExpr(), null,
+                        EmptyBindingSet.getInstance(), false)));
+            }
+            assertEquals(mode.name(), 0, countSolutions(sc.evaluate(unreadable.getTupleExpr(), null,
+                    EmptyBindingSet.getInstance(), false)));
+            sc.close();
+        }
+    }
+
+    public void testTenantConnectionFactory() throws Exception {
+        SailConnection sc = baseSail.getConnection();
+        sc.begin();
+        sc.addStatement(RDF.TYPE, RDF.TYPE, RDF.TYPE, CONTEXT1_RW, CONTEXT2_R, CONTEXT3_W);
+        sc.commit();
+        sc.close();
+
+        // each tenant may read and write a graph of its own name
+        TenantConnectionFactory.PermissionLoader loader = new TenantConnectionFactory.PermissionLoader() {
+            public TenantPermissions load(final String principal) {
+                PermissionSet graphs = PermissionSet.empty().with(new URIImpl("http://example.org/" + principal));
+                return new TenantPermissions(graphs, graphs, null);
+            }
+        };
+        TenantConnectionFactory factory = new TenantConnectionFactory(baseSail, loader, 2);
+
+        sc = factory.getConnection("context1");
+        assertEquals(1, count(sc.getStatements(RDF.TYPE, null, null, false)));
+        assertEquals(0, count(sc.getStatements(RDF.TYPE, null, null, false, CONTEXT2_R)));
+        sc.close();
+        sc = factory.getConnection("context2");
+        assertEquals(1, count(sc.getStatements(RDF.TYPE, null, null, false, CONTEXT2_R)));
+        sc.close();
+        assertEquals(2, factory.getLoads());
+
+        // cached
+        factory.getConnection("context1").close();
+        assertEquals(2, factory.getLoads());
+        assertEquals(1, factory.getHits());
+
+        // evicted
+        factory.getConnection("context3").close();
+        assertEquals(1, factory.getEvictions());
+        assertEquals(2, factory.size());
+
+        // invalidated by a new ACL version
+        factory.advanceVersion();
+        factory.getConnection("context3").close();
+        assertEquals(4, factory.getLoads());
+        factory.getConnection("context3").close();
+        assertEquals(4, factory.getLoads());
+    }
+
+    public void testInvalidationDuringLoad() throws Exception {
+        final URI[] acl = new URI[]{CONTEXT1_RW};
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch invalidated = new CountDownLatch(1);
+
+        // the first load is held up until the principal has been invalidated
+        TenantConnectionFactory.PermissionLoader loader = new TenantConnectionFactory.PermissionLoader() {
+            private boolean first = true;
+
+            public TenantPermissions load(final String principal) throws SailException {
+                URI graph;
+                boolean wait;
+                synchronized (this) {
+                    graph = acl[0];
+                    wait = first;
+                    first = false;
+                }
+
+                if (wait) {
+                    loading.countDown();
+                    try {
+                        invalidated.await();
+                    } catch (InterruptedException e) {
+                        throw new SailException(e);
+                    }
+                }
+
+                PermissionSet graphs = PermissionSet.empty().with(graph);
+                return new TenantPermissions(graphs, graphs, null);
+            }
+        };
+        final TenantConnectionFactory factory = new TenantConnectionFactory(baseSail, loader);
+
+        final TenantPermissions[] stale = new TenantPermissions[1];
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    stale[0] = factory.getPermissions("arthur");
+                } catch (SailException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        t.start();
+
+        // the ACL changes while the old permissions are being loaded
+        loading.await();
+        synchronized (loader) {
+            acl[0] = CONTEXT2_R;
+        }
+        factory.invalidate("arthur");
+        invalidated.countDown();
+        t.join();
+
+        assertTrue(stale[0].getReadable().contains(CONTEXT1_RW));
+        assertEquals(0, factory.size());
+
+        // the permissions loaded before the invalidation were not cached
+        TenantPermissions current = factory.getPermissions("arthur");
+        assertTrue(current.getReadable().contains(CONTEXT2_R));
+        assertFalse(current.getReadable().contains(CONTEXT1_RW));
+        assertEquals(2, factory.getLoads());
+
+        // permissions loaded after the invalidation are cached as usual
+        assertSame(current, factory.getPermissions("arthur"));
+        assertEquals(2, factory.getLoads());
+    }
+
+    public void testSizeCounting() throws Exception {
+        SailConnection sc = baseSail.getConnection();
+        sc.begin();
+        sc.addStatement(RDF.TYPE, RDF.TYPE, RDF.TYPE, CONTEXT1_RW, CONTEXT2_R, CONTEXT3_W);
+        sc.commit();
+        sc.close();
+
+        sc = constrainedSail.getConnection();
+        assertEquals(0, sc.size());
+        sc.close();
+
+        ContextSizes sizes = constrainedSail.enableSizeCounting();
+
+        // wildcard size is the size of the readable graphs
+        sc = constrainedSail.getConnection();
+        assertEquals(2, sc.size());
+        assertEquals(1, sc.size(CONTEXT1_RW));
+        assertEquals(0, sc.size(CONTEXT3_W));
+
+        // uncommitted changes are visible to their own connection
+        sc.begin();
+        sc.addStatement(RDF.TYPE, RDF.TYPE, RDF.PROPERTY, CONTEXT1_RW);
+        sc.addStatement(RDF.TYPE, RDF.TYPE, RDF.TYPE, CONTEXT1_RW);
+        assertEquals(2, sc.size(CONTEXT1_RW));
+        sc.commit();
+        assertEquals(2, sc.size(CONTEXT1_RW));
+        assertEquals(3, sc.size());
+
+        // a rolled-back change is not counted
+        sc.begin();
+        sc.addStatement(RDF.PROPERTY, RDF.TYPE, RDF.PROPERTY, CONTEXT1_RW);
+        sc.rollback();
+        assertEquals(2, sc.size(CONTEXT1_RW));
+
+        // removal of a fully bound statement, then of a pattern
+        sc.begin();
+        sc.removeStatements(RDF.TYPE, RDF.TYPE, RDF.PROPERTY, CONTEXT1_RW);
+        sc.commit();
+        assertEquals(1, sc.size(CONTEXT1_RW));
+        sc.begin();
+        sc.removeStatements(null, RDF.TYPE, null, CONTEXT1_RW);
+        sc.commit();
+        assertEquals(0, sc.size(CONTEXT1_RW));
+        sc.close();
+
+        // a change to the base store is seen once the counts are reconciled
+        sc = baseSail.getConnection();
+        sc.begin();
+        sc.addStatement(RDF.TYPE, RDF.TYPE, RDF.PROPERTY, CONTEXT2_R);
+        sc.commit();
+        sc.close();
+        sc = constrainedSail.getConnection();
+        assertEquals(1, sc.size(CONTEXT2_R));
+        sizes.reconcile();
+        assertEquals(2, sc.size(CONTEXT2_R));
+        sc.close();
+    }
+
+    public void testSizeCountingConcurrentWithCommits() throws Exception {
+        final ContextSizes sizes = constrainedSail.enableSizeCounting();
+        SailConnection sc = baseSail.getConnection();
+        sc.begin();
+        sc.addStatement(RDF.TYPE, RDF.TYPE, RDF.TYPE, CONTEXT1_RW);
+        sc.commit();
+        sc.close();
+
+        // a count which is taken before a commit, but would be kept only after the commit
+        final CountDownLatch counted = new CountDownLatch(1);
+        final CountDownLatch committed = new CountDownLatch(1);
+        final SailConnection slow = new SailConnectionWrapper(baseSail.getConnection()) {
+            @Override
+            public long size(final Resource... contexts) throws SailException {
+                long size = super.size(contexts);
+                counted.countDown();
+                try {
+                    committed.await();
+                } catch (InterruptedException e) {
+                    throw new SailException(e);
+                }
+                return size;
+            }
+        };
+        final long[] count = new long[]{-1};
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    count[0] = sizes.size(CONTEXT1_RW, slow);
+                } catch (SailException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        t.start();
+        counted.await();
+
+        sc = constrainedSail.getConnection();
+        sc.begin();
+        sc.addStatement(RDF.TYPE, RDF.TYPE, RDF.PROPERTY, CONTEXT1_RW);
+        sc.commit();
+        committed.countDown();
+        t.join(10000);
+        assertFalse(t.isAlive());
+        slow.close();
+
+        // the old count is returned to its caller, but the addition is not lost
+        assertEquals(1, count[0]);
+        assertEquals(2, sc.size(CONTEXT1_RW));
+        sc.close();
+
+        // a count which is taken after the base store has committed a change, but before the change is applied
+        SailConnection base = baseSail.getConnection();
+        ContextSizes.Changes changes = sizes.new Changes();
+        changes.added(CONTEXT2_R);
+        changes.beginCommit();
+        base.begin();
+        base.addStatement(RDF.TYPE, RDF.TYPE, RDF.TYPE, CONTEXT2_R);
+        base.commit();
+        assertEquals(1, sizes.size(CONTEXT2_R, base));
+        changes.endCommit(true);
+
+        // the addition is not counted twice
+        assertEquals(1, sizes.size(CONTEXT2_R, base));
+        base.close();
+    }
+
+    private int countSolutions(final CloseableIteration<? extends BindingSet, QueryEvaluationException> iter)
+            throws QueryEvaluationException {
+        int c = 0;
+        try {
+            while (iter.hasNext()) {
+                c++;
+                iter.next();
+            }
+        } finally {
+            iter.close();
+        }
+
+        return c;
+    }
+
     private int count(final CloseableIteration<? extends Statement, SailException> iter) throws SailException {
         int c = 0;
 //System.out.println("...");
@@ -119,4 +686,27 @@ public class ConstrainedSailTest extends TestCase {
 
         return c;
     }
+
+    // A sail which records the contexts of each read from its base sail
+    private static class ReadRecordingSail extends SailWrapper {
+        private final List<List<Resource>> reads
+                = Collections.synchronizedList(new LinkedList<List<Resource>>());
+
+        private ReadRecordingSail(final Sail baseSail) {
+            super(baseSail);
+        }
+
+        @Override
+        public SailConnection getConnection() throws SailException {
+            return new SailConnectionWrapper(getBaseSail().getConnection()) {
+                @Override
+                public CloseableIteration<? extends Statement, SailException> getStatements(
+                        final Resource subj, final URI pred, final Value obj, final boolean includeInferred,
+                        final Resource... contexts) throws SailException {
+                    reads.add(Arrays.asList(contexts));
+                    return super.getStatements(subj, pred, obj, includeInferred, contexts);
+                }
+            };
+        }
+    }
 }
@@ -0,0 +1,119 @@
+
+package net.fortytwo.sesametools.constrained;
+
+import info.aduna.iteration.CloseableIteration;
+import org.openrdf.model.URI;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.vocabulary.RDF;
+import org.openrdf.model.vocabulary.RDFS;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.QueryLanguage;
+import org.openrdf.query.impl.DatasetImpl;
+import org.openrdf.query.impl.EmptyBindingSet;
+import org.openrdf.query.parser.ParsedQuery;
+import org.openrdf.query.parser.QueryParserUtil;
+import org.openrdf.sail.Sail;
+import org.openrdf.sail.SailConnection;
+import org.openrdf.sail.memory.MemoryStore;
+
+/**
+ * Compares the time taken to evaluate a few typical queries through a ConstrainedSail with each of its query
+ * evaluation modes, for a requestor who may read a small fraction of many named graphs.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class QueryEvaluationModeBenchmark {
+    private static final int
+            GRAPHS = 1000,
+            READABLE_GRAPHS = 10,
+            STATEMENTS_PER_GRAPH = 100,
+            WARMUP_ITERATIONS = 5,
+            ITERATIONS = 20;
+
+    private static final String[] QUERIES = new String[]{
+            // a scan of all visible statements
+            "SELECT ?s ?o WHERE { ?s <" + RDFS.LABEL + "> ?o }",
+            // a join
+            "SELECT ?s ?o WHERE { ?s a ?t . ?s <" + RDFS.LABEL + "> ?o }",
+            // a selective lookup
+            "SELECT ?o WHERE { <http://example.org/thing5> <" + RDFS.LABEL + "> ?o }",
+            // graph names
+            "SELECT DISTINCT ?g WHERE { GRAPH ?g { ?s ?p ?o } }"
+    };
+
+    public static void main(final String[] args) throws Exception {
+        Sail baseSail = new MemoryStore();
+        baseSail.initialize();
+        ValueFactory vf = baseSail.getValueFactory();
+
+        SailConnection sc = baseSail.getConnection();
+        try {
+            sc.begin();
+            for (int g = 0; g < GRAPHS; g++) {
+                URI graph = vf.createURI("http://example.org/graph" + g);
+                for (int i = 0; i < STATEMENTS_PER_GRAPH; i++) {
+                    URI thing = vf.createURI("http://example.org/thing" + i);
+                    sc.addStatement(thing, RDF.TYPE, RDFS.RESOURCE, graph);
+                    sc.addStatement(thing, RDFS.LABEL, vf.createLiteral("thing " + i + " in graph " + g), graph);
+                }
+            }
+            sc.commit();
+        } finally {
+            sc.close();
+        }
+
+        DatasetImpl readable = new DatasetImpl();
+        for (int g = 0; g < READABLE_GRAPHS; g++) {
+            readable.addDefaultGraph(vf.createURI("http://example.org/graph" + (g * (GRAPHS / READABLE_GRAPHS))));
+        }
+        ConstrainedSail sail = new ConstrainedSail(baseSail, readable, new DatasetImpl(), null, false);
+        sail.initialize();
+
+        for (String query : QUERIES) {
+            ParsedQuery parsed = QueryParserUtil.parseQuery(QueryLanguage.SPARQL, query, null);
+            System.out.println(query);
+
+            for (ConstrainedSail.QueryEvaluationMode mode : ConstrainedSail.QueryEvaluationMode.values()) {
+                sail.setEvaluationMode(mode);
+
+                long solutions = 0;
+                long time = 0;
+                for (int i = 0; i < WARMUP_ITERATIONS + ITERATIONS; i++) {
+                    SailConnection c = sail.getConnection();
+                    try {
+                        long start = System.nanoTime();
+                        solutions = count(c.evaluate(parsed.getTupleExpr(), parsed.getDataset(),
+                                EmptyBindingSet.getInstance(), false));
+                        if (i >= WARMUP_ITERATIONS) {
+                            time += System.nanoTime() - start;
+                        }
+                    } finally {
+                        c.close();
+                    }
+                }
+
+                System.out.println("\t" + mode + ": " + (time / ITERATIONS / 1000) + "us per query ("
+                        + solutions + " solutions)");
+            }
+        }
+
+        sail.shutDown();
+        baseSail.shutDown();
+    }
+
+    private static long count(final CloseableIteration<? extends BindingSet, QueryEvaluationException> iter)
+            throws QueryEvaluationException {
+        long c = 0;
+        try {
+            while (iter.hasNext()) {
+                iter.next();
+                c++;
+            }
+        } finally {
+            iter.close();
+        }
+
+        return c;
+    }
+}
@@ -0,0 +1,104 @@
+package net.fortytwo.sesametools.ldserver;
+
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.rio.RDFHandler;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.sail.SailConnection;
+import org.openrdf.sail.SailException;
+
+/**
+ * An <code>RDFHandler</code> which adds received statements to a data store as they arrive,
+ * so that an upload is never held in memory by the handler.
+ * Statements are committed together when the document ends or, optionally, after every so many statements,
+ * so that an upload of any size is not held in a single transaction of the data store either.
+ * <p>
+ * The caller owns the connection: it must roll back and close it if parsing fails.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class BatchedSailWriter implements RDFHandler {
+    private final SailConnection connection;
+    private final int commitInterval;
+    private final Resource[] contexts;
+
+    private long count = 0;
+
+    /**
+     * @param connection     a connection to the data store.  If it is not already in a transaction,
+     *                       a transaction is begun when the handler receives <code>startRDF</code>.
+     * @param commitInterval the number of statements after which to commit.
+     *                       If not positive, all statements are added in a single transaction.
+     * @param contexts       the named graphs to which to add statements.
+     *                       If none are given, each statement is added to its own context.
+     */
+    public BatchedSailWriter(final SailConnection connection,
+                             final int commitInterval,
+                             final Resource... contexts) {
+        this.connection = connection;
+        this.commitInterval = commitInterval;
+        this.contexts = contexts;
+    }
+
+    /**
+     * @return the number of statements received so far
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public void startRDF() throws RDFHandlerException {
+        try {
+            if (!connection.isActive()) {
+                connection.begin();
+            }
+        } catch (SailException e) {
+            throw new RDFHandlerException(e);
+        }
+    }
+
+    public void endRDF() throws RDFHandlerException {
+        try {
+            connection.commit();
+        } catch (SailException e) {
+            throw new RDFHandlerException(e);
+        }
+    }
+
+    public void handleNamespace(final String prefix,
+                                final String uri) throws RDFHandlerException {
+        try {
+            // namespaces of the data store are not overridden by those of an uploaded document
+            if (null == connection.getNamespace(prefix)) {
+                connection.setNamespace(prefix, uri);
+            }
+        } catch (SailException e) {
+            throw new RDFHandlerException(e);
+        }
+    }
+
+    public void handleStatement(final Statement statement) throws RDFHandlerException {
+        try {
+            if (0 == contexts.length) {
+                connection.addStatement(
+                        statement.getSubject(), statement.getPredicate(), statement.getObject(),
+                        statement.getContext());
+            } else {
+                connection.addStatement(
+                        statement.getSubject(), statement.getPredicate(), statement.getObject(), contexts);
+            }
+
+            count++;
+            if (commitInterval > 0 && 0 == count % commitInterval) {
+                connection.commit();
+                connection.begin();
+            }
+        } catch (SailException e) {
+            throw new RDFHandlerException(e);
+        }
+    }
+
+    public void handleComment(final String comment) throws RDFHandlerException {
+        // Do nothing.
+    }
+}
@@ -0,0 +1,313 @@
+package net.fortytwo.sesametools.ldserver;
+
+import org.openrdf.sail.Sail;
+import org.openrdf.sail.SailConnection;
+import org.openrdf.sail.SailException;
+import org.openrdf.sail.helpers.SailConnectionWrapper;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A bounded pool of read connections to a data store.
+ * Opening a connection is expensive for some stores (e.g. a remote repository or a native store),
+ * so connections are kept open between requests and reused.
+ * <p>
+ * A connection is borrowed with <code>getConnection</code> and given back by closing it, as usual.
+ * At most a fixed number of connections are in use at any one time;
+ * a request for a further connection waits for one to be given back, up to a time limit.
+ * Before a connection is reused, it is checked: a connection which has been closed underneath the pool,
+ * which is still in a transaction, or which has been idle for too long, is closed and replaced.
+ * <p>
+ * Pooled connections are intended for reading.
+ * A caller which begins a transaction must commit or roll it back before giving back the connection.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class ConnectionPool {
+    private static final Logger logger = Logger.getLogger(ConnectionPool.class.getName());
+
+    private final Sail sail;
+    private final Semaphore permits;
+    private final int maxConnections;
+    private final ConcurrentLinkedQueue<IdleConnection> idle = new ConcurrentLinkedQueue<IdleConnection>();
+
+    private volatile long borrowTimeout;
+    private volatile long maxIdleTime;
+    private volatile boolean closed = false;
+
+    private final AtomicLong
+            borrowed = new AtomicLong(0),
+            created = new AtomicLong(0),
+            discarded = new AtomicLong(0),
+            timeouts = new AtomicLong(0),
+            totalWaitTime = new AtomicLong(0);
+
+    /**
+     * @param sail           the data store
+     * @param maxConnections the maximum number of connections in use at any one time
+     * @param borrowTimeout  the maximum time, in milliseconds, to wait for a connection to become available
+     * @param maxIdleTime    the maximum time, in milliseconds, for which a connection may remain unused
+     *                       before it is closed rather than reused.  If not positive, idle connections are kept.
+     */
+    public ConnectionPool(final Sail sail,
+                          final int maxConnections,
+                          final long borrowTimeout,
+                          final long maxIdleTime) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("at least one connection is required");
+        }
+
+        this.sail = sail;
+        this.maxConnections = maxConnections;
+        this.permits = new Semaphore(maxConnections, true);
+        this.borrowTimeout = borrowTimeout;
+        this.maxIdleTime = maxIdleTime;
+    }
+
+    /**
+     * Borrows a connection from the pool, opening a new one if no idle connection is available.
+     * The connection is given back to the pool when it is closed.
+     *
+     * @return a connection to the data store
+     * @throws SailException if a new connection cannot be opened,
+     *                       or (as a <code>BorrowTimeoutException</code>) if no connection becomes available in time
+     */
+    public SailConnection getConnection() throws SailException {
+        if (closed) {
+            throw new SailException("connection pool has been closed");
+        }
+
+        long start = System.currentTimeMillis();
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            throw new SailException(e);
+        }
+        totalWaitTime.addAndGet(System.currentTimeMillis() - start);
+
+        if (!acquired) {
+            timeouts.incrementAndGet();
+            throw new BorrowTimeoutException("no connection became available within " + borrowTimeout + "ms");
+        }
+
+        try {
+            SailConnection c = takeIdle();
+            if (null == c) {
+                c = sail.getConnection();
+                created.incrementAndGet();
+            }
+
+            borrowed.incrementAndGet();
+            return new PooledConnection(c);
+        } catch (SailException e) {
+            permits.release();
+            throw e;
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Closes all idle connections.  Connections in use are closed as they are given back.
+     * The pool may not be used afterwards.
+     */
+    public void close() {
+        closed = true;
+
+        IdleConnection i;
+        while (null != (i = idle.poll())) {
+            discard(i.connection);
+        }
+    }
+
+    /**
+     * @return the maximum number of connections in use at any one time
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * @return the number of connections currently in use
+     */
+    public int getActive() {
+        return maxConnections - permits.availablePermits();
+    }
+
+    /**
+     * @return the number of open connections currently available for reuse
+     */
+    public int getIdle() {
+        return idle.size();
+    }
+
+    /**
+     * @return the number of connections borrowed since the pool was created
+     */
+    public long getBorrowed() {
+        return borrowed.get();
+    }
+
+    /**
+     * @return the number of connections opened since the pool was created.
+     * The difference between this number and the number borrowed is the number of times a connection was reused.
+     */
+    public long getCreated() {
+        return created.get();
+    }
+
+    /**
+     * @return the number of connections closed by the pool, e.g. because they failed a health check
+     */
+    public long getDiscarded() {
+        return discarded.get();
+    }
+
+    /**
+     * @return the number of requests for a connection which timed out
+     */
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    /**
+     * @return the total time, in milliseconds, spent waiting for a connection to become available
+     */
+    public long getTotalWaitTime() {
+        return totalWaitTime.get();
+    }
+
+    public long getBorrowTimeout() {
+        return borrowTimeout;
+    }
+
+    /**
+     * @param borrowTimeout the maximum time, in milliseconds, to wait for a connection to become available
+     */
+    public void setBorrowTimeout(final long borrowTimeout) {
+        this.borrowTimeout = borrowTimeout;
+    }
+
+    public long getMaxIdleTime() {
+        return maxIdleTime;
+    }
+
+    /**
+     * @param maxIdleTime the maximum time, in milliseconds, for which a connection may remain unused
+     *                    before it is closed rather than reused.  If not positive, idle connections are kept.
+     */
+    public void setMaxIdleTime(final long maxIdleTime) {
+        this.maxIdleTime = maxIdleTime;
+    }
+
+    // Returns a healthy idle connection, or null if there is none.  Unhealthy connections are discarded.
+    private SailConnection takeIdle() {
+        long now = System.currentTimeMillis();
+
+        IdleConnection i;
+        while (null != (i = idle.poll())) {
+            if (maxIdleTime > 0 && now - i.since > maxIdleTime) {
+                discard(i.connection);
+            } else if (isHealthy(i.connection)) {
+                return i.connection;
+            } else {
+                discard(i.connection);
+            }
+        }
+
+        return null;
+    }
+
+    private boolean isHealthy(final SailConnection c) {
+        try {
+            return c.isOpen() && !c.isActive();
+        } catch (SailException e) {
+            return false;
+        }
+    }
+
+    private void giveBack(final SailConnection c) {
+        try {
+            if (closed) {
+                discard(c);
+                return;
+            }
+
+            // a connection left in a transaction is rolled back, rather than passed on to the next caller
+            try {
+                if (c.isOpen() && c.isActive()) {
+                    c.rollback();
+                }
+            } catch (SailException e) {
+                logger.log(Level.WARNING, "failed to roll back pooled connection", e);
+            }
+
+            if (isHealthy(c)) {
+                idle.add(new IdleConnection(c, System.currentTimeMillis()));
+            } else {
+                discard(c);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void discard(final SailConnection c) {
+        discarded.incrementAndGet();
+        try {
+            if (c.isOpen()) {
+                c.close();
+            }
+        } catch (SailException e) {
+            logger.log(Level.WARNING, "failed to close pooled connection", e);
+        }
+    }
+
+    /**
+     * Signals that no connection became available within the borrow timeout of a pool
+     */
+    public static class BorrowTimeoutException extends SailException {
+        public BorrowTimeoutException(final String message) {
+            super(message);
+        }
+    }
+
+    private static class IdleConnection {
+        private final SailConnection connection;
+        private final long since;
+
+        private IdleConnection(final SailConnection connection,
+                               final long since) {
+            this.connection = connection;
+            this.since = since;
+        }
+    }
+
+    private class PooledConnection extends SailConnectionWrapper {
+        private final AtomicBoolean returned = new AtomicBoolean(false);
+
+        private PooledConnection(final SailConnection baseConnection) {
+            super(baseConnection);
+        }
+
+        @Override
+        public boolean isOpen() throws SailException {
+            return !returned.get() && super.isOpen();
+        }
+
+        @Override
+        public void close() throws SailException {
+            if (returned.compareAndSet(false, true)) {
+                giveBack(getWrappedConnection());
+            }
+        }
+    }
+}
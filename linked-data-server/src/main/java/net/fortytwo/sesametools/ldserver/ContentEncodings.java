@@ -0,0 +1,108 @@
+package net.fortytwo.sesametools.ldserver;
+
+import org.restlet.Request;
+import org.restlet.Response;
+import org.restlet.data.Dimension;
+import org.restlet.data.Encoding;
+import org.restlet.data.Preference;
+import org.restlet.engine.application.EncodeRepresentation;
+import org.restlet.representation.Representation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Negotiation of the content codings (gzip and deflate) of RDF and SPARQL responses.
+ * Serialized RDF is highly redundant text, so compression reduces the size of a typical response many times over.
+ * Representations are compressed as they are written, so a response is never held in memory for compression.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class ContentEncodings {
+
+    /**
+     * Chooses a content coding for the response to a request, according to its Accept-Encoding header.
+     * Where the client accepts gzip and deflate equally, gzip is preferred.
+     * The response is marked as varying with the Accept-Encoding header in any case,
+     * so that shared caches do not serve a compressed entity to a client which cannot decode it.
+     *
+     * @param request  an HTTP request
+     * @param response the response to the request
+     * @return either <code>Encoding.GZIP</code> or <code>Encoding.DEFLATE</code>,
+     * or null if the response is not to be compressed
+     */
+    public static Encoding negotiate(final Request request,
+                                     final Response response) {
+        response.getDimensions().add(Dimension.ENCODING);
+
+        List<Preference<Encoding>> accepted = request.getClientInfo().getAcceptedEncodings();
+        if (null == accepted) {
+            return null;
+        }
+
+        Encoding best = null;
+        float bestQuality = 0;
+        for (Preference<Encoding> p : accepted) {
+            Encoding e = p.getMetadata();
+            float q = p.getQuality();
+
+            if (Encoding.ALL.equals(e)) {
+                e = Encoding.GZIP;
+            } else if (!Encoding.GZIP.equals(e) && !Encoding.DEFLATE.equals(e)) {
+                continue;
+            }
+
+            if (q > bestQuality || (q == bestQuality && q > 0 && Encoding.GZIP.equals(e))) {
+                best = e;
+                bestQuality = q;
+            }
+        }
+
+        return best;
+    }
+
+    /**
+     * Applies a content coding to an entity
+     *
+     * @param representation the entity to encode.  May be null.
+     * @param encoding       the content coding, as chosen by <code>negotiate</code>.
+     *                       If null, the entity is not encoded.
+     * @return a representation which compresses the given entity as it is written,
+     * or the given entity if no coding applies
+     */
+    public static Representation encode(final Representation representation,
+                                        final Encoding encoding) {
+        if (null == representation || null == encoding) {
+            return representation;
+        }
+
+        return new EncodeRepresentation(encoding, representation);
+    }
+
+    /**
+     * Compresses a serialized document in memory, e.g. for the purpose of caching the result
+     *
+     * @param data     the document to compress
+     * @param encoding either <code>Encoding.GZIP</code> or <code>Encoding.DEFLATE</code>
+     * @return the compressed document
+     * @throws IOException if compression fails
+     */
+    public static byte[] compress(final byte[] data,
+                                  final Encoding encoding) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length / 4 + 64);
+        OutputStream out = Encoding.GZIP.equals(encoding)
+                ? new GZIPOutputStream(bos)
+                : new DeflaterOutputStream(bos);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+
+        return bos.toByteArray();
+    }
+}
@@ -0,0 +1,322 @@
+package net.fortytwo.sesametools.ldserver;
+
+import info.aduna.iteration.CloseableIteration;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.sail.SailConnection;
+import org.openrdf.sail.SailException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A persistent index from resources to the named graphs in which they appear, as the subject or object of a
+ * statement.  This allows the graphs which mention a resource to be found in time proportional to the number of
+ * graphs, rather than to the number of statements about the resource.
+ * <p>
+ * The index only grows as statements are added, so it may contain graphs from which a resource has since been
+ * removed.  Callers verify each graph against the data store and <code>prune</code> those which no longer
+ * mention the resource.
+ * Only URIs are indexed, both as resources and as graphs.
+ * <p>
+ * The whole index is held in memory, as one entry per pair of resource and graph, and nothing bounds its size but
+ * the number of such pairs: for a data store with many resources in many graphs, it may need a great deal of heap.
+ * The index is loaded in full when it is opened.
+ * New entries are appended to a log file as they are added, and the file is compacted when the index is closed.
+ * An entry cut short at the end of the log, e.g. by a crash, is discarded when the index is opened.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class ContextIndex {
+    private static final Logger logger = Logger.getLogger(ContextIndex.class.getName());
+
+    private static final String UTF_8 = "UTF-8";
+
+    private final File file;
+    private final ConcurrentMap<String, ConcurrentMap<String, Long>> contextsByResource
+            = new ConcurrentHashMap<String, ConcurrentMap<String, Long>>();
+
+    // each batch of additions has a new version, so that an entry re-added while it is being pruned is kept
+    private final AtomicLong version = new AtomicLong(0);
+
+    private DataOutputStream log;
+
+    /**
+     * @param file the file in which the index is persisted.  It is created if it does not exist.
+     */
+    public ContextIndex(final File file) {
+        this.file = file;
+    }
+
+    /**
+     * @return whether a persisted index exists, which <code>open</code> will load
+     */
+    public boolean exists() {
+        return file.exists();
+    }
+
+    /**
+     * Loads the persisted index, if any, and opens the log for further entries
+     *
+     * @throws IOException if the index cannot be read or the log cannot be opened
+     */
+    public synchronized void open() throws IOException {
+        if (file.exists()) {
+            long valid = load();
+
+            // further entries must follow the last complete entry, or the log could not be read past this point
+            if (valid < file.length()) {
+                logger.warning("discarding incomplete entry at the end of context index log " + file);
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    raf.setLength(valid);
+                } finally {
+                    raf.close();
+                }
+            }
+        }
+
+        log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+    }
+
+    /**
+     * Builds the index from scratch, by reading every named graph in the data store
+     *
+     * @param c a connection to the data store
+     * @throws SailException if the data store cannot be read
+     */
+    public void rebuild(final SailConnection c) throws SailException {
+        long start = System.currentTimeMillis();
+        long count = 0;
+
+        CloseableIteration<? extends Resource, SailException> contexts = c.getContextIDs();
+        try {
+            while (contexts.hasNext()) {
+                Resource context = contexts.next();
+                if (!(context instanceof URI)) {
+                    continue;
+                }
+
+                CloseableIteration<? extends Statement, SailException> statements
+                        = c.getStatements(null, null, null, false, context);
+                try {
+                    while (statements.hasNext()) {
+                        Statement st = statements.next();
+                        add(st.getSubject(), st.getObject(), (URI) context, 0);
+                        count++;
+                    }
+                } finally {
+                    statements.close();
+                }
+            }
+        } finally {
+            contexts.close();
+        }
+
+        flush();
+        logger.info("indexed " + count + " statements in named graphs in "
+                + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * @param resource a resource, e.g. the subject of a resource description
+     * @return the graphs in which the resource may appear, each with the version under which it was added.
+     * The map may not be modified.
+     */
+    public Map<String, Long> getContexts(final String resource) {
+        Map<String, Long> contexts = contextsByResource.get(resource);
+        return null == contexts ? Collections.<String, Long>emptyMap() : Collections.unmodifiableMap(contexts);
+    }
+
+    /**
+     * Removes a graph in which a resource no longer appears
+     *
+     * @param resource the resource
+     * @param context  the graph
+     * @param version  the version of the entry, as found by <code>getContexts</code>.
+     *                 If the entry has been added again since, it is not removed.
+     * @return whether the entry was removed
+     */
+    public boolean prune(final String resource,
+                         final String context,
+                         final long version) {
+        Map<String, Long> contexts = contextsByResource.get(resource);
+        return null != contexts && contexts.remove(context, version);
+    }
+
+    /**
+     * Adds the graphs in which resources have appeared, e.g. in a committed transaction
+     *
+     * @param contextsByResource a map of resources to the graphs in which they appear
+     */
+    public void addAll(final Map<String, Set<String>> contextsByResource) {
+        if (contextsByResource.isEmpty()) {
+            return;
+        }
+
+        long v = version.incrementAndGet();
+        for (Map.Entry<String, Set<String>> e : contextsByResource.entrySet()) {
+            for (String context : e.getValue()) {
+                add(e.getKey(), context, v);
+            }
+        }
+
+        flush();
+    }
+
+    /**
+     * @return the number of resources in the index
+     */
+    public int size() {
+        return contextsByResource.size();
+    }
+
+    /**
+     * Compacts the persisted index and closes its log.  The index may not be modified afterwards.
+     *
+     * @throws IOException if the index cannot be written
+     */
+    public synchronized void close() throws IOException {
+        if (null != log) {
+            log.close();
+            log = null;
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            for (Map.Entry<String, ConcurrentMap<String, Long>> e : contextsByResource.entrySet()) {
+                for (String context : e.getValue().keySet()) {
+                    writeEntry(out, e.getKey(), context);
+                }
+            }
+        } finally {
+            out.close();
+        }
+
+        if ((file.exists() && !file.delete()) || !tmp.renameTo(file)) {
+            throw new IOException("failed to replace " + file + " with compacted index");
+        }
+    }
+
+    private void add(final Resource subject,
+                     final Value object,
+                     final URI context,
+                     final long version) {
+        if (subject instanceof URI) {
+            add(subject.stringValue(), context.stringValue(), version);
+        }
+        if (object instanceof URI) {
+            add(object.stringValue(), context.stringValue(), version);
+        }
+    }
+
+    private void add(final String resource,
+                     final String context,
+                     final long version) {
+        ConcurrentMap<String, Long> contexts = contextsByResource.get(resource);
+        if (null == contexts) {
+            ConcurrentMap<String, Long> newContexts = new ConcurrentHashMap<String, Long>();
+            contexts = contextsByResource.putIfAbsent(resource, newContexts);
+            if (null == contexts) {
+                contexts = newContexts;
+            }
+        }
+
+        if (null == contexts.put(context, version)) {
+            synchronized (this) {
+                if (null != log) {
+                    try {
+                        writeEntry(log, resource, context);
+                    } catch (IOException e) {
+                        // the entry remains in memory, and is persisted when the index is compacted
+                        logger.log(Level.WARNING, "failed to log context index entry", e);
+                    }
+                }
+            }
+        }
+    }
+
+    private synchronized void flush() {
+        if (null != log) {
+            try {
+                log.flush();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "failed to flush context index log", e);
+            }
+        }
+    }
+
+    // Returns the length of the log up to the end of its last complete entry
+    private long load() throws IOException {
+        long length = file.length();
+        long valid = 0;
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            while (valid < length) {
+                byte[] resource, context;
+                try {
+                    resource = readBytes(in, length - valid);
+                    context = readBytes(in, length - valid - 4 - resource.length);
+                } catch (EOFException e) {
+                    // an entry cut short by a crash
+                    break;
+                }
+
+                add(new String(resource, UTF_8), new String(context, UTF_8), 0);
+                valid += 8 + resource.length + context.length;
+            }
+        } finally {
+            in.close();
+        }
+
+        return valid;
+    }
+
+    private void writeEntry(final DataOutputStream out,
+                            final String resource,
+                            final String context) throws IOException {
+        writeString(out, resource);
+        writeString(out, context);
+    }
+
+    private void writeString(final DataOutputStream out,
+                             final String s) throws IOException {
+        byte[] bytes = s.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    // Reads a string, as written by writeString, which must lie within the given number of remaining bytes.
+    // The length of a string cut short is not to be trusted, so it is checked before anything is allocated.
+    private byte[] readBytes(final DataInputStream in,
+                             final long remaining) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > remaining - 4) {
+            throw new EOFException("entry extends past the end of the log");
+        }
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,82 @@
+package net.fortytwo.sesametools.ldserver;
+
+import org.openrdf.sail.Sail;
+import org.openrdf.sail.SailConnection;
+import org.openrdf.sail.SailException;
+import org.openrdf.sail.helpers.SailWrapper;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A <code>Sail</code> which maintains a <code>ContextIndex</code> of the named graphs in which resources appear,
+ * updating it as transactions are committed.
+ * A LinkedDataServer which publishes this Sail uses the index to link resource descriptions to graphs
+ * (with <code>rdfs:seeAlso</code>), rather than scanning the statements about each resource.
+ * <p>
+ * If the index file does not exist when the Sail is initialized, the index is built from the contents of the
+ * base Sail.  If the base Sail is modified other than through this Sail, the index file should be deleted,
+ * so that it is rebuilt.
+ * <p>
+ * The index is held in memory in its entirety (see <code>ContextIndex</code>), so it suits data stores in which the
+ * number of distinct pairs of resource and named graph fits comfortably in the heap.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class ContextIndexSail extends SailWrapper {
+    private final ContextIndex index;
+
+    /**
+     * @param baseSail  the data store to index
+     * @param indexFile the file in which to persist the index
+     */
+    public ContextIndexSail(final Sail baseSail,
+                            final File indexFile) {
+        super(baseSail);
+        this.index = new ContextIndex(indexFile);
+    }
+
+    /**
+     * @return the index of the named graphs in which resources appear
+     */
+    public ContextIndex getContextIndex() {
+        return index;
+    }
+
+    @Override
+    public void initialize() throws SailException {
+        super.initialize();
+
+        boolean exists = index.exists();
+        try {
+            index.open();
+        } catch (IOException e) {
+            throw new SailException(e);
+        }
+
+        if (!exists) {
+            SailConnection c = getBaseSail().getConnection();
+            try {
+                index.rebuild(c);
+            } finally {
+                c.close();
+            }
+        }
+    }
+
+    @Override
+    public void shutDown() throws SailException {
+        try {
+            index.close();
+        } catch (IOException e) {
+            throw new SailException(e);
+        } finally {
+            super.shutDown();
+        }
+    }
+
+    @Override
+    public SailConnection getConnection() throws SailException {
+        return new ContextIndexSailConnection(getBaseSail().getConnection(), index);
+    }
+}
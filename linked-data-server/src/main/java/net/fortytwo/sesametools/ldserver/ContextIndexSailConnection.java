@@ -0,0 +1,97 @@
+package net.fortytwo.sesametools.ldserver;
+
+import org.openrdf.model.Resource;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.sail.SailConnection;
+import org.openrdf.sail.SailException;
+import org.openrdf.sail.UpdateContext;
+import org.openrdf.sail.helpers.SailConnectionWrapper;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A connection which collects the named graphs in which resources appear as statements are added,
+ * and passes them to a <code>ContextIndex</code> once the transaction is committed
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class ContextIndexSailConnection extends SailConnectionWrapper {
+    private final ContextIndex index;
+    private final Map<String, Set<String>> added = new HashMap<String, Set<String>>();
+
+    public ContextIndexSailConnection(final SailConnection c,
+                                      final ContextIndex index) {
+        super(c);
+        this.index = index;
+    }
+
+    @Override
+    public void addStatement(final Resource subject, final URI predicate, final Value object,
+                             final Resource... contexts) throws SailException {
+        this.getWrappedConnection().addStatement(subject, predicate, object, contexts);
+
+        added(subject, object, contexts);
+    }
+
+    @Override
+    public void addStatement(final UpdateContext op,
+                             final Resource subject, final URI predicate, final Value object,
+                             final Resource... contexts) throws SailException {
+        this.getWrappedConnection().addStatement(op, subject, predicate, object, contexts);
+
+        added(subject, object, contexts);
+    }
+
+    @Override
+    public void commit() throws SailException {
+        this.getWrappedConnection().commit();
+
+        index.addAll(added);
+        added.clear();
+    }
+
+    @Override
+    public void rollback() throws SailException {
+        this.getWrappedConnection().rollback();
+
+        added.clear();
+    }
+
+    @Override
+    public void close() throws SailException {
+        added.clear();
+        super.close();
+    }
+
+    // Note: removals are not tracked.  Graphs which no longer mention a resource are pruned as they are found.
+    private void added(final Resource subject,
+                       final Value object,
+                       final Resource... contexts) {
+        for (Resource context : contexts) {
+            // statements in the default graph are not indexed
+            if (context instanceof URI) {
+                String c = context.stringValue();
+                if (subject instanceof URI) {
+                    contextsOf(subject.stringValue()).add(c);
+                }
+                if (object instanceof URI) {
+                    contextsOf(object.stringValue()).add(c);
+                }
+            }
+        }
+    }
+
+    private Set<String> contextsOf(final String resource) {
+        Set<String> contexts = added.get(resource);
+        if (null == contexts) {
+            contexts = new HashSet<String>();
+            added.put(resource, contexts);
+        }
+
+        return contexts;
+    }
+}
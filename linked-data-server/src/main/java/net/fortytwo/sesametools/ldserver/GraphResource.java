@@ -5,17 +5,27 @@ import org.openrdf.model.Namespace;
 import org.openrdf.model.Statement;
 import org.openrdf.model.URI;
 import org.openrdf.rio.RDFFormat;
+import org.openrdf.rio.RDFParseException;
+import org.openrdf.rio.RDFParser;
+import org.openrdf.rio.Rio;
 import org.openrdf.sail.Sail;
 import org.openrdf.sail.SailConnection;
 import org.openrdf.sail.SailException;
+import org.restlet.data.Encoding;
 import org.restlet.data.MediaType;
+import org.restlet.data.Status;
 import org.restlet.representation.Representation;
 import org.restlet.representation.Variant;
 import org.restlet.resource.Get;
+import org.restlet.resource.Post;
+import org.restlet.resource.Put;
+import org.restlet.resource.ResourceException;
 import org.restlet.resource.ServerResource;
 
+import java.io.IOException;
 import java.util.Collection;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -25,29 +35,166 @@ import java.util.logging.Logger;
  * the URI of the graph, without redirection.
  * <p>
  * This conforms to the common expectation that RDF documents and corresponding named graphs have the same URI.
+ * <p>
+ * If the server accepts updates, a graph may also be replaced (with PUT) or added to (with POST) by uploading an
+ * RDF document, as in the SPARQL 1.1 Graph Store HTTP Protocol.
+ * Uploads are streamed into the data store, and each is committed in a single transaction, so that an upload which
+ * fails leaves the graph as it was.  Very large uploads may instead be committed in batches
+ * (see <code>LinkedDataServer.setUpdateCommitInterval</code>).
  *
  * @author Joshua Shinavier (http://fortytwo.net)
  */
 public class GraphResource extends ServerResource {
     private static final Logger logger = Logger.getLogger(GraphResource.class.getName());
 
+    private static final String ROUTE = "graph";
+
     protected String selfURI;
 
+    protected LinkedDataServer server;
     protected Sail sail;
+    protected ConnectionPool connectionPool;
 
     public GraphResource() {
         super();
 
         getVariants().addAll(RDFMediaTypes.getRDFVariants());
+    }
 
-        sail = LinkedDataServer.getInstance().getSail();
+    @Override
+    protected void doInit() throws ResourceException {
+        super.doInit();
+
+        // the context of the resource is only available once it has been initialized
+        server = LinkedDataServer.getInstance(getContext());
+        sail = server.getSail();
+        connectionPool = server.getConnectionPool();
+    }
+
+    /**
+     * Selects a variant using the precomputed RDF negotiation table rather than the generic Restlet algorithm
+     */
+    @Override
+    protected Variant getPreferredVariant(final List<Variant> variants) {
+        RDFFormat f = RDFMediaTypes.negotiate(getRequest().getClientInfo().getAcceptedMediaTypes());
+        return null == f ? null : RDFMediaTypes.findVariant(f);
     }
 
     @Override
     @Get
     public Representation get(final Variant entity) {
+        ServerMetrics metrics = server.getMetrics();
+        long start = metrics.requestStarted(ROUTE);
+        Representation result = null;
+        try {
+            result = represent(entity);
+        } catch (RuntimeException e) {
+            metrics.requestFailed(ROUTE);
+            throw e;
+        } finally {
+            result = metrics.requestHandled(ROUTE, start, result);
+        }
+
+        return result;
+    }
+
+    /**
+     * Replaces the contents of this graph with the statements of an uploaded RDF document
+     */
+    @Put
+    public Representation put(final Representation entity) {
+        return upload(entity, true);
+    }
+
+    /**
+     * Adds the statements of an uploaded RDF document to this graph
+     */
+    @Post
+    public Representation post(final Representation entity) {
+        return upload(entity, false);
+    }
+
+    private Representation upload(final Representation entity,
+                                  final boolean replace) {
+        server.authorizeUpdate(getRequest(), getResponse());
+
+        if (null == entity) {
+            throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "no RDF document was uploaded");
+        }
+        RDFFormat format = RDFMediaTypes.findRdfFormat(entity.getMediaType());
+        if (null == format) {
+            throw new ResourceException(Status.CLIENT_ERROR_UNSUPPORTED_MEDIA_TYPE,
+                    "not an RDF media type: " + entity.getMediaType());
+        }
+
+        selfURI = this.getRequest().getResourceRef().toString();
+
+        ServerMetrics metrics = server.getMetrics();
+        long start = metrics.requestStarted(ROUTE);
+        try {
+            long count = load(entity, format, replace);
+            metrics.record(ROUTE + "_upload_statements", count);
+            getResponse().setStatus(Status.SUCCESS_NO_CONTENT);
+            return null;
+        } catch (ResourceException e) {
+            metrics.requestFailed(ROUTE);
+            throw e;
+        } catch (RuntimeException e) {
+            metrics.requestFailed(ROUTE);
+            throw e;
+        } finally {
+            metrics.requestHandled(ROUTE, start, null);
+
+            // the cache only follows the data store by itself if the store notifies it of changes
+            ResponseCache cache = server.getResponseCache();
+            if (null != cache) {
+                cache.invalidate();
+            }
+        }
+    }
+
+    private long load(final Representation entity,
+                      final RDFFormat format,
+                      final boolean replace) {
+        try {
+            URI graph = sail.getValueFactory().createURI(selfURI);
+
+            SailConnection c = sail.getConnection();
+            try {
+                c.begin();
+                if (replace) {
+                    c.clear(graph);
+                }
+
+                BatchedSailWriter writer = new BatchedSailWriter(c, server.getUpdateCommitInterval(), graph);
+                RDFParser parser = Rio.createParser(format, sail.getValueFactory());
+                parser.setRDFHandler(writer);
+                parser.parse(entity.getStream(), selfURI);
+
+                return writer.getCount();
+            } catch (RDFParseException e) {
+                // Note: if batches are committed, those committed before the error remain in the data store
+                c.rollback();
+                throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, e);
+            } catch (IOException e) {
+                c.rollback();
+                throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, e);
+            } catch (Exception e) {
+                if (c.isActive()) {
+                    c.rollback();
+                }
+                throw new ResourceException(Status.SERVER_ERROR_INTERNAL, e);
+            } finally {
+                c.close();
+            }
+        } catch (SailException e) {
+            throw new ResourceException(Status.SERVER_ERROR_INTERNAL, e);
+        }
+    }
+
+    private Representation represent(final Variant entity) {
         MediaType type = entity.getMediaType();
-        RDFFormat format = RDFMediaTypes.findRdfFormat(type);
+        final RDFFormat format = RDFMediaTypes.findRdfFormat(type);
         selfURI = this.getRequest().getResourceRef().toString();
 
         /*
@@ -60,10 +207,24 @@ public class GraphResource extends ServerResource {
         //*/
 
         try {
-            URI subject = sail.getValueFactory().createURI(selfURI);
-            return getRDFRepresentation(subject, format);
+            final URI subject = sail.getValueFactory().createURI(selfURI);
+            ResponseCache cache = server.getResponseCache();
+            Encoding encoding = ContentEncodings.negotiate(getRequest(), getResponse());
+            if (null == cache) {
+                return ContentEncodings.encode(getRDFRepresentation(subject, format), encoding);
+            } else if (cache.isNotModified(getRequest(), format, encoding)) {
+                getResponse().setStatus(Status.REDIRECTION_NOT_MODIFIED);
+                return cache.getNotModified(format, encoding);
+            } else {
+                return cache.get(selfURI, format, encoding, new ResponseCache.RepresentationFactory() {
+                    public Representation create() {
+                        return getRDFRepresentation(subject, format);
+                    }
+                });
+            }
         } catch (Throwable t) {
-            t.printStackTrace();
+            logger.log(Level.WARNING, "failed to represent graph", t);
+            server.getMetrics().requestFailed(ROUTE);
             return null;
         }
     }
@@ -84,11 +245,12 @@ public class GraphResource extends ServerResource {
 
     private Representation getRDFRepresentation(final URI graph,
                                                 final RDFFormat format) {
+        long start = System.nanoTime();
         try {
             Collection<Namespace> namespaces = new LinkedList<Namespace>();
             Collection<Statement> statements = new LinkedList<Statement>();
 
-            SailConnection c = sail.getConnection();
+            SailConnection c = connectionPool.getConnection();
             try {
                 // Note: do NOT add graph or document metadata, as this document is to contain only those statements
                 // asserted in the graph in question.
@@ -109,11 +271,13 @@ public class GraphResource extends ServerResource {
             } finally {
                 c.close();
             }
+            server.getMetrics().record(ROUTE + "_build_us", (System.nanoTime() - start) / 1000);
+            server.getMetrics().record(ROUTE + "_statements", statements.size());
+
             return new RDFRepresentation(statements, namespaces, format);
 
         } catch (Throwable t) {
             logger.log(Level.WARNING, "failed to create RDF representation", t);
-            t.printStackTrace(System.err);
 
             return null;
         }
@@ -1,24 +1,91 @@
 package net.fortytwo.sesametools.ldserver;
 
+import info.aduna.iteration.CloseableIteration;
 import net.fortytwo.sesametools.mappingsail.MappingSail;
 import net.fortytwo.sesametools.mappingsail.MappingSchema;
 import net.fortytwo.sesametools.mappingsail.RewriteRule;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
 import org.openrdf.model.URI;
+import org.openrdf.model.Value;
 import org.openrdf.model.ValueFactory;
+import org.openrdf.sail.NotifyingSail;
 import org.openrdf.sail.Sail;
+import org.openrdf.sail.SailConnection;
+import org.openrdf.sail.SailException;
 import org.restlet.Application;
+import org.restlet.Context;
+import org.restlet.Request;
+import org.restlet.Response;
+import org.restlet.data.ChallengeRequest;
+import org.restlet.data.ChallengeScheme;
+import org.restlet.data.Status;
+import org.restlet.resource.ResourceException;
+import org.restlet.security.Verifier;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * A RESTful web service which publishes the contents of a Sail data store as Linked Data.
+ * <p>
+ * Any number of servers may be hosted in the same JVM, e.g. one per data set, each attached to a Component
+ * under its own path.  Resources find the server they belong to through the Restlet context:
+ * either the server bound to their context under <code>SERVER_ATTRIBUTE</code>
+ * (a server binds itself to its own context), or the application which is handling the current request.
+ * A server may also be made the outer application of a Component by setting the Component as its inbound root,
+ * as in earlier versions; resources then find it as the only server in the JVM.
+ * <p>
+ * A server is read-only unless it is given a verifier for updates,
+ * in which case clients presenting valid HTTP Basic credentials may upload graphs and execute SPARQL updates.
+ * <p>
+ * If the data store is a <code>ContextIndexSail</code>, the named graphs in which a resource appears are found
+ * through its index, rather than by scanning the statements about the resource.
  *
  * @author Joshua Shinavier (http://fortytwo.net)
  */
 public class LinkedDataServer extends Application {
 
+    /**
+     * The context attribute to which a server is bound
+     */
+    public static final String SERVER_ATTRIBUTE = LinkedDataServer.class.getName();
+
+    private static final int
+            DEFAULT_RESPONSE_CACHE_CAPACITY = 1000,
+            DEFAULT_MAX_CACHED_DOCUMENT_SIZE = 1024 * 1024,
+            DEFAULT_MAX_CONNECTIONS = 32,
+            DEFAULT_UPDATE_COMMIT_INTERVAL = 0;
+
+    private static final String UPDATE_REALM = "LinkedDataServer";
+
+    // all servers which have been created and not stopped
+    private static final Set<LinkedDataServer> INSTANCES
+            = Collections.synchronizedSet(new LinkedHashSet<LinkedDataServer>());
+
+    private static final long
+            DEFAULT_CONNECTION_BORROW_TIMEOUT = 10000,
+            DEFAULT_CONNECTION_MAX_IDLE_TIME = 60000;
+
     private final Sail sail;
     private final URI datasetURI;
+    private final ResponseCache responseCache;
+    private final ConnectionPool connectionPool;
+    private final ServerMetrics metrics = new ServerMetrics();
+    private final ContextIndex contextIndex;
+    private final RewriteRule inboundRewriter;
+    private final RewriteRule outboundRewriter;
 
-    private static LinkedDataServer SINGLETON = null;
+    private int maxOutboundStatements = 0;
+    private int maxInboundStatements = 0;
+
+    private volatile Verifier updateVerifier = null;
+    private volatile int updateCommitInterval = DEFAULT_UPDATE_COMMIT_INTERVAL;
+    private volatile boolean updateLoadAllowed = false;
 
     /**
      * @param baseSail        the data store published by this server
@@ -43,16 +110,10 @@ public class LinkedDataServer extends Application {
                             final String internalBaseURI,
                             final String externalBaseURI,
                             final String dataset) {
-        if (null != SINGLETON) {
-            throw new IllegalStateException("only one LinkedDataServer may be instantiated per JVM");
-        }
-
-        SINGLETON = this;
-
         final ValueFactory vf = baseSail.getValueFactory();
 
         if (!internalBaseURI.equals(externalBaseURI)) {
-            RewriteRule outboundRewriter = new RewriteRule() {
+            outboundRewriter = new RewriteRule() {
                 public URI rewrite(final URI original) {
                     //System.out.println("outbound: " + original);
 
@@ -70,7 +131,7 @@ public class LinkedDataServer extends Application {
                 }
             };
 
-            RewriteRule inboundRewriter = new RewriteRule() {
+            inboundRewriter = new RewriteRule() {
                 public URI rewrite(final URI original) {
                     //System.out.println("inbound: " + original);
                     if (null == original) {
@@ -96,11 +157,35 @@ public class LinkedDataServer extends Application {
                     ? null
                     : outboundRewriter.rewrite(vf.createURI(dataset));
         } else {
+            inboundRewriter = null;
+            outboundRewriter = null;
             this.sail = baseSail;
             datasetURI = null == dataset
                     ? null
                     : vf.createURI(dataset);
         }
+
+        connectionPool = new ConnectionPool(this.sail, DEFAULT_MAX_CONNECTIONS,
+                DEFAULT_CONNECTION_BORROW_TIMEOUT, DEFAULT_CONNECTION_MAX_IDLE_TIME);
+
+        Sail storeSail;
+        if (baseSail instanceof ContextIndexSail) {
+            contextIndex = ((ContextIndexSail) baseSail).getContextIndex();
+            storeSail = ((ContextIndexSail) baseSail).getBaseSail();
+        } else {
+            contextIndex = null;
+            storeSail = baseSail;
+        }
+
+        // Responses can only be cached if we are told when the data changes.
+        if (storeSail instanceof NotifyingSail) {
+            responseCache = new ResponseCache(DEFAULT_RESPONSE_CACHE_CAPACITY, DEFAULT_MAX_CACHED_DOCUMENT_SIZE);
+            ((NotifyingSail) storeSail).addSailChangedListener(responseCache);
+        } else {
+            responseCache = null;
+        }
+
+        INSTANCES.add(this);
     }
 
     /**
@@ -110,6 +195,100 @@ public class LinkedDataServer extends Application {
         return sail;
     }
 
+    /**
+     * @return a pool of read connections to the data store published by this server,
+     * which resources use instead of opening a connection for each request
+     */
+    public ConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    /**
+     * @return the request-level measurements of this server
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the index of the named graphs in which resources appear, or null if the data store is not indexed
+     */
+    public ContextIndex getContextIndex() {
+        return contextIndex;
+    }
+
+    /**
+     * Finds the named graphs in which a resource appears, using the index of the data store.
+     * Each graph is checked against the data store, and graphs which no longer mention the resource are pruned from
+     * the index, so the cost is proportional to the number of graphs, regardless of the number of statements.
+     *
+     * @param resource a resource, as published by this server
+     * @param c        a connection to the published data store
+     * @return the graphs, as published by this server, in which the resource appears as subject or object
+     * @throws SailException           if the data store cannot be read
+     * @throws IllegalStateException if the data store is not indexed
+     */
+    public List<URI> findContexts(final URI resource,
+                                  final SailConnection c) throws SailException {
+        if (null == contextIndex) {
+            throw new IllegalStateException("the data store of this server is not indexed");
+        }
+
+        List<URI> results = new LinkedList<URI>();
+        String key = (null == inboundRewriter ? resource : inboundRewriter.rewrite(resource)).stringValue();
+        ValueFactory vf = sail.getValueFactory();
+
+        for (Map.Entry<String, Long> e : contextIndex.getContexts(key).entrySet()) {
+            URI context = vf.createURI(e.getKey());
+            if (null != outboundRewriter) {
+                context = outboundRewriter.rewrite(context);
+            }
+
+            if (hasStatement(c, resource, null, context) || hasStatement(c, null, resource, context)) {
+                results.add(context);
+            } else {
+                contextIndex.prune(key, e.getKey(), e.getValue());
+            }
+        }
+
+        return results;
+    }
+
+    private boolean hasStatement(final SailConnection c,
+                                 final Resource subject,
+                                 final Value object,
+                                 final Resource context) throws SailException {
+        CloseableIteration<? extends Statement, SailException> iter
+                = c.getStatements(subject, null, object, false, context);
+        try {
+            return iter.hasNext();
+        } finally {
+            iter.close();
+        }
+    }
+
+    @Override
+    public void setContext(final Context context) {
+        super.setContext(context);
+
+        if (null != context) {
+            context.getAttributes().put(SERVER_ATTRIBUTE, this);
+        }
+    }
+
+    @Override
+    public synchronized void start() throws Exception {
+        INSTANCES.add(this);
+        super.start();
+    }
+
+    @Override
+    public synchronized void stop() throws Exception {
+        INSTANCES.remove(this);
+        connectionPool.close();
+        super.stop();
+    }
+
     /**
      * @return the internal URI for the data set published by this server
      */
@@ -118,9 +297,176 @@ public class LinkedDataServer extends Application {
     }
 
     /**
-     * @return the single Linked Data server
+     * @return the maximum number of outbound statements (statements with the resource as subject)
+     * in a single page of a resource description.  If not positive, all outbound statements are included.
      */
+    public int getMaxOutboundStatements() {
+        return maxOutboundStatements;
+    }
+
+    /**
+     * Limits the size of a page of a resource description.
+     * If the data store has a context index, building a page reads only the statements up to the end of that page,
+     * and the total number of statements is given only on the last page.
+     * Otherwise, every page reads all of the statements of the resource, in order to link to all of the named graphs
+     * which mention it, so paging keeps descriptions small, but not cheap to build.
+     *
+     * @param maxOutboundStatements the maximum number of outbound statements in a single page of a resource
+     *                              description.  If not positive (the default), all outbound statements are included.
+     */
+    public void setMaxOutboundStatements(final int maxOutboundStatements) {
+        this.maxOutboundStatements = maxOutboundStatements;
+    }
+
+    /**
+     * @return the maximum number of inbound statements (statements with the resource as object)
+     * in a single page of a resource description.  If not positive, all inbound statements are included.
+     */
+    public int getMaxInboundStatements() {
+        return maxInboundStatements;
+    }
+
+    /**
+     * @param maxInboundStatements the maximum number of inbound statements in a single page of a resource
+     *                             description.  If not positive (the default), all inbound statements are included.
+     *                             A limit keeps descriptions of highly connected resources small, and with a
+     *                             context index, cheap to build (see <code>setMaxOutboundStatements</code>).
+     */
+    public void setMaxInboundStatements(final int maxInboundStatements) {
+        this.maxInboundStatements = maxInboundStatements;
+    }
+
+    /**
+     * @return the verifier of the credentials of clients which update the data store,
+     * or null if this server is read-only
+     */
+    public Verifier getUpdateVerifier() {
+        return updateVerifier;
+    }
+
+    /**
+     * @param updateVerifier a verifier (e.g. a <code>MapVerifier</code>) of the HTTP Basic credentials of clients
+     *                       which update the data store.  If null (the default), this server is read-only.
+     */
+    public void setUpdateVerifier(final Verifier updateVerifier) {
+        this.updateVerifier = updateVerifier;
+    }
+
+    /**
+     * @return the number of uploaded statements after which a transaction is committed,
+     * or a number which is not positive if each upload is added in a single transaction
+     */
+    public int getUpdateCommitInterval() {
+        return updateCommitInterval;
+    }
+
+    /**
+     * @param updateCommitInterval the number of uploaded statements after which a transaction is committed.
+     *                             If not positive (the default), each upload is added in a single transaction,
+     *                             so that an upload which fails leaves the graph as it was.
+     *                             A positive interval bounds the size of the transactions of very large uploads,
+     *                             but an upload which then fails leaves the batches committed before the failure
+     *                             in the data store, and a graph which was to be replaced may be left cleared.
+     */
+    public void setUpdateCommitInterval(final int updateCommitInterval) {
+        this.updateCommitInterval = updateCommitInterval;
+    }
+
+    /**
+     * @return whether SPARQL updates may use the LOAD operation
+     */
+    public boolean isUpdateLoadAllowed() {
+        return updateLoadAllowed;
+    }
+
+    /**
+     * @param updateLoadAllowed whether SPARQL updates may use the LOAD operation, which makes this server retrieve a
+     *                          document from a URL given by the client.  By default, LOAD is refused, as it would let
+     *                          any client which may update the data store make requests from the server,
+     *                          e.g. to hosts on an internal network.
+     */
+    public void setUpdateLoadAllowed(final boolean updateLoadAllowed) {
+        this.updateLoadAllowed = updateLoadAllowed;
+    }
+
+    /**
+     * Checks that the client of a request may update the data store
+     *
+     * @param request  a request which would update the data store
+     * @param response the response to the request
+     * @throws ResourceException with status 405 (Method Not Allowed) if this server is read-only,
+     *                           or 401 (Unauthorized), with a challenge, if the client's credentials are missing or
+     *                           invalid
+     */
+    public void authorizeUpdate(final Request request,
+                                final Response response) throws ResourceException {
+        Verifier v = updateVerifier;
+        if (null == v) {
+            throw new ResourceException(Status.CLIENT_ERROR_METHOD_NOT_ALLOWED, "this server is read-only");
+        }
+
+        if (Verifier.RESULT_VALID != v.verify(request, response)) {
+            response.getChallengeRequests().add(new ChallengeRequest(ChallengeScheme.HTTP_BASIC, UPDATE_REALM));
+            throw new ResourceException(Status.CLIENT_ERROR_UNAUTHORIZED);
+        }
+    }
+
+    /**
+     * @return a cache of serialized resource descriptions, or null if the data store does not report changes
+     * (i.e. is not a <code>NotifyingSail</code>), in which case responses are not cached
+     */
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    /**
+     * Finds the server to which a resource belongs
+     *
+     * @param context the context of the resource.  May be null.
+     * @return the server bound to the given context, or else the server which is handling the current request,
+     * or else the only server in the JVM
+     * @throws IllegalStateException if there is no such server
+     */
+    public static LinkedDataServer getInstance(final Context context) {
+        if (null != context) {
+            Object server = context.getAttributes().get(SERVER_ATTRIBUTE);
+            if (server instanceof LinkedDataServer) {
+                return (LinkedDataServer) server;
+            }
+        }
+
+        Application current = Application.getCurrent();
+        if (current instanceof LinkedDataServer) {
+            return (LinkedDataServer) current;
+        }
+
+        LinkedDataServer only = getInstance();
+        if (null != only) {
+            return only;
+        }
+
+        throw new IllegalStateException("no LinkedDataServer is bound to the context of this resource,"
+                + " and none is handling the current request");
+    }
+
+    /**
+     * @return the only Linked Data server in the JVM, or null if there is none
+     * @throws IllegalStateException if there are several servers, in which case a resource must find its server
+     *                               through its context
+     * @deprecated use <code>getInstance(Context)</code>, which also supports several servers per JVM
+     */
+    @Deprecated
     public static LinkedDataServer getInstance() {
-        return SINGLETON;
+        synchronized (INSTANCES) {
+            switch (INSTANCES.size()) {
+                case 0:
+                    return null;
+                case 1:
+                    return INSTANCES.iterator().next();
+                default:
+                    throw new IllegalStateException("there are " + INSTANCES.size()
+                            + " LinkedDataServers in this JVM; use getInstance(Context)");
+            }
+        }
     }
 }
@@ -0,0 +1,52 @@
+package net.fortytwo.sesametools.ldserver;
+
+import org.restlet.data.MediaType;
+import org.restlet.representation.Representation;
+import org.restlet.representation.StringRepresentation;
+import org.restlet.resource.Get;
+import org.restlet.resource.ServerResource;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * A plain-text report of the measurements of a Linked Data server, in the Prometheus text format.
+ * Attach it to the server's router, e.g. at <code>/metrics</code>.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class MetricsResource extends ServerResource {
+
+    @Get
+    public Representation get() {
+        LinkedDataServer server = LinkedDataServer.getInstance(getContext());
+
+        StringWriter sw = new StringWriter();
+        PrintWriter out = new PrintWriter(sw);
+
+        server.getMetrics().writeTo(out);
+
+        ConnectionPool pool = server.getConnectionPool();
+        out.println("# TYPE ldserver_connections_active gauge");
+        out.println("ldserver_connections_active " + pool.getActive());
+        out.println("# TYPE ldserver_connections_idle gauge");
+        out.println("ldserver_connections_idle " + pool.getIdle());
+        out.println("# TYPE ldserver_connections_borrowed counter");
+        out.println("ldserver_connections_borrowed " + pool.getBorrowed());
+        out.println("# TYPE ldserver_connections_created counter");
+        out.println("ldserver_connections_created " + pool.getCreated());
+        out.println("# TYPE ldserver_connections_timeouts counter");
+        out.println("ldserver_connections_timeouts " + pool.getTimeouts());
+        out.println("# TYPE ldserver_connections_wait_ms counter");
+        out.println("ldserver_connections_wait_ms " + pool.getTotalWaitTime());
+
+        ResponseCache cache = server.getResponseCache();
+        if (null != cache) {
+            out.println("# TYPE ldserver_response_cache_size gauge");
+            out.println("ldserver_response_cache_size " + cache.size());
+        }
+
+        out.flush();
+        return new StringRepresentation(sw.toString(), MediaType.TEXT_PLAIN);
+    }
+}
@@ -2,57 +2,198 @@ package net.fortytwo.sesametools.ldserver;
 
 import org.openrdf.rio.RDFFormat;
 import org.restlet.data.MediaType;
+import org.restlet.data.Preference;
 import org.restlet.representation.Variant;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
 /**
+ * A precomputed, immutable table of the RDF formats served by LinkedDataServer,
+ * keyed on media type and on file extension.
+ * Lookups take constant time, content negotiation takes constant time per accepted media type,
+ * and neither allocates anything per request: the media types and variants handed out are shared.
+ *
  * @author Joshua Shinavier (http://fortytwo.net)
  */
 public class RDFMediaTypes {
 
+    private static final RDFFormat DEFAULT_FORMAT = RDFFormat.RDFXML;
+
+    // in order of preference: RDF/XML first, as the default format
+    private static final RDFFormat[] FORMATS;
     private static final List<Variant> RDF_VARIANTS;
-    private static final Map<RDFFormat, MediaType> MEDATYPE_BY_RDFFORMAT;
-    private static final Map<MediaType, RDFFormat> RDFFORMAT_BY_MEDIATYPE;
+    private static final Map<RDFFormat, MediaType> MEDIATYPE_BY_RDFFORMAT;
+    private static final Map<RDFFormat, Variant> VARIANT_BY_RDFFORMAT;
+    private static final Map<String, RDFFormat> RDFFORMAT_BY_MEDIATYPE;
+    private static final Map<String, RDFFormat> RDFFORMAT_BY_EXTENSION;
 
     static {
-        RDF_VARIANTS = new LinkedList<Variant>();
-        MEDATYPE_BY_RDFFORMAT = new HashMap<RDFFormat, MediaType>();
-        RDFFORMAT_BY_MEDIATYPE = new HashMap<MediaType, RDFFormat>();
+        LinkedHashSet<RDFFormat> formats = new LinkedHashSet<RDFFormat>();
+        formats.add(DEFAULT_FORMAT);
+        formats.addAll(RDFFormat.values());
+        FORMATS = formats.toArray(new RDFFormat[formats.size()]);
 
-        LinkedHashSet<RDFFormat> toAdd = new LinkedHashSet<RDFFormat>();
-        // add RDF/XML first, as the default format
-        toAdd.add(RDFFormat.RDFXML);
-        // now add the others
-        toAdd.addAll(RDFFormat.values());
+        List<Variant> variants = new ArrayList<Variant>();
+        MEDIATYPE_BY_RDFFORMAT = new HashMap<RDFFormat, MediaType>();
+        VARIANT_BY_RDFFORMAT = new HashMap<RDFFormat, Variant>();
+        RDFFORMAT_BY_MEDIATYPE = new HashMap<String, RDFFormat>();
+        RDFFORMAT_BY_EXTENSION = new HashMap<String, RDFFormat>();
 
-        for (RDFFormat f : toAdd) {
+        for (RDFFormat f : FORMATS) {
             MediaType mt = new MediaType(f.getDefaultMIMEType());
             Variant v = new Variant(mt);
-            MEDATYPE_BY_RDFFORMAT.put(f, mt);
-            RDFFORMAT_BY_MEDIATYPE.put(mt, f);
-            RDF_VARIANTS.add(v);
+            MEDIATYPE_BY_RDFFORMAT.put(f, mt);
+            VARIANT_BY_RDFFORMAT.put(f, v);
+            variants.add(v);
+
+            // Note: only the default media type of each format is negotiated, as alternative media types
+            // (e.g. text/plain for N-Triples) are too general to identify an RDF format.
+            putIfAbsent(RDFFORMAT_BY_MEDIATYPE, f.getDefaultMIMEType().toLowerCase(), f);
+
+            // alternative extensions never displace those of a preceding format
+            for (String e : f.getFileExtensions()) {
+                putIfAbsent(RDFFORMAT_BY_EXTENSION, e.toLowerCase(), f);
+            }
         }
+
+        RDF_VARIANTS = Collections.unmodifiableList(variants);
     }
 
+    /**
+     * @return a variant for each RDF format, RDF/XML first.  The list may not be modified.
+     */
     public static List<Variant> getRDFVariants() {
         return RDF_VARIANTS;
     }
 
+    /**
+     * @param mediaType a media type.  Any parameters are ignored.
+     * @return the RDF format with the given media type, or null if there is none
+     */
     public static RDFFormat findRdfFormat(final MediaType mediaType) {
-        return RDFFORMAT_BY_MEDIATYPE.get(mediaType);
+        return null == mediaType ? null : findRdfFormat(mediaType.getName());
+    }
+
+    /**
+     * @param mediaType the name of a media type, without parameters, e.g. "text/turtle"
+     * @return the RDF format with the given media type, or null if there is none
+     */
+    public static RDFFormat findRdfFormat(final String mediaType) {
+        RDFFormat f = RDFFORMAT_BY_MEDIATYPE.get(mediaType);
+        // media types are case-insensitive, but are nearly always given in lower case
+        return null == f ? RDFFORMAT_BY_MEDIATYPE.get(mediaType.toLowerCase()) : f;
+    }
+
+    /**
+     * @param extension a file extension, without the leading dot, e.g. "ttl"
+     * @return the RDF format with the given extension, or null if there is none
+     */
+    public static RDFFormat findRdfFormatByExtension(final String extension) {
+        RDFFormat f = RDFFORMAT_BY_EXTENSION.get(extension);
+        return null == f ? RDFFORMAT_BY_EXTENSION.get(extension.toLowerCase()) : f;
+    }
+
+    /**
+     * Finds the RDF format indicated by the extension of the last segment of a URI or path
+     *
+     * @param uri a URI or path without query or fragment, e.g. "http://example.org/person/arthur.rdf"
+     * @return the RDF format with the extension of the URI, or null if the URI has no such extension
+     */
+    public static RDFFormat findRdfFormatForPath(final String uri) {
+        int i = uri.lastIndexOf('.');
+        if (i < 0 || uri.indexOf('/', i) >= 0) {
+            return null;
+        }
+
+        return findRdfFormatByExtension(uri.substring(i + 1));
     }
 
     public static MediaType findMediaType(final RDFFormat format) {
-        return MEDATYPE_BY_RDFFORMAT.get(format);
+        return MEDIATYPE_BY_RDFFORMAT.get(format);
     }
 
+    /**
+     * @param format an RDF format
+     * @return the shared variant for the given format, or null if there is none.  It should not be modified.
+     */
     public static Variant findVariant(final RDFFormat format) {
-        MediaType mt = findMediaType(format);
-        return null == mt ? null : new Variant(MEDATYPE_BY_RDFFORMAT.get(format));
+        return VARIANT_BY_RDFFORMAT.get(format);
+    }
+
+    /**
+     * Chooses the RDF format most preferred by a client.
+     * Each format takes the quality value of the most specific media range which matches it:
+     * its own media type, then a range such as <code>text/*</code>, then <code>*&#47;*</code>.
+     * So <code>*&#47;*;q=1, application/rdf+xml;q=0.1</code> ranks RDF/XML at 0.1, and a quality of zero
+     * excludes a format.
+     * The format with the highest quality value wins; among formats of equal quality,
+     * one matched by a more specific range wins, and then the first in the order of <code>getRDFVariants</code>.
+     *
+     * @param accepted the media types accepted by the client, with their quality values
+     * @return the preferred RDF format, or null if the client accepts none of them
+     */
+    public static RDFFormat negotiate(final List<Preference<MediaType>> accepted) {
+        if (null == accepted || accepted.isEmpty()) {
+            return DEFAULT_FORMAT;
+        }
+
+        RDFFormat best = null;
+        float bestQuality = 0;
+        int bestSpecificity = -1;
+
+        for (RDFFormat f : FORMATS) {
+            MediaType mt = MEDIATYPE_BY_RDFFORMAT.get(f);
+
+            // the quality of the most specific matching range
+            float q = 0;
+            int specificity = -1;
+            for (Preference<MediaType> p : accepted) {
+                int s = findSpecificity(p.getMetadata(), mt);
+                if (s > specificity) {
+                    specificity = s;
+                    q = p.getQuality();
+                }
+            }
+
+            if (q > bestQuality || (q > 0 && q == bestQuality && specificity > bestSpecificity)) {
+                best = f;
+                bestQuality = q;
+                bestSpecificity = specificity;
+            }
+        }
+
+        return best;
+    }
+
+    // Returns 2 if the range is the media type itself, 1 if it is a range of subtypes including the media type,
+    // 0 if it is the range of all media types, and -1 if it does not match the media type
+    private static int findSpecificity(final MediaType range,
+                                       final MediaType mediaType) {
+        String main = range.getMainType();
+        if ("*".equals(main)) {
+            return 0;
+        } else if (!main.equalsIgnoreCase(mediaType.getMainType())) {
+            return -1;
+        }
+
+        String sub = range.getSubType();
+        if ("*".equals(sub)) {
+            return 1;
+        } else {
+            return sub.equalsIgnoreCase(mediaType.getSubType()) ? 2 : -1;
+        }
+    }
+
+    private static void putIfAbsent(final Map<String, RDFFormat> map,
+                                    final String key,
+                                    final RDFFormat format) {
+        if (!map.containsKey(key)) {
+            map.put(key, format);
+        }
     }
 }
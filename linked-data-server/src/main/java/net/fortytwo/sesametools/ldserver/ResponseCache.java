@@ -0,0 +1,295 @@
+package net.fortytwo.sesametools.ldserver;
+
+import org.openrdf.rio.RDFFormat;
+import org.openrdf.sail.SailChangedEvent;
+import org.openrdf.sail.SailChangedListener;
+import org.restlet.Request;
+import org.restlet.data.Conditions;
+import org.restlet.data.Encoding;
+import org.restlet.data.MediaType;
+import org.restlet.data.Tag;
+import org.restlet.representation.EmptyRepresentation;
+import org.restlet.representation.OutputRepresentation;
+import org.restlet.representation.Representation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of serialized RDF documents, keyed on resource URI and RDF format.
+ * <p>
+ * The cache is versioned: each change to the published data store increments the version,
+ * which discards all cached documents and changes the entity tag of every document.
+ * Entity tags and modification dates can therefore be computed without building a document,
+ * and conditional requests for unchanged documents are answered with 304 (Not Modified).
+ * HTTP dates have a resolution of one second, so the modification date of a change is rounded up to the next second,
+ * and is only given out once that second has passed: a client never holds a date which a further change might share.
+ * The version is advanced by <code>sailChanged</code>, e.g. when the cache is registered as a listener with a
+ * <code>NotifyingSail</code>, or by calling <code>invalidate</code> explicitly.
+ * <p>
+ * Documents are cached uncompressed, and compressed as they are written to a client which accepts compression.
+ * Optionally, the compressed forms of cached documents are cached as well, so that frequently requested documents
+ * are compressed only once.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class ResponseCache implements SailChangedListener {
+    private final int maxDocumentSize;
+    private final Map<String, CachedDocument> documents;
+
+    // distinguishes the entity tags of this cache from those of previous server instances
+    private final String epoch = Long.toHexString(System.currentTimeMillis());
+    private final AtomicLong version = new AtomicLong(0);
+    // the modification date, in milliseconds, of the current version; always a whole second
+    private volatile long lastModified = nextSecond();
+    private volatile boolean precompressed = false;
+
+    /**
+     * @param capacity        the maximum number of documents to retain
+     * @param maxDocumentSize the maximum size, in bytes, of a cached document.  Larger documents are not cached.
+     */
+    public ResponseCache(final int capacity,
+                         final int maxDocumentSize) {
+        this.maxDocumentSize = maxDocumentSize;
+
+        documents = new LinkedHashMap<String, CachedDocument>(capacity + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, CachedDocument> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @return whether compressed forms of cached documents are retained
+     */
+    public boolean isPrecompressed() {
+        return precompressed;
+    }
+
+    /**
+     * @param precompressed whether to retain compressed forms of cached documents, trading memory for the CPU time
+     *                      of compressing a document for each request.  By default, they are not retained.
+     */
+    public void setPrecompressed(final boolean precompressed) {
+        this.precompressed = precompressed;
+    }
+
+    public void sailChanged(final SailChangedEvent event) {
+        invalidate();
+    }
+
+    /**
+     * Discards all cached documents and changes the entity tags of all documents
+     */
+    public void invalidate() {
+        // The version is advanced before the modification date, and the date is read before the version
+        // (see get), so that a document is never given a date later than that of its version.
+        version.incrementAndGet();
+        synchronized (documents) {
+            lastModified = Math.max(lastModified, nextSecond());
+            documents.clear();
+        }
+    }
+
+    /**
+     * @param format   the RDF format of the representation
+     * @param encoding the content coding of the representation, or null if it is not encoded
+     * @return the entity tag of the current representation of a resource in the given format and coding.
+     * Entity tags are scoped to the resource, so they need not depend on its URI.
+     */
+    public Tag getTag(final RDFFormat format,
+                      final Encoding encoding) {
+        return createTag(version.get(), format, encoding);
+    }
+
+    /**
+     * @return the time at which the published data was last changed, rounded up to the next second,
+     * or null if that second has not yet passed
+     */
+    public Date getLastModified() {
+        long lm = lastModified;
+        return lm > System.currentTimeMillis() ? null : new Date(lm);
+    }
+
+    /**
+     * @param request  a request for a resource in a given format
+     * @param format   the RDF format of the representation
+     * @param encoding the content coding of the representation, or null if it is not encoded
+     * @return whether the client already holds the current representation,
+     * according to the If-None-Match and If-Modified-Since headers of the request
+     */
+    public boolean isNotModified(final Request request,
+                                 final RDFFormat format,
+                                 final Encoding encoding) {
+        Conditions conditions = request.getConditions();
+
+        List<Tag> noneMatch = conditions.getNoneMatch();
+        if (null != noneMatch && noneMatch.size() > 0) {
+            // If-None-Match takes precedence over If-Modified-Since
+            Tag current = getTag(format, encoding);
+            for (Tag t : noneMatch) {
+                if (Tag.ALL.equals(t) || current.getName().equals(t.getName())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        Date modifiedSince = conditions.getModifiedSince();
+        Date modified = getLastModified();
+        return null != modifiedSince && null != modified && !modified.after(modifiedSince);
+    }
+
+    /**
+     * @param format   the RDF format of the representation
+     * @param encoding the content coding of the representation, or null if it is not encoded
+     * @return an empty entity for a 304 (Not Modified) response,
+     * carrying the entity tag and modification date of the current representation
+     */
+    public Representation getNotModified(final RDFFormat format,
+                                         final Encoding encoding) {
+        // the modification date is read before the version, as in get
+        Date modified = getLastModified();
+        Representation r = new EmptyRepresentation();
+        r.setTag(getTag(format, encoding));
+        r.setModificationDate(modified);
+        return r;
+    }
+
+    /**
+     * Finds a cached representation, or creates, caches and returns a new one.
+     * In either case, the representation carries an entity tag and modification date.
+     *
+     * @param uri      the URI of the requested resource
+     * @param format   the RDF format of the representation
+     * @param encoding the content coding of the representation, as chosen by <code>ContentEncodings.negotiate</code>,
+     *                 or null if it is not to be encoded
+     * @param factory  builds the representation if it is not already cached
+     * @return the representation, or null if the factory failed to produce one
+     * @throws IOException if the new representation cannot be serialized
+     */
+    public Representation get(final String uri,
+                              final RDFFormat format,
+                              final Encoding encoding,
+                              final RepresentationFactory factory) throws IOException {
+        String key = uri + "\n" + format.getName();
+
+        // read the version before the data, so that a concurrent change leaves a document which is already stale,
+        // and the modification date before the version (see invalidate)
+        Date modified = getLastModified();
+        long currentVersion = version.get();
+
+        CachedDocument doc;
+        synchronized (documents) {
+            doc = documents.get(key);
+        }
+
+        if (null == doc || doc.version != currentVersion) {
+            Representation r = factory.create();
+            if (null == r) {
+                return null;
+            }
+
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            r.write(bos);
+            doc = new CachedDocument(bos.toByteArray(), r.getMediaType(), currentVersion);
+
+            if (doc.data.length <= maxDocumentSize) {
+                synchronized (documents) {
+                    documents.put(key, doc);
+                }
+            }
+        }
+
+        Representation result;
+        if (null == encoding) {
+            result = new CachedRepresentation(doc.mediaType, doc.data);
+        } else if (precompressed) {
+            result = new CachedRepresentation(doc.mediaType, doc.getEncoded(encoding));
+            result.setEncodings(Collections.singletonList(encoding));
+        } else {
+            result = ContentEncodings.encode(new CachedRepresentation(doc.mediaType, doc.data), encoding);
+        }
+
+        result.setTag(createTag(doc.version, format, encoding));
+        result.setModificationDate(modified);
+        return result;
+    }
+
+    /**
+     * @return the number of documents currently cached
+     */
+    public int size() {
+        synchronized (documents) {
+            return documents.size();
+        }
+    }
+
+    private static long nextSecond() {
+        return (System.currentTimeMillis() / 1000 + 1) * 1000;
+    }
+
+    // Note: each content coding of a document is a distinct entity, with a distinct entity tag
+    private Tag createTag(final long version,
+                          final RDFFormat format,
+                          final Encoding encoding) {
+        return new Tag(epoch + "-" + version + "-" + format.getDefaultFileExtension()
+                + (null == encoding ? "" : "-" + encoding.getName()));
+    }
+
+    /**
+     * A deferred representation, built only if it is not already cached
+     */
+    public interface RepresentationFactory {
+        Representation create();
+    }
+
+    private static class CachedDocument {
+        private final byte[] data;
+        private final MediaType mediaType;
+        private final long version;
+        private final Map<Encoding, byte[]> encoded = new HashMap<Encoding, byte[]>();
+
+        private CachedDocument(final byte[] data,
+                               final MediaType mediaType,
+                               final long version) {
+            this.data = data;
+            this.mediaType = mediaType;
+            this.version = version;
+        }
+
+        private synchronized byte[] getEncoded(final Encoding encoding) throws IOException {
+            byte[] e = encoded.get(encoding);
+            if (null == e) {
+                e = ContentEncodings.compress(data, encoding);
+                encoded.put(encoding, e);
+            }
+
+            return e;
+        }
+    }
+
+    private static class CachedRepresentation extends OutputRepresentation {
+        private final byte[] data;
+
+        private CachedRepresentation(final MediaType mediaType,
+                                     final byte[] data) {
+            super(mediaType, data.length);
+            this.data = data;
+        }
+
+        @Override
+        public void write(final OutputStream out) throws IOException {
+            out.write(data);
+        }
+    }
+}
@@ -0,0 +1,455 @@
+package net.fortytwo.sesametools.ldserver;
+
+import net.fortytwo.sesametools.ldserver.query.ParsedQueryCache;
+import org.restlet.representation.Representation;
+import org.restlet.util.WrapperRepresentation;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+
+/**
+ * Request-level measurements of a Linked Data server, for finding hot spots under load.
+ * For each route (e.g. "web", "graph" or "sparql"), the server records the number of requests in progress,
+ * the number of failed requests, and histograms of the time spent handling requests and writing responses,
+ * and of the size of responses.
+ * Resources record further measurements, such as the time spent building resource descriptions or parsing
+ * and evaluating queries, as named histograms.
+ * The hits, misses and size of the caches of parsed queries of SPARQL endpoints are also reported.
+ * <p>
+ * SPARQL queries which take longer than a threshold are logged, along with the number of solutions returned,
+ * and the most recent of them are retained for inspection.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class ServerMetrics {
+    private static final Logger slowQueryLogger = Logger.getLogger(ServerMetrics.class.getName() + ".slowQueries");
+
+    private static final long DEFAULT_SLOW_QUERY_THRESHOLD = 1000;
+    private static final int MAX_RETAINED_SLOW_QUERIES = 50;
+
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+    private final ConcurrentMap<String, AtomicInteger> inFlight = new ConcurrentHashMap<String, AtomicInteger>();
+    private final ConcurrentMap<String, AtomicLong> errors = new ConcurrentHashMap<String, AtomicLong>();
+    private final LinkedList<SlowQuery> slowQueries = new LinkedList<SlowQuery>();
+    private final Set<ParsedQueryCache> queryCaches
+            = Collections.newSetFromMap(new ConcurrentHashMap<ParsedQueryCache, Boolean>());
+
+    private volatile long slowQueryThreshold = DEFAULT_SLOW_QUERY_THRESHOLD;
+
+    /**
+     * @return the evaluation time, in milliseconds, above which a query is logged as slow
+     */
+    public long getSlowQueryThreshold() {
+        return slowQueryThreshold;
+    }
+
+    /**
+     * @param slowQueryThreshold the evaluation time, in milliseconds, above which a query is logged as slow
+     */
+    public void setSlowQueryThreshold(final long slowQueryThreshold) {
+        this.slowQueryThreshold = slowQueryThreshold;
+    }
+
+    /**
+     * Finds or creates a histogram
+     *
+     * @param name the name of the histogram, including its unit, e.g. "web_build_us"
+     * @return the histogram with the given name
+     */
+    public Histogram getHistogram(final String name) {
+        Histogram h = histograms.get(name);
+        if (null == h) {
+            Histogram newHistogram = new Histogram();
+            h = histograms.putIfAbsent(name, newHistogram);
+            if (null == h) {
+                h = newHistogram;
+            }
+        }
+
+        return h;
+    }
+
+    /**
+     * Records a measurement in a histogram
+     *
+     * @param name  the name of the histogram
+     * @param value the measured value
+     */
+    public void record(final String name,
+                       final long value) {
+        getHistogram(name).record(value);
+    }
+
+    /**
+     * Marks the beginning of a request.  Every call must be matched by a call to <code>requestHandled</code>.
+     *
+     * @param route the route of the request
+     * @return the start time of the request, in nanoseconds
+     */
+    public long requestStarted(final String route) {
+        inFlightCounter(route).incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * Marks the end of the handling of a request.
+     * The request remains in progress until its response entity, if any, has been written or released.
+     *
+     * @param route  the route of the request
+     * @param start  the start time of the request, as returned by <code>requestStarted</code>
+     * @param entity the response entity.  May be null.
+     * @return an entity which measures the writing of the given entity, or null if the given entity is null
+     */
+    public Representation requestHandled(final String route,
+                                         final long start,
+                                         final Representation entity) {
+        record(route + "_handle_us", (System.nanoTime() - start) / 1000);
+
+        if (null == entity) {
+            requestFinished(route);
+            return null;
+        } else {
+            return new MeteredRepresentation(entity, route);
+        }
+    }
+
+    /**
+     * Counts a failed request
+     *
+     * @param route the route of the request
+     */
+    public void requestFailed(final String route) {
+        errorCounter(route).incrementAndGet();
+    }
+
+    /**
+     * Records the evaluation of a SPARQL query, logging it if it was slow
+     *
+     * @param query     the text of the query
+     * @param solutions the number of solutions returned
+     * @param time      the time, in milliseconds, taken to evaluate the query and write its results
+     */
+    public void queryEvaluated(final String query,
+                               final long solutions,
+                               final long time) {
+        record("sparql_evaluate_us", time * 1000);
+        record("sparql_solutions", solutions);
+
+        if (time > slowQueryThreshold) {
+            slowQueryLogger.warning("slow query (" + time + "ms, " + solutions + " solutions): " + query);
+
+            synchronized (slowQueries) {
+                slowQueries.addFirst(new SlowQuery(query, solutions, time));
+                if (slowQueries.size() > MAX_RETAINED_SLOW_QUERIES) {
+                    slowQueries.removeLast();
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a cache of parsed queries to the measurements.  A cache may be added any number of times.
+     * The hits, misses and sizes of all caches added are reported together.
+     *
+     * @param cache the cache of parsed queries of a SPARQL endpoint
+     */
+    public void addQueryCache(final ParsedQueryCache cache) {
+        // adding is much more frequent than the first addition, so avoid the write where possible
+        if (!queryCaches.contains(cache)) {
+            queryCaches.add(cache);
+        }
+    }
+
+    /**
+     * @return the most recent slow queries, latest first
+     */
+    public List<SlowQuery> getSlowQueries() {
+        synchronized (slowQueries) {
+            return new LinkedList<SlowQuery>(slowQueries);
+        }
+    }
+
+    /**
+     * @param route a route
+     * @return the number of requests to the given route currently in progress
+     */
+    public int getInFlight(final String route) {
+        AtomicInteger i = inFlight.get(route);
+        return null == i ? 0 : i.get();
+    }
+
+    /**
+     * Writes all measurements in the Prometheus text format
+     *
+     * @param out the writer to which to write
+     */
+    public void writeTo(final PrintWriter out) {
+        for (Map.Entry<String, AtomicInteger> e : new TreeMap<String, AtomicInteger>(inFlight).entrySet()) {
+            out.println("# TYPE ldserver_" + e.getKey() + "_in_flight gauge");
+            out.println("ldserver_" + e.getKey() + "_in_flight " + e.getValue().get());
+        }
+
+        for (Map.Entry<String, AtomicLong> e : new TreeMap<String, AtomicLong>(errors).entrySet()) {
+            out.println("# TYPE ldserver_" + e.getKey() + "_errors counter");
+            out.println("ldserver_" + e.getKey() + "_errors " + e.getValue().get());
+        }
+
+        for (Map.Entry<String, Histogram> e : new TreeMap<String, Histogram>(histograms).entrySet()) {
+            e.getValue().writeTo("ldserver_" + e.getKey(), out);
+        }
+
+        if (!queryCaches.isEmpty()) {
+            long hits = 0;
+            long misses = 0;
+            long size = 0;
+            for (ParsedQueryCache c : queryCaches) {
+                hits += c.getHits();
+                misses += c.getMisses();
+                size += c.size();
+            }
+            out.println("# TYPE ldserver_sparql_query_cache_hits counter");
+            out.println("ldserver_sparql_query_cache_hits " + hits);
+            out.println("# TYPE ldserver_sparql_query_cache_misses counter");
+            out.println("ldserver_sparql_query_cache_misses " + misses);
+            out.println("# TYPE ldserver_sparql_query_cache_size gauge");
+            out.println("ldserver_sparql_query_cache_size " + size);
+        }
+
+        for (SlowQuery q : getSlowQueries()) {
+            out.println("# slow query at " + q.getDate() + " (" + q.getTime() + "ms, " + q.getSolutions()
+                    + " solutions): " + q.getQuery().replaceAll("\\s+", " "));
+        }
+    }
+
+    private void requestFinished(final String route) {
+        inFlightCounter(route).decrementAndGet();
+    }
+
+    private AtomicInteger inFlightCounter(final String route) {
+        AtomicInteger c = inFlight.get(route);
+        if (null == c) {
+            AtomicInteger newCounter = new AtomicInteger(0);
+            c = inFlight.putIfAbsent(route, newCounter);
+            if (null == c) {
+                c = newCounter;
+            }
+        }
+
+        return c;
+    }
+
+    private AtomicLong errorCounter(final String route) {
+        AtomicLong c = errors.get(route);
+        if (null == c) {
+            AtomicLong newCounter = new AtomicLong(0);
+            c = errors.putIfAbsent(route, newCounter);
+            if (null == c) {
+                c = newCounter;
+            }
+        }
+
+        return c;
+    }
+
+    /**
+     * A histogram of non-negative values, with buckets at powers of two.
+     * Recording a value is lock-free and takes constant time.
+     */
+    public static class Histogram {
+        private static final int BUCKETS = 64;
+
+        // bucket i holds values less than 2^i which are not in a lower bucket
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong
+                count = new AtomicLong(0),
+                sum = new AtomicLong(0),
+                max = new AtomicLong(0);
+
+        public void record(final long value) {
+            long v = value < 0 ? 0 : value;
+
+            buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(v));
+            count.incrementAndGet();
+            sum.addAndGet(v);
+
+            long m;
+            while (v > (m = max.get())) {
+                if (max.compareAndSet(m, v)) {
+                    break;
+                }
+            }
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getSum() {
+            return sum.get();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * @param fraction a fraction between 0 and 1, e.g. 0.99
+         * @return an upper bound on the given quantile of the recorded values, accurate to within a factor of two
+         */
+        public long getQuantile(final double fraction) {
+            long total = count.get();
+            long threshold = (long) Math.ceil(fraction * total);
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                cumulative += buckets.get(i);
+                if (cumulative >= threshold && cumulative > 0) {
+                    return Math.min(upperBound(i), max.get());
+                }
+            }
+
+            return max.get();
+        }
+
+        private void writeTo(final String name,
+                             final PrintWriter out) {
+            out.println("# TYPE " + name + " histogram");
+
+            int last = BUCKETS - 1;
+            while (last > 0 && 0 == buckets.get(last)) {
+                last--;
+            }
+
+            long cumulative = 0;
+            for (int i = 0; i <= last; i++) {
+                cumulative += buckets.get(i);
+                out.println(name + "_bucket{le=\"" + upperBound(i) + "\"} " + cumulative);
+            }
+            out.println(name + "_bucket{le=\"+Inf\"} " + count.get());
+            out.println(name + "_sum " + sum.get());
+            out.println(name + "_count " + count.get());
+            out.println(name + "_max " + max.get());
+        }
+
+        private static long upperBound(final int bucket) {
+            return bucket >= BUCKETS - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+        }
+    }
+
+    /**
+     * A query which took longer than the slow query threshold
+     */
+    public static class SlowQuery {
+        private final String query;
+        private final long solutions;
+        private final long time;
+        private final Date date = new Date();
+
+        private SlowQuery(final String query,
+                          final long solutions,
+                          final long time) {
+            this.query = query;
+            this.solutions = solutions;
+            this.time = time;
+        }
+
+        public String getQuery() {
+            return query;
+        }
+
+        public long getSolutions() {
+            return solutions;
+        }
+
+        /**
+         * @return the time, in milliseconds, taken to evaluate the query and write its results
+         */
+        public long getTime() {
+            return time;
+        }
+
+        public Date getDate() {
+            return date;
+        }
+    }
+
+    // Measures the writing of a response entity, and ends the request once the entity has been written or released.
+    private class MeteredRepresentation extends WrapperRepresentation {
+        private final String route;
+        private final AtomicBoolean finished = new AtomicBoolean(false);
+
+        private MeteredRepresentation(final Representation wrapped,
+                                      final String route) {
+            super(wrapped);
+            this.route = route;
+        }
+
+        @Override
+        public void write(final OutputStream out) throws IOException {
+            long start = System.nanoTime();
+            CountingOutputStream counting = new CountingOutputStream(out);
+            try {
+                getWrappedRepresentation().write(counting);
+            } catch (IOException e) {
+                requestFailed(route);
+                throw e;
+            } catch (RuntimeException e) {
+                requestFailed(route);
+                throw e;
+            } finally {
+                record(route + "_write_us", (System.nanoTime() - start) / 1000);
+                record(route + "_bytes", counting.count);
+                finish();
+            }
+        }
+
+        @Override
+        public void release() {
+            finish();
+            super.release();
+        }
+
+        private void finish() {
+            if (finished.compareAndSet(false, true)) {
+                requestFinished(route);
+            }
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count = 0;
+
+        private CountingOutputStream(final OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(final byte[] b,
+                          final int off,
+                          final int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
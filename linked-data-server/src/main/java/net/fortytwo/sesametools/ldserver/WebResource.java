@@ -11,7 +11,9 @@ import org.openrdf.rio.RDFFormat;
 import org.openrdf.sail.Sail;
 import org.openrdf.sail.SailConnection;
 import org.openrdf.sail.SailException;
+import org.restlet.data.Encoding;
 import org.restlet.data.MediaType;
+import org.restlet.data.Status;
 import org.restlet.representation.Representation;
 import org.restlet.representation.Variant;
 import org.restlet.resource.Get;
@@ -22,6 +24,7 @@ import java.io.PrintStream;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -34,12 +37,23 @@ import java.util.logging.Logger;
  * A request for an information resource is fulfilled with the resource itself.  No content negotiation occurs.
  * A request for a non-information resource is fulfilled with a 303-redirect
  * to an information resource of the appropriate media type.
+ * <p>
+ * If the server limits the number of outbound or inbound statements per description,
+ * the description of a resource with many statements is split into pages,
+ * which are linked to each other using the Hydra vocabulary.
+ * Pages after the first are requested with a <code>page</code> query parameter, e.g. <code>arthur.rdf?page=2</code>.
+ * Every page links to all of the named graphs which mention the resource.
  *
  * @author Joshua Shinavier (http://fortytwo.net)
  */
 public class WebResource extends ServerResource {
     private static final Logger logger = Logger.getLogger(WebResource.class.getName());
 
+    private static final String
+            HYDRA = "http://www.w3.org/ns/hydra/core#",
+            PAGE_PARAM = "page",
+            ROUTE = "web";
+
     enum WebResourceCategory {
         InformationResource, NonInformationResource
     }
@@ -51,9 +65,18 @@ public class WebResource extends ServerResource {
     protected String subjectResourceURI;
     protected String typeSpecificId;
     protected WebResourceCategory webResourceCategory;
+    protected LinkedDataServer server;
     protected Sail sail;
+    protected ConnectionPool connectionPool;
     protected RDFFormat format = null;
     protected URI datasetURI;
+    protected int maxOutbound;
+    protected int maxInbound;
+    protected int page = 1;
+
+    // the outcome of reading the statements of the current page
+    private boolean morePages = false;
+    private long totalItems = -1;
 
     public WebResource() throws Exception {
         super();
@@ -61,6 +84,20 @@ public class WebResource extends ServerResource {
         getVariants().addAll(RDFMediaTypes.getRDFVariants());
     }
 
+    /**
+     * Selects a variant using the precomputed RDF negotiation table rather than the generic Restlet algorithm.
+     * An information resource has only the variant given by its extension, so no negotiation takes place.
+     */
+    @Override
+    protected Variant getPreferredVariant(final List<Variant> variants) {
+        RDFFormat f = RDFMediaTypes.findRdfFormatForPath(getRequest().getResourceRef().getPath());
+        if (null == f) {
+            f = RDFMediaTypes.negotiate(getRequest().getClientInfo().getAcceptedMediaTypes());
+        }
+
+        return null == f ? null : RDFMediaTypes.findVariant(f);
+    }
+
     public void preprocessingHook() throws Exception {
         // Do nothing unless overridden
     }
@@ -71,7 +108,25 @@ public class WebResource extends ServerResource {
 
     @Get
     public Representation get(final Variant variant) {
-        selfURI = this.getRequest().getResourceRef().toString();
+        server = LinkedDataServer.getInstance(getContext());
+        ServerMetrics metrics = server.getMetrics();
+        long start = metrics.requestStarted(ROUTE);
+        Representation result = null;
+        try {
+            result = represent(variant);
+        } catch (RuntimeException e) {
+            metrics.requestFailed(ROUTE);
+            throw e;
+        } finally {
+            result = metrics.requestHandled(ROUTE, start, result);
+        }
+
+        return result;
+    }
+
+    private Representation represent(final Variant variant) {
+        // the query string, if any, selects a page of the description
+        selfURI = this.getRequest().getResourceRef().toString(false, false);
 
         /*
         System.out.println("selfURI = " + selfURI);
@@ -85,23 +140,25 @@ public class WebResource extends ServerResource {
         //*/
 
         int i = selfURI.lastIndexOf(".");
-        if (i > 0) {
-            format = RDFFormat.forFileName(selfURI);
-        }
+        format = RDFMediaTypes.findRdfFormatForPath(selfURI);
 
         if (null == format) {
             webResourceCategory = WebResourceCategory.NonInformationResource;
-            getVariants().addAll(RDFMediaTypes.getRDFVariants());
         } else {
             webResourceCategory = WebResourceCategory.InformationResource;
-            getVariants().add(RDFMediaTypes.findVariant(format));
 
             hostIdentifier = this.getRequest().getResourceRef().getHostIdentifier();
             baseRef = this.getRequest().getResourceRef().getBaseRef().toString();
             subjectResourceURI = selfURI.substring(0, i);
             typeSpecificId = subjectResourceURI.substring(baseRef.length());
-            datasetURI = LinkedDataServer.getInstance().getDatasetURI();
-            sail = LinkedDataServer.getInstance().getSail();
+            datasetURI = server.getDatasetURI();
+            sail = server.getSail();
+            connectionPool = server.getConnectionPool();
+            maxOutbound = server.getMaxOutboundStatements();
+            maxInbound = server.getMaxInboundStatements();
+            if (isPaged()) {
+                page = readPage();
+            }
         }
 
         MediaType type = variant.getMediaType();
@@ -119,12 +176,27 @@ public class WebResource extends ServerResource {
     private Representation representInformationResource() {
         try {
             preprocessingHook();
-            URI subject = sail.getValueFactory().createURI(subjectResourceURI);
-            Representation result = getRDFRepresentation(subject, format);
+            final URI subject = sail.getValueFactory().createURI(subjectResourceURI);
+            ResponseCache cache = server.getResponseCache();
+            Encoding encoding = ContentEncodings.negotiate(getRequest(), getResponse());
+            Representation result;
+            if (null == cache) {
+                result = ContentEncodings.encode(getRDFRepresentation(subject, format), encoding);
+            } else if (cache.isNotModified(getRequest(), format, encoding)) {
+                getResponse().setStatus(Status.REDIRECTION_NOT_MODIFIED);
+                result = cache.getNotModified(format, encoding);
+            } else {
+                result = cache.get(pageURI(page), format, encoding, new ResponseCache.RepresentationFactory() {
+                    public Representation create() {
+                        return getRDFRepresentation(subject, format);
+                    }
+                });
+            }
             postProcessingHook();
             return result;
         } catch (Throwable t) {
-            t.printStackTrace();
+            logger.log(Level.WARNING, "failed to represent information resource", t);
+            server.getMetrics().requestFailed(ROUTE);
             return null;
         }
     }
@@ -144,76 +216,99 @@ public class WebResource extends ServerResource {
         return null;
     }
 
+    // Note: a single pass over the outbound and inbound statements of the resource yields both the statements
+    // in the null context and the named graphs which mention the resource (unless contexts is null).
+    // Sets morePages, and totalItems if the total number of incident statements is known.
     private void addIncidentStatements(final org.openrdf.model.Resource vertex,
                                        final Collection<Statement> statements,
+                                       final Set<URI> contexts,
                                        final SailConnection c) throws SailException {
         // Select outbound statements
-        CloseableIteration<? extends Statement, SailException> stIter
-                = c.getStatements(vertex, null, null, false);
-        try {
-            while (stIter.hasNext()) {
-                Statement s = stIter.next();
-                if (null == s.getContext()) {
-                    statements.add(s);
-                }
-            }
-        } finally {
-            stIter.close();
-        }
+        long outbound = addPageOfStatements(c.getStatements(vertex, null, null, false),
+                maxOutbound, statements, contexts);
 
         // Select inbound statements
-        stIter = c.getStatements(null, null, vertex, false);
-        try {
-            while (stIter.hasNext()) {
-                Statement s = stIter.next();
-                if (null == s.getContext()) {
-                    statements.add(s);
-                }
-            }
-        } finally {
-            stIter.close();
-        }
+        long inbound = addPageOfStatements(c.getStatements(null, null, vertex, false),
+                maxInbound, statements, contexts);
+
+        morePages = hasMorePages(outbound, maxOutbound) || hasMorePages(inbound, maxInbound);
+        totalItems = outbound < 0 || inbound < 0 ? -1 : outbound + inbound;
     }
 
-    // Note: a SPARQL query might be more efficient in some applications
-    private void addSeeAlsoStatements(final org.openrdf.model.Resource subject,
-                                      final Collection<Statement> statements,
-                                      final SailConnection c,
-                                      final ValueFactory vf) throws SailException {
-        Set<URI> contexts = new HashSet<URI>();
-        CloseableIteration<? extends Statement, SailException> iter
-                = c.getStatements(subject, null, null, false);
+    // Skips the statements of previous pages, then adds at most maxStatements statements.
+    // If maxStatements is not positive, i.e. this direction is not limited, all statements are added to the first
+    // page and none to later pages.  Only statements in the null context are added and counted.
+    // If contexts is null, reading stops at the end of the current page (and, in an unlimited direction, later pages
+    // read nothing), so the cost is proportional to the number of statements up to the end of the page,
+    // regardless of the total number of statements.
+    // Otherwise, the named graphs of all statements, on any page, are added to contexts, which requires reading
+    // every statement.
+    // Returns the total number of statements if the iteration has been read to the end, otherwise -1.
+    private long addPageOfStatements(final CloseableIteration<? extends Statement, SailException> stIter,
+                                     final int maxStatements,
+                                     final Collection<Statement> statements,
+                                     final Set<URI> contexts) throws SailException {
+        long offset, end;
+        if (maxStatements > 0) {
+            offset = (long) (page - 1) * maxStatements;
+            end = offset + maxStatements;
+        } else {
+            offset = 1 == page ? 0 : Long.MAX_VALUE;
+            end = Long.MAX_VALUE;
+        }
+
         try {
-            while (iter.hasNext()) {
-                Statement st = iter.next();
-                org.openrdf.model.Resource context = st.getContext();
+            if (null == contexts && offset == Long.MAX_VALUE) {
+                return -1;
+            }
 
-                if (null != context) {
-                    if (context instanceof URI && context.toString().startsWith(hostIdentifier)) {
-                        contexts.add((URI) context);
-                    }
+            long count = 0;
+            Statement st;
+            while (null != (st = nextInNullContext(stIter, contexts))) {
+                if (count >= offset && count < end) {
+                    statements.add(st);
+                } else if (count >= end && null == contexts) {
+                    // there is at least one more page
+                    return -1;
                 }
+                count++;
             }
+
+            return count;
         } finally {
-            iter.close();
+            stIter.close();
         }
+    }
 
-        iter = c.getStatements(null, null, subject, false);
-        try {
-            while (iter.hasNext()) {
-                Statement st = iter.next();
-                org.openrdf.model.Resource context = st.getContext();
+    // count is the total number of statements in one direction, or -1 if not known
+    private boolean hasMorePages(final long count,
+                                 final int maxStatements) {
+        return maxStatements > 0
+                && (count < 0 || count > (long) page * maxStatements);
+    }
 
-                if (null != context) {
-                    if (context instanceof URI && context.toString().startsWith(hostIdentifier)) {
-                        contexts.add((URI) context);
-                    }
-                }
+    // Returns the next statement in the null context, or null if there is none,
+    // adding the named graphs of any statements passed over to contexts (unless contexts is null)
+    private Statement nextInNullContext(final CloseableIteration<? extends Statement, SailException> stIter,
+                                        final Set<URI> contexts) throws SailException {
+        while (stIter.hasNext()) {
+            Statement st = stIter.next();
+            org.openrdf.model.Resource context = st.getContext();
+
+            if (null == context) {
+                return st;
+            } else if (null != contexts && context instanceof URI && context.toString().startsWith(hostIdentifier)) {
+                contexts.add((URI) context);
             }
-        } finally {
-            iter.close();
         }
 
+        return null;
+    }
+
+    private void addSeeAlsoStatements(final org.openrdf.model.Resource subject,
+                                      final Set<URI> contexts,
+                                      final Collection<Statement> statements,
+                                      final ValueFactory vf) {
         for (URI r : contexts) {
             statements.add(vf.createStatement(subject, RDFS.SEEALSO, r));
         }
@@ -222,7 +317,7 @@ public class WebResource extends ServerResource {
     private void addDocumentMetadata(final Collection<Statement> statements,
                                      final ValueFactory vf) throws SailException {
         // Metadata about the document itself
-        URI docURI = vf.createURI(selfURI);
+        URI docURI = vf.createURI(pageURI(page));
         statements.add(vf.createStatement(docURI, RDF.TYPE, vf.createURI("http://xmlns.com/foaf/0.1/Document")));
         statements.add(vf.createStatement(docURI, RDFS.LABEL,
                 vf.createLiteral("" + format.getName() + " description of resource '"
@@ -234,6 +329,57 @@ public class WebResource extends ServerResource {
         if (null != datasetURI) {
             statements.add(vf.createStatement(docURI, RDFS.SEEALSO, datasetURI));
         }
+
+        if (isPaged()) {
+            addPagingMetadata(docURI, statements, vf);
+        }
+    }
+
+    private void addPagingMetadata(final URI docURI,
+                                   final Collection<Statement> statements,
+                                   final ValueFactory vf) {
+        statements.add(vf.createStatement(docURI, RDF.TYPE, vf.createURI(HYDRA + "PartialCollectionView")));
+        statements.add(vf.createStatement(docURI, vf.createURI(HYDRA + "first"), vf.createURI(pageURI(1))));
+        if (page > 1) {
+            statements.add(vf.createStatement(docURI, vf.createURI(HYDRA + "previous"),
+                    vf.createURI(pageURI(page - 1))));
+        }
+
+        if (morePages) {
+            statements.add(vf.createStatement(docURI, vf.createURI(HYDRA + "next"),
+                    vf.createURI(pageURI(page + 1))));
+        }
+
+        // The number of incident statements is only given if it is known at no extra cost: always, if every
+        // statement is read in order to find the named graphs, otherwise only on the last page (and not even there,
+        // after the first page, if a direction is not limited).
+        if (totalItems >= 0) {
+            statements.add(vf.createStatement(docURI, vf.createURI(HYDRA + "totalItems"),
+                    vf.createLiteral(totalItems)));
+        }
+    }
+
+    private boolean isPaged() {
+        return maxOutbound > 0 || maxInbound > 0;
+    }
+
+    private int readPage() {
+        String p = this.getRequest().getResourceRef().getQueryAsForm().getFirstValue(PAGE_PARAM);
+        if (null == p) {
+            return 1;
+        }
+
+        try {
+            int i = Integer.valueOf(p);
+            return i < 1 ? 1 : i;
+        } catch (NumberFormatException e) {
+            logger.warning("bad page value: " + p);
+            return 1;
+        }
+    }
+
+    private String pageURI(final int page) {
+        return 1 == page ? selfURI : selfURI + "?" + PAGE_PARAM + "=" + page;
     }
 
     private String resourceDescriptor() {
@@ -242,17 +388,29 @@ public class WebResource extends ServerResource {
 
     private Representation getRDFRepresentation(final URI subject,
                                                 final RDFFormat format) {
+        long start = System.nanoTime();
         try {
             Collection<Namespace> namespaces = new LinkedList<Namespace>();
             Collection<Statement> statements = new LinkedList<Statement>();
 
-            SailConnection c = sail.getConnection();
+            SailConnection c = connectionPool.getConnection();
             try {
-                // Add statements incident on the resource itself.
-                addIncidentStatements(subject, statements, c);
+                // Add statements incident on the resource itself,
+                // and find the named graphs in which it appears.
+                // If the data store is indexed, the graphs are found through the index instead.
+                Set<URI> contexts = new HashSet<URI>();
+                boolean indexed = null != server.getContextIndex();
+                addIncidentStatements(subject, statements, indexed ? null : contexts, c);
+                if (indexed) {
+                    for (URI context : server.findContexts(subject, c)) {
+                        if (context.toString().startsWith(hostIdentifier)) {
+                            contexts.add(context);
+                        }
+                    }
+                }
 
                 // Add virtual statements about named graphs.
-                addSeeAlsoStatements(subject, statements, c, sail.getValueFactory());
+                addSeeAlsoStatements(subject, contexts, statements, sail.getValueFactory());
 
                 // Add virtual statements about the document.
                 addDocumentMetadata(statements, sail.getValueFactory());
@@ -271,6 +429,9 @@ public class WebResource extends ServerResource {
                 c.close();
             }
 
+            server.getMetrics().record(ROUTE + "_build_us", (System.nanoTime() - start) / 1000);
+            server.getMetrics().record(ROUTE + "_statements", statements.size());
+
             return new RDFRepresentation(statements, namespaces, format);
 
         } catch (Throwable t) {
@@ -0,0 +1,211 @@
+package net.fortytwo.sesametools.ldserver.query;
+
+import net.fortytwo.sesametools.ldserver.ConnectionPool;
+import org.openrdf.query.parser.ParsedQuery;
+import org.openrdf.sail.SailConnection;
+import org.openrdf.sail.SailException;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The open query cursors of a SPARQL endpoint.
+ * Cursors hold resources in the data store (a connection, and possibly read locks),
+ * so their number is bounded, and cursors which are not used for a while are closed.
+ * <p>
+ * Each open cursor holds one of the connections of the server's <code>ConnectionPool</code>, so the maximum number
+ * of open cursors should be well below the size of the pool, lest cursors starve other requests.
+ * Note also that in some stores, including <code>MemoryStore</code> and <code>NativeStore</code>, the open iteration of
+ * a cursor holds a read lock which blocks writers (such as the update endpoints of the server) until the cursor
+ * is exhausted, expires or is closed; the time to live is reset each time a page is read.
+ * On such stores, if they are updated while being queried, keep the time to live short,
+ * or disable cursors by setting the maximum number of open cursors to zero.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class CursorRegistry {
+    private static final int DEFAULT_MAX_OPEN_CURSORS = 8;
+    private static final long DEFAULT_TIME_TO_LIVE = 60000;
+
+    private final Map<String, QueryCursor> idle = new ConcurrentHashMap<String, QueryCursor>();
+    private final Map<String, QueryCursor> open = new ConcurrentHashMap<String, QueryCursor>();
+    // the number of open cursors, including those being opened; it is checked and incremented atomically
+    private final AtomicInteger openCount = new AtomicInteger(0);
+    private final Timer timer;
+
+    private volatile int maxOpenCursors = DEFAULT_MAX_OPEN_CURSORS;
+    private volatile long timeToLive = DEFAULT_TIME_TO_LIVE;
+
+    public CursorRegistry() {
+        timer = new Timer("query cursor expiry", true);
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                closeExpired();
+            }
+        }, 1000, 1000);
+    }
+
+    /**
+     * @param maxOpenCursors the maximum number of cursors which may be open at any one time
+     */
+    public void setMaxOpenCursors(final int maxOpenCursors) {
+        this.maxOpenCursors = maxOpenCursors;
+    }
+
+    public int getMaxOpenCursors() {
+        return maxOpenCursors;
+    }
+
+    /**
+     * @param timeToLive the time, in milliseconds, after which a cursor which has not been used is closed
+     */
+    public void setTimeToLive(final long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    /**
+     * @return the number of open cursors
+     */
+    public int size() {
+        return openCount.get();
+    }
+
+    /**
+     * Evaluates a query and opens a cursor over its solutions.
+     * The caller has exclusive use of the cursor until it is passed to <code>release</code>.
+     *
+     * @param query          a SELECT query
+     * @param connectionPool the pool of connections to the data store against which to evaluate the query.
+     *                       The cursor holds one of its connections until the cursor is closed.
+     * @return the new cursor, or null if the maximum number of cursors are already open
+     * @throws QueryException if the query cannot be evaluated
+     * @throws SailException  if a connection to the data store cannot be obtained
+     */
+    public QueryCursor open(final ParsedQuery query,
+                            final ConnectionPool connectionPool) throws QueryException, SailException {
+        if (!reserve()) {
+            closeExpired();
+            if (!reserve()) {
+                return null;
+            }
+        }
+
+        QueryCursor cursor = null;
+        try {
+            SailConnection sc = connectionPool.getConnection();
+            try {
+                cursor = new QueryCursor(UUID.randomUUID().toString(), query, sc);
+            } finally {
+                if (null == cursor) {
+                    sc.close();
+                }
+            }
+        } finally {
+            if (null == cursor) {
+                openCount.decrementAndGet();
+            }
+        }
+
+        open.put(cursor.getId(), cursor);
+        return cursor;
+    }
+
+    /**
+     * Takes an idle cursor for exclusive use.
+     * The cursor must later be passed to <code>release</code>.
+     *
+     * @param id the identifier of the cursor
+     * @return the cursor, or null if there is no such idle cursor (it may have expired, been exhausted,
+     * or be in use by another request)
+     */
+    public QueryCursor take(final String id) {
+        return idle.remove(id);
+    }
+
+    /**
+     * Gives back a cursor obtained through <code>open</code> or <code>take</code>.
+     * An exhausted cursor is closed, otherwise it becomes available to further requests.
+     *
+     * @param cursor the cursor to release
+     * @return whether the cursor remains open, i.e. whether further solutions remain
+     * @throws QueryException if evaluation fails
+     */
+    public boolean release(final QueryCursor cursor) throws QueryException {
+        boolean keep = false;
+        try {
+            keep = cursor.hasNext();
+        } finally {
+            if (keep) {
+                idle.put(cursor.getId(), cursor);
+            } else {
+                close(cursor);
+            }
+        }
+
+        return keep;
+    }
+
+    /**
+     * Closes a cursor and removes it from this registry
+     *
+     * @param cursor the cursor to close
+     */
+    public void close(final QueryCursor cursor) {
+        idle.remove(cursor.getId());
+        forget(cursor.getId());
+        cursor.close();
+    }
+
+    /**
+     * Closes all cursors and stops expiring cursors.  The registry may not be used afterwards.
+     */
+    public void shutDown() {
+        timer.cancel();
+
+        for (QueryCursor c : open.values()) {
+            close(c);
+        }
+    }
+
+    // Note: only idle cursors expire; a cursor in use by a request is not closed underneath it.
+    private void closeExpired() {
+        long cutoff = System.currentTimeMillis() - timeToLive;
+
+        Iterator<QueryCursor> iter = idle.values().iterator();
+        while (iter.hasNext()) {
+            QueryCursor c = iter.next();
+            if (c.getLastAccess() < cutoff && null != idle.remove(c.getId())) {
+                forget(c.getId());
+                c.close();
+            }
+        }
+    }
+
+    // Claims one of the available cursors, if any remain
+    private boolean reserve() {
+        while (true) {
+            int n = openCount.get();
+            if (n >= maxOpenCursors) {
+                return false;
+            } else if (openCount.compareAndSet(n, n + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void forget(final String id) {
+        if (null != open.remove(id)) {
+            openCount.decrementAndGet();
+        }
+    }
+}
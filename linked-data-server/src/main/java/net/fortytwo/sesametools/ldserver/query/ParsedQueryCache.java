@@ -0,0 +1,115 @@
+package net.fortytwo.sesametools.ldserver.query;
+
+import org.openrdf.query.MalformedQueryException;
+import org.openrdf.query.parser.ParsedQuery;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, least-recently-used cache of parsed SPARQL queries, keyed by query string.
+ * Cached queries are shared between requests, so their algebra must not be modified;
+ * <code>SparqlTools</code> evaluates a copy of the algebra of each query.
+ * <p>
+ * Note: the dataset of a query is determined by its FROM and FROM NAMED clauses,
+ * so it is already part of the key.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class ParsedQueryCache {
+    private final Map<String, ParsedQuery> cache;
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+
+    /**
+     * @param capacity the maximum number of parsed queries to retain
+     */
+    public ParsedQueryCache(final int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+
+        cache = new LinkedHashMap<String, ParsedQuery>(capacity + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, ParsedQuery> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Finds a query in the cache, or parses and caches it.
+     *
+     * @param query a SPARQL query string
+     * @return the parsed query.  Its algebra must not be modified.
+     * @throws MalformedQueryException if the query cannot be parsed
+     */
+    public ParsedQuery get(final String query) throws MalformedQueryException {
+        String key = normalize(query);
+
+        ParsedQuery parsed;
+        synchronized (cache) {
+            parsed = cache.get(key);
+        }
+
+        if (null != parsed) {
+            hits.incrementAndGet();
+            return parsed;
+        }
+
+        misses.incrementAndGet();
+
+        // parse outside of the lock; in the worst case, two threads parse the same new query
+        parsed = SparqlTools.parseQuery(key);
+        synchronized (cache) {
+            cache.put(key, parsed);
+        }
+
+        return parsed;
+    }
+
+    /**
+     * @return the number of lookups answered from the cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of lookups which required the query to be parsed
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the fraction of lookups answered from the cache, or 0 if there have been no lookups
+     */
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return 0 == total ? 0 : h / (double) total;
+    }
+
+    /**
+     * @return the number of parsed queries currently in the cache
+     */
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    // Only surrounding whitespace is removed: anything else might occur within a string literal.
+    private String normalize(final String query) {
+        return query.trim();
+    }
+}
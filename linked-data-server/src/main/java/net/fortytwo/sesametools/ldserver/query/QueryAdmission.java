@@ -0,0 +1,77 @@
+package net.fortytwo.sesametools.ldserver.query;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Admission control for SPARQL query evaluation.
+ * At most a fixed number of queries are evaluated at the same time, and at most a fixed number of further queries
+ * may wait for a free slot.  Requests beyond that are rejected immediately, rather than piling up on the server.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class QueryAdmission {
+    private final Semaphore slots;
+    private final int maxQueued;
+    private final long maxQueueWait;
+    private final AtomicInteger queued = new AtomicInteger(0);
+
+    /**
+     * @param maxConcurrent the maximum number of queries which may be evaluated concurrently
+     * @param maxQueued     the maximum number of queries which may wait for evaluation at any one time
+     * @param maxQueueWait  the maximum time, in milliseconds, for which a query may wait to be evaluated
+     */
+    public QueryAdmission(final int maxConcurrent,
+                          final int maxQueued,
+                          final long maxQueueWait) {
+        if (maxConcurrent < 1) {
+            throw new IllegalArgumentException("at least one concurrent query must be allowed");
+        }
+        if (maxQueued < 0) {
+            throw new IllegalArgumentException("negative queue length: " + maxQueued);
+        }
+
+        this.slots = new Semaphore(maxConcurrent, true);
+        this.maxQueued = maxQueued;
+        this.maxQueueWait = maxQueueWait;
+    }
+
+    /**
+     * Attempts to obtain an evaluation slot, waiting if necessary and if the queue is not full.
+     * A successful call must be followed by a call to <code>release</code>.
+     *
+     * @return whether a slot was obtained.  If not, the query should be rejected.
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    public boolean acquire() throws InterruptedException {
+        if (slots.tryAcquire()) {
+            return true;
+        }
+
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            return false;
+        }
+
+        try {
+            return slots.tryAcquire(maxQueueWait, TimeUnit.MILLISECONDS);
+        } finally {
+            queued.decrementAndGet();
+        }
+    }
+
+    /**
+     * Gives back a slot previously obtained through <code>acquire</code>
+     */
+    public void release() {
+        slots.release();
+    }
+
+    /**
+     * @return the number of queries currently waiting for evaluation
+     */
+    public int getQueued() {
+        return queued.get();
+    }
+}
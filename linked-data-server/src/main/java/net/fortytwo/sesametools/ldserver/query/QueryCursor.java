@@ -0,0 +1,130 @@
+package net.fortytwo.sesametools.ldserver.query;
+
+import info.aduna.iteration.CloseableIteration;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.parser.ParsedQuery;
+import org.openrdf.sail.SailConnection;
+import org.openrdf.sail.SailException;
+
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The open solution iteration of a SELECT query, from which successive pages of solutions may be retrieved
+ * without evaluating the query again.
+ * A cursor holds a connection to the data store, which it closes (e.g. giving it back to a pool) when the cursor is
+ * closed.
+ * A cursor may be used by only one thread at a time.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class QueryCursor {
+    private static final Logger logger = Logger.getLogger(QueryCursor.class.getName());
+
+    private final String id;
+    private final Collection<String> bindingNames;
+    private final SailConnection connection;
+    private final CloseableIteration<? extends BindingSet, QueryEvaluationException> iteration;
+
+    private volatile long lastAccess;
+    private boolean closed = false;
+
+    /**
+     * @param id         a unique, unguessable identifier for the cursor
+     * @param query      the query to evaluate
+     * @param connection a connection to the data store.  It is closed when the cursor is closed.
+     * @throws QueryException if the query cannot be evaluated
+     */
+    public QueryCursor(final String id,
+                       final ParsedQuery query,
+                       final SailConnection connection) throws QueryException {
+        this.id = id;
+        this.bindingNames = query.getTupleExpr().getBindingNames();
+        this.connection = connection;
+
+        // Note: no time limit applies to the iteration, as it is expected to outlive a single request.
+        // Idle cursors are closed by the CursorRegistry instead.
+        this.iteration = SparqlTools.evaluateQuery(query, connection);
+
+        touch();
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public Collection<String> getBindingNames() {
+        return bindingNames;
+    }
+
+    /**
+     * @return the time, in milliseconds since the epoch, at which this cursor was last used
+     */
+    public long getLastAccess() {
+        return lastAccess;
+    }
+
+    /**
+     * Retrieves the next page of solutions
+     *
+     * @param limit the maximum number of solutions to retrieve
+     * @return the solutions, of which there are fewer than <code>limit</code> only if the cursor is exhausted
+     * @throws QueryException if evaluation fails
+     */
+    public List<BindingSet> nextPage(final int limit) throws QueryException {
+        touch();
+
+        List<BindingSet> page = new LinkedList<BindingSet>();
+        try {
+            while (page.size() < limit && iteration.hasNext()) {
+                page.add(iteration.next());
+            }
+        } catch (QueryEvaluationException e) {
+            throw new QueryException(e);
+        }
+
+        return page;
+    }
+
+    /**
+     * @return whether further solutions remain
+     * @throws QueryException if evaluation fails
+     */
+    public boolean hasNext() throws QueryException {
+        try {
+            return !closed && iteration.hasNext();
+        } catch (QueryEvaluationException e) {
+            throw new QueryException(e);
+        }
+    }
+
+    /**
+     * Closes the solution iteration and the connection of this cursor.  Has no effect if already closed.
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            try {
+                iteration.close();
+            } finally {
+                connection.close();
+            }
+        } catch (QueryEvaluationException e) {
+            logger.log(Level.WARNING, "failed to close query cursor " + id, e);
+        } catch (SailException e) {
+            logger.log(Level.WARNING, "failed to close query cursor " + id, e);
+        }
+    }
+
+    private void touch() {
+        lastAccess = System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,49 @@
+package net.fortytwo.sesametools.ldserver.query;
+
+import org.openrdf.query.BindingSet;
+import org.restlet.representation.OutputRepresentation;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A page of solutions retrieved from a query cursor, as an HTTP entity.
+ * If further solutions remain, the page links to the next page.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class QueryCursorRepresentation extends OutputRepresentation {
+
+    private final Collection<String> bindingNames;
+    private final List<BindingSet> solutions;
+    private final List<String> links;
+    private final SparqlTools.SparqlResultFormat format;
+
+    /**
+     * @param bindingNames the names of the variables of the query
+     * @param solutions    a page of solutions
+     * @param links        the URI of the next page, if any
+     * @param format       the query result format
+     */
+    public QueryCursorRepresentation(final Collection<String> bindingNames,
+                                     final List<BindingSet> solutions,
+                                     final List<String> links,
+                                     final SparqlTools.SparqlResultFormat format) {
+        super(format.getMediaType());
+
+        this.bindingNames = bindingNames;
+        this.solutions = solutions;
+        this.links = links;
+        this.format = format;
+    }
+
+    public void write(final OutputStream out) throws IOException {
+        try {
+            SparqlTools.writeSolutions(bindingNames, solutions, links, format, out);
+        } catch (QueryException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+}
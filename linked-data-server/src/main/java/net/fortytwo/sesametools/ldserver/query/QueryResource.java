@@ -1,13 +1,13 @@
 package net.fortytwo.sesametools.ldserver.query;
 
 import net.fortytwo.sesametools.ldserver.LinkedDataServer;
-import org.openrdf.sail.Sail;
 import org.restlet.Request;
 import org.restlet.Restlet;
 import org.restlet.resource.ResourceException;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
+import java.net.URLEncoder;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.logging.Logger;
@@ -21,19 +21,55 @@ public abstract class QueryResource extends Restlet {
     private static final String UTF_8 = "UTF-8";
 
     private static final int
-            MAX_LIMIT = 500,
-            DEFAULT_LIMIT = 300;
+            DEFAULT_MAX_LIMIT = 10000,
+            DEFAULT_DEFAULT_LIMIT = 1000;
 
-    private static final String LIMIT_PARAM = "limit";
+    protected static final String LIMIT_PARAM = "limit";
 
-    protected String selfURI;
+    private volatile int maxLimit = DEFAULT_MAX_LIMIT;
+    private volatile int defaultLimit = DEFAULT_DEFAULT_LIMIT;
+
+    /**
+     * @return the maximum number of results a client may request at once
+     */
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    /**
+     * @param maxLimit the maximum number of results a client may request at once
+     */
+    public void setMaxLimit(final int maxLimit) {
+        this.maxLimit = maxLimit;
+    }
+
+    /**
+     * @return the number of results returned if the client does not specify a limit
+     */
+    public int getDefaultLimit() {
+        return defaultLimit;
+    }
+
+    /**
+     * @param defaultLimit the number of results returned if the client does not specify a limit
+     */
+    public void setDefaultLimit(final int defaultLimit) {
+        this.defaultLimit = defaultLimit;
+    }
+
+    /**
+     * @return the Linked Data server to which this resource belongs, i.e. the one handling the current request
+     */
+    protected LinkedDataServer getServer() {
+        return LinkedDataServer.getInstance(getContext());
+    }
 
-    protected Sail sail;
     //private final String query;
 
     protected Map<String, String> getArguments(final Request request) throws ResourceException {
-         Map<String, String> arguments;
-        selfURI = request.getResourceRef().toString();
+        Map<String, String> arguments;
+        // note: a single instance of this resource handles all requests, so no per-request state is kept in fields
+        String selfURI = request.getResourceRef().toString();
 
         /*
         System.out.println("selfURI = " + selfURI);
@@ -44,8 +80,6 @@ public abstract class QueryResource extends Restlet {
         System.out.println("host ref = " + request.getHostRef().toString());
         //*/
 
-        sail = LinkedDataServer.getInstance().getSail();
-
         //getVariants().add(new Variant(MediaType.APPLICATION_JSON));
 
         int i = selfURI.lastIndexOf("?");
@@ -85,19 +119,19 @@ public abstract class QueryResource extends Restlet {
         String l = arguments.get(LIMIT_PARAM);
         int limit;
         if (null == l) {
-            limit = DEFAULT_LIMIT;
+            limit = defaultLimit;
         } else {
             try {
                 limit = Integer.valueOf(l);
 
-                if (limit > MAX_LIMIT) {
-                    limit = MAX_LIMIT;
+                if (limit > maxLimit) {
+                    limit = maxLimit;
                 } else if (limit < 1) {
-                    limit = DEFAULT_LIMIT;
+                    limit = defaultLimit;
                 }
             } catch (NumberFormatException e) {
                 logger.warning("bad limit value: " + l);
-                limit = DEFAULT_LIMIT;
+                limit = defaultLimit;
             }
         }
 
@@ -107,4 +141,12 @@ public abstract class QueryResource extends Restlet {
     protected String urlDecode(final String encoded) throws UnsupportedEncodingException {
         return URLDecoder.decode(encoded, UTF_8);
     }
+
+    protected String urlEncode(final String decoded) {
+        try {
+            return URLEncoder.encode(decoded, UTF_8);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
 }
@@ -1,48 +1,242 @@
 package net.fortytwo.sesametools.ldserver.query;
 
+import net.fortytwo.sesametools.ldserver.ConnectionPool;
+import net.fortytwo.sesametools.ldserver.ServerMetrics;
+import info.aduna.iteration.CloseableIteration;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.MalformedQueryException;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.parser.ParsedQuery;
 import org.openrdf.sail.Sail;
 import org.openrdf.sail.SailConnection;
+import org.openrdf.sail.SailException;
 import org.restlet.data.MediaType;
 import org.restlet.representation.OutputRepresentation;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * A SPARQL query result as an HTTP entity.
+ * Solutions are streamed to the client as they are found, as the entity is written.
+ * Evaluation may be started beforehand with {@link #start()}, so that failures which occur before the first solution
+ * is found can still be reported in the status of the response.
+ * Evaluation stops, and the connection to the data store is closed,
+ * as soon as the last solution has been written or the client has gone away.
  *
  * @author Joshua Shinavier (http://fortytwo.net)
  */
 public class SparqlQueryRepresentation extends OutputRepresentation {
+    private static final Logger logger = Logger.getLogger(SparqlQueryRepresentation.class.getName());
 
-    private final ByteArrayOutputStream data;
+    private final ParsedQuery query;
+    private final Sail sail;
+    private final ConnectionPool connectionPool;
+    private final int limit;
+    private final long timeout;
+    private final QueryAdmission admission;
+
+    private final AtomicBoolean finished = new AtomicBoolean(false);
+
+    private ServerMetrics metrics;
+    private String queryText;
+
+    private SailConnection connection;
+    private CloseableIteration<? extends BindingSet, QueryEvaluationException> solutions;
+    private long evaluationStart;
 
     public SparqlQueryRepresentation(final String query,
                                      final Sail sail,
                                      final int limit,
                                      final MediaType mediaType) throws Exception {
+        this(query, sail, limit, mediaType, 0);
+    }
+
+    /**
+     * @param query     the SPARQL query to evaluate
+     * @param sail      the data store against which to evaluate the query
+     * @param limit     the maximum number of solutions to return
+     * @param mediaType the media type of the SPARQL results
+     * @param timeout   the maximum evaluation time, in milliseconds, of the query.  If not positive, evaluation time is
+     *                  not limited.
+     * @throws Exception if the query cannot be parsed
+     */
+    public SparqlQueryRepresentation(final String query,
+                                     final Sail sail,
+                                     final int limit,
+                                     final MediaType mediaType,
+                                     final long timeout) throws Exception {
+        this(parse(query), sail, limit, mediaType, timeout, null);
+    }
+
+    /**
+     * @param query     a parsed SPARQL query.  Its algebra is not modified, so it may be shared between requests.
+     * @param sail      the data store against which to evaluate the query
+     * @param limit     the maximum number of solutions to return
+     * @param mediaType the media type of the SPARQL results
+     * @param timeout   the maximum evaluation time, in milliseconds, of the query.  If not positive, evaluation time is
+     *                  not limited.
+     * @param admission an admission control from which an evaluation slot has been obtained for this query.
+     *                  The slot is given back once the query has been evaluated or the representation is released.
+     *                  May be null.
+     */
+    public SparqlQueryRepresentation(final ParsedQuery query,
+                                     final Sail sail,
+                                     final int limit,
+                                     final MediaType mediaType,
+                                     final long timeout,
+                                     final QueryAdmission admission) {
+        this(query, sail, null, limit, mediaType, timeout, admission);
+    }
+
+    /**
+     * @param query          a parsed SPARQL query.  Its algebra is not modified, so it may be shared between requests.
+     * @param connectionPool a pool of connections to the data store against which to evaluate the query
+     * @param limit          the maximum number of solutions to return
+     * @param mediaType      the media type of the SPARQL results
+     * @param timeout        the maximum evaluation time, in milliseconds, of the query.  If not positive,
+     *                       evaluation time is not limited.
+     * @param admission      an admission control from which an evaluation slot has been obtained for this query.
+     *                       The slot is given back once the query has been evaluated or the representation is
+     *                       released.  May be null.
+     */
+    public SparqlQueryRepresentation(final ParsedQuery query,
+                                     final ConnectionPool connectionPool,
+                                     final int limit,
+                                     final MediaType mediaType,
+                                     final long timeout,
+                                     final QueryAdmission admission) {
+        this(query, null, connectionPool, limit, mediaType, timeout, admission);
+    }
+
+    private SparqlQueryRepresentation(final ParsedQuery query,
+                                      final Sail sail,
+                                      final ConnectionPool connectionPool,
+                                      final int limit,
+                                      final MediaType mediaType,
+                                      final long timeout,
+                                      final QueryAdmission admission) {
         super(mediaType);
 
+        this.query = query;
+        this.sail = sail;
+        this.connectionPool = connectionPool;
+        this.limit = limit;
+        this.timeout = timeout;
+        this.admission = admission;
+    }
+
+    /**
+     * @param metrics   measurements to which the evaluation time and number of solutions of the query are added
+     * @param queryText the text of the query, for the slow query log
+     */
+    public void setMetrics(final ServerMetrics metrics,
+                           final String queryText) {
+        this.metrics = metrics;
+        this.queryText = queryText;
+    }
+
+    /**
+     * Starts evaluating the query, and waits for its first solution (or for the end of its solutions).
+     * If this method is not called, evaluation starts when the entity is written.
+     *
+     * @throws QueryException if evaluation fails before the first solution is found, for instance by exceeding the
+     *                        time limit of the query
+     * @throws SailException  if a connection to the data store cannot be obtained
+     */
+    public void start() throws QueryException, SailException {
+        if (null != connection) {
+            return;
+        }
+
+        connection = null == connectionPool ? sail.getConnection() : connectionPool.getConnection();
+        evaluationStart = System.currentTimeMillis();
+        try {
+            solutions = SparqlTools.evaluateQuery(query, connection, timeout);
+            solutions.hasNext();
+        } catch (QueryEvaluationException e) {
+            closeEvaluation();
+            throw new QueryException(e);
+        } catch (QueryException e) {
+            closeEvaluation();
+            throw e;
+        }
+    }
+
+    public void write(final OutputStream out) throws IOException {
         try {
-            data = new ByteArrayOutputStream();
-            SailConnection sc = sail.getConnection();
             try {
+                start();
+
                 SparqlTools.SparqlResultFormat format
                         = SparqlTools.SparqlResultFormat.lookup(this.getMediaType());
 
-                SparqlTools.executeQuery(query, sc, data, limit, format);
+                // If the client goes away, writing a solution fails, and the query is closed along with its iteration.
+                int count = SparqlTools.writeResults(query, solutions, out, limit, format);
+                if (null != metrics) {
+                    metrics.queryEvaluated(queryText, count, System.currentTimeMillis() - evaluationStart);
+                }
             } finally {
-                sc.close();
+                closeEvaluation();
             }
-        } catch (Throwable e) {
-            // TODO: use logging instead
-            e.printStackTrace(System.err);
-            throw new Exception(e);
+        } catch (SailException e) {
+            logger.log(Level.WARNING, "failed to evaluate query", e);
+            throw new IOException(e);
+        } catch (QueryException e) {
+            // the response has already been committed at this point, so the failure can only be signaled by
+            // breaking off the response
+            logger.log(Level.WARNING, "failed to evaluate query", e);
+            throw new IOException(e);
+        } finally {
+            finish();
         }
     }
 
-    public void write(final OutputStream out) throws IOException {
-        data.writeTo(out);
+    @Override
+    public void release() {
+        try {
+            closeEvaluation();
+        } catch (SailException e) {
+            logger.log(Level.WARNING, "failed to close connection", e);
+        } finally {
+            finish();
+        }
+        super.release();
+    }
+
+    private void closeEvaluation() throws SailException {
+        if (null == connection) {
+            return;
+        }
+
+        try {
+            if (null != solutions) {
+                solutions.close();
+            }
+        } catch (QueryEvaluationException e) {
+            logger.log(Level.WARNING, "failed to close query results", e);
+        } finally {
+            solutions = null;
+            SailConnection sc = connection;
+            connection = null;
+            sc.close();
+        }
+    }
+
+    private void finish() {
+        if (finished.compareAndSet(false, true) && null != admission) {
+            admission.release();
+        }
+    }
+
+    private static ParsedQuery parse(final String query) throws QueryException {
+        try {
+            return SparqlTools.parseQuery(query);
+        } catch (MalformedQueryException e) {
+            throw new QueryException(e);
+        }
     }
 }
@@ -1,5 +1,15 @@
 package net.fortytwo.sesametools.ldserver.query;
 
+import net.fortytwo.sesametools.ldserver.ConnectionPool;
+import net.fortytwo.sesametools.ldserver.ContentEncodings;
+import net.fortytwo.sesametools.ldserver.LinkedDataServer;
+import net.fortytwo.sesametools.ldserver.ServerMetrics;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.MalformedQueryException;
+import org.openrdf.query.QueryInterruptedException;
+import org.openrdf.query.parser.ParsedBooleanQuery;
+import org.openrdf.query.parser.ParsedQuery;
+import org.openrdf.query.parser.ParsedTupleQuery;
 import org.openrdf.sail.SailException;
 import org.restlet.Request;
 import org.restlet.Response;
@@ -8,20 +18,119 @@ import org.restlet.data.Method;
 import org.restlet.data.Status;
 import org.restlet.resource.ResourceException;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * A RESTful resource serving as a SPARQL endpoint.
+ * <p>
+ * Results of a SELECT query may also be retrieved in pages, without evaluating the query again for each page:
+ * a request with the argument <code>cursor=true</code> opens a cursor over the solutions and returns the first page.
+ * If further solutions remain, the page links to the next one (in the <code>link</code> element of SPARQL XML results
+ * or the <code>link</code> field of SPARQL JSON results),
+ * which is retrieved with the argument <code>cursor=</code><i>id</i> in place of the query.
+ * The link keeps the <code>output</code> and <code>limit</code> arguments of the request.
+ * Only the XML and JSON formats can express links, so cursors are not available in other formats.
  *
  * @author Joshua Shinavier (http://fortytwo.net)
  */
 public class SparqlResource extends QueryResource {
+    private static final Logger logger = Logger.getLogger(SparqlResource.class.getName());
+
+    private static final int
+            DEFAULT_MAX_CONCURRENT_QUERIES = Runtime.getRuntime().availableProcessors(),
+            DEFAULT_MAX_QUEUED_QUERIES = 50,
+            DEFAULT_QUERY_CACHE_CAPACITY = 1000;
+
+    private static final long
+            DEFAULT_MAX_QUEUE_WAIT = 10000,
+            DEFAULT_QUERY_TIMEOUT = 30000;
+
+    private static final String
+            CURSOR_PARAM = "cursor",
+            CURSOR_OPEN = "true",
+            OUTPUT_PARAM = "output",
+            ROUTE = "sparql";
+
+    private final QueryAdmission admission;
+    private final long queryTimeout;
+    private final ParsedQueryCache queryCache;
+    private final CursorRegistry cursors = new CursorRegistry();
+
+    public SparqlResource() {
+        this(DEFAULT_MAX_CONCURRENT_QUERIES, DEFAULT_MAX_QUEUED_QUERIES, DEFAULT_MAX_QUEUE_WAIT, DEFAULT_QUERY_TIMEOUT,
+                DEFAULT_QUERY_CACHE_CAPACITY);
+    }
+
+    /**
+     * @param maxConcurrentQueries the maximum number of queries to evaluate at the same time
+     * @param maxQueuedQueries     the maximum number of queries which may wait for evaluation.
+     *                             Further queries are rejected with a 503 response.
+     * @param maxQueueWait         the maximum time, in milliseconds, for which a query may wait for evaluation
+     *                             before it is rejected with a 503 response
+     * @param queryTimeout         the maximum evaluation time, in milliseconds, of a query.
+     *                             Queries which take longer are cancelled.
+     *                             The time spent writing results to the client is not counted.
+     *                             If not positive, evaluation time is not limited.
+     * @param queryCacheCapacity   the maximum number of parsed queries to retain for reuse
+     */
+    public SparqlResource(final int maxConcurrentQueries,
+                          final int maxQueuedQueries,
+                          final long maxQueueWait,
+                          final long queryTimeout,
+                          final int queryCacheCapacity) {
+        this.admission = new QueryAdmission(maxConcurrentQueries, maxQueuedQueries, maxQueueWait);
+        this.queryTimeout = queryTimeout;
+        this.queryCache = new ParsedQueryCache(queryCacheCapacity);
+    }
+
+    /**
+     * @return the cache of parsed queries used by this endpoint.
+     * Its hits, misses and size are also reported by the server's <code>MetricsResource</code>.
+     */
+    public ParsedQueryCache getQueryCache() {
+        return queryCache;
+    }
+
+    /**
+     * @return the open query cursors of this endpoint, e.g. for setting their maximum number and time to live
+     */
+    public CursorRegistry getCursorRegistry() {
+        return cursors;
+    }
+
+    @Override
+    public synchronized void stop() throws Exception {
+        cursors.shutDown();
+        super.stop();
+    }
 
     @Override
     public void handle(final Request request,
                        final Response response) {
-        MediaType mt;
+        LinkedDataServer server = getServer();
+        ServerMetrics metrics = server.getMetrics();
+        metrics.addQueryCache(queryCache);
+        long start = metrics.requestStarted(ROUTE);
+        try {
+            handleQuery(request, response, server);
+        } catch (RuntimeException e) {
+            metrics.requestFailed(ROUTE);
+            throw e;
+        } finally {
+            response.setEntity(metrics.requestHandled(ROUTE, start, response.getEntity()));
+        }
+    }
+
+    private void handleQuery(final Request request,
+                             final Response response,
+                             final LinkedDataServer server) {
         String query = null;
+        String output;
+        String cursor;
         Map<String, String> arguments;
 
         try {
@@ -48,43 +157,219 @@ public class SparqlResource extends QueryResource {
                 query = arguments.get("query");
             }
 
-            if (null == query) {
+            cursor = arguments.get(CURSOR_PARAM);
+
+            if (null == query && null == cursor) {
                 throw new IllegalArgumentException("no query argument specified");
             }
 
-            String output = arguments.get("output");
+            output = arguments.get(OUTPUT_PARAM);
+        } catch (Throwable t) {
+            logger.log(Level.WARNING, "bad SPARQL request", t);
+            throw new ResourceException(t);
+        }
+
+        // a further page of an open cursor
+        if (null == query) {
+            SparqlTools.SparqlResultFormat format = chooseFormat(output, false, true, request);
+            QueryCursor c = cursors.take(cursor);
+            if (null == c) {
+                throw new ResourceException(Status.CLIENT_ERROR_NOT_FOUND,
+                        "no such cursor (it may have expired or been exhausted): " + cursor);
+            }
 
-            // If an "output" argument is provided, use it.
-            if (null != output) {
-                if (output.equals("json")) {
-                    mt = SparqlTools.SparqlResultFormat.JSON.getMediaType();
-                } else if (output.equals("xml")) {
-                    mt = SparqlTools.SparqlResultFormat.XML.getMediaType();
-                } else {
-                    throw new IllegalArgumentException("bad value for 'output' parameter: " + output);
+            acquireSlot(c);
+            try {
+                respondWithPage(c, arguments, format, request, response);
+            } finally {
+                admission.release();
+            }
+            return;
+        }
+
+        // with a query, the only meaningful value of the cursor argument is "true"
+        boolean openCursor = null != cursor;
+        if (openCursor && !cursor.equals(CURSOR_OPEN)) {
+            throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST,
+                    "bad value for '" + CURSOR_PARAM + "' parameter: " + cursor
+                            + " (use " + CURSOR_PARAM + "=" + CURSOR_OPEN + " to open a cursor)");
+        }
+
+        ParsedQuery parsedQuery;
+        long parseStart = System.nanoTime();
+        try {
+            parsedQuery = queryCache.get(query);
+        } catch (MalformedQueryException e) {
+            throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, e);
+        }
+        server.getMetrics().record(ROUTE + "_parse_us", (System.nanoTime() - parseStart) / 1000);
+
+        boolean booleanResults = parsedQuery instanceof ParsedBooleanQuery;
+        SparqlTools.SparqlResultFormat format = chooseFormat(output, booleanResults, openCursor, request);
+
+        if (openCursor && !(parsedQuery instanceof ParsedTupleQuery)) {
+            throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST,
+                    "cursors are available only for SELECT queries");
+        }
+
+        acquireSlot(null);
+
+        if (openCursor) {
+            // The page is retrieved before the response is written, so the evaluation slot is given back here.
+            try {
+                QueryCursor c;
+                try {
+                    c = cursors.open(parsedQuery, server.getConnectionPool());
+                } catch (QueryException e) {
+                    throw new ResourceException(Status.SERVER_ERROR_INTERNAL, e);
+                } catch (ConnectionPool.BorrowTimeoutException e) {
+                    throw new ResourceException(Status.SERVER_ERROR_SERVICE_UNAVAILABLE, e);
+                } catch (SailException e) {
+                    throw new ResourceException(Status.SERVER_ERROR_INTERNAL, e);
                 }
-            } else {
-                mt = SparqlTools.SparqlResultFormat.getVariants().get(0).getMediaType();
+
+                if (null == c) {
+                    throw new ResourceException(Status.SERVER_ERROR_SERVICE_UNAVAILABLE,
+                            "too many open cursors; try again later");
+                }
+
+                respondWithPage(c, arguments, format, request, response);
+            } finally {
+                admission.release();
             }
-        } catch (Throwable t) {
-            t.printStackTrace(System.err);
-            throw new ResourceException(t);
+            return;
         }
 
+        // Evaluation is started, and the first solution found, before the response is committed,
+        // so that a failure up to that point (including a timeout) determines the status of the response.
+        // The remaining solutions are found as the response is written.
+        // The representation gives back the evaluation slot once it is done.
+        SparqlQueryRepresentation entity = new SparqlQueryRepresentation(
+                parsedQuery, server.getConnectionPool(), readLimit(arguments), format.getMediaType(), queryTimeout,
+                admission);
+        entity.setMetrics(server.getMetrics(), query);
+        // Unless the entity is handed over to the response, its connection and evaluation slot are given back here,
+        // whatever the failure
+        boolean started = false;
         try {
-            response.setEntity(new SparqlQueryRepresentation(query, sail, readLimit(arguments), mt));
+            entity.start();
+            response.setEntity(ContentEncodings.encode(entity, ContentEncodings.negotiate(request, response)));
+            started = true;
         } catch (QueryException e) {
+            if (e.getCause() instanceof QueryInterruptedException) {
+                throw new ResourceException(Status.SERVER_ERROR_SERVICE_UNAVAILABLE, e);
+            } else if (e.getCause() instanceof SailException) {
+                logger.log(Level.WARNING, "failed to evaluate query", e);
+                throw new ResourceException(Status.SERVER_ERROR_INTERNAL, e);
+            }
             throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, e);
+        } catch (ConnectionPool.BorrowTimeoutException e) {
+            throw new ResourceException(Status.SERVER_ERROR_SERVICE_UNAVAILABLE, e);
         } catch (SailException e) {
-            // TODO: use logging instead
-            e.printStackTrace(System.err);
-            System.err.flush();
+            logger.log(Level.WARNING, "failed to evaluate query", e);
             throw new ResourceException(Status.SERVER_ERROR_INTERNAL, e);
-        } catch (Throwable e) {
-            // TODO: use logging instead
-            e.printStackTrace(System.err);
-            System.err.flush();
+        } finally {
+            if (!started) {
+                entity.release();
+            }
+        }
+    }
+
+    // links: whether the results must be able to link to a further page, i.e. whether a cursor is used
+    private SparqlTools.SparqlResultFormat chooseFormat(final String output,
+                                                         final boolean booleanResults,
+                                                         final boolean links,
+                                                         final Request request) {
+        SparqlTools.SparqlResultFormat format;
+
+        // If an "output" argument is provided, use it.  Otherwise, negotiate the format using the Accept header.
+        if (null != output) {
+            format = SparqlTools.SparqlResultFormat.lookup(output);
+            if (null == format) {
+                throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST,
+                        "bad value for 'output' parameter: " + output);
+            } else if (booleanResults && !format.supportsBooleanResults()) {
+                throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST,
+                        "output format '" + output + "' is not available for ASK queries");
+            } else if (links && !format.supportsLinks()) {
+                throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST,
+                        "output format '" + output + "' cannot link to further pages, so is not available for cursors");
+            }
+        } else {
+            format = SparqlTools.SparqlResultFormat.negotiate(
+                    request.getClientInfo().getAcceptedMediaTypes(), booleanResults, links);
+        }
+
+        return format;
+    }
+
+    // a cursor which has been taken for this request, if any, is given back if no slot can be obtained
+    private void acquireSlot(final QueryCursor cursor) {
+        boolean acquired = false;
+        try {
+            acquired = admission.acquire();
+        } catch (InterruptedException e) {
+            // not acquired
+        }
+
+        if (!acquired) {
+            if (null != cursor) {
+                try {
+                    cursors.release(cursor);
+                } catch (QueryException e) {
+                    cursors.close(cursor);
+                }
+            }
+
+            throw new ResourceException(Status.SERVER_ERROR_SERVICE_UNAVAILABLE,
+                    "too many queries in progress; try again later");
+        }
+    }
+
+    private void respondWithPage(final QueryCursor cursor,
+                                 final Map<String, String> arguments,
+                                 final SparqlTools.SparqlResultFormat format,
+                                 final Request request,
+                                 final Response response) {
+        List<BindingSet> page;
+        boolean more;
+        // A cursor which has been taken is not idle, and would never expire, so it is closed upon any failure
+        // before it has been given back
+        boolean released = false;
+        try {
+            page = cursor.nextPage(readLimit(arguments));
+            more = cursors.release(cursor);
+            released = true;
+        } catch (QueryException e) {
             throw new ResourceException(Status.SERVER_ERROR_INTERNAL, e);
+        } finally {
+            if (!released) {
+                cursors.close(cursor);
+            }
         }
+
+        List<String> links = more
+                ? Collections.singletonList(nextPageURI(cursor, arguments, request))
+                : Collections.<String>emptyList();
+
+        response.setEntity(ContentEncodings.encode(
+                new QueryCursorRepresentation(cursor.getBindingNames(), page, links, format),
+                ContentEncodings.negotiate(request, response)));
+    }
+
+    // The link to the next page keeps the output format and limit, if any, of the current request
+    private String nextPageURI(final QueryCursor cursor,
+                               final Map<String, String> arguments,
+                               final Request request) {
+        StringBuilder sb = new StringBuilder(request.getResourceRef().toString(false, false));
+        sb.append("?").append(CURSOR_PARAM).append("=").append(cursor.getId());
+        for (String param : new String[]{OUTPUT_PARAM, LIMIT_PARAM}) {
+            String value = arguments.get(param);
+            if (null != value) {
+                sb.append("&").append(param).append("=").append(urlEncode(value));
+            }
+        }
+
+        return sb.toString();
     }
-}
\ No newline at end of file
+}
@@ -1,48 +1,98 @@
 package net.fortytwo.sesametools.ldserver.query;
 
 import info.aduna.iteration.CloseableIteration;
+import info.aduna.iteration.IterationWrapper;
 
 import org.openrdf.query.BindingSet;
 import org.openrdf.query.MalformedQueryException;
 import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.QueryInterruptedException;
 import org.openrdf.query.QueryResultHandlerException;
 import org.openrdf.query.impl.MapBindingSet;
 import org.openrdf.query.parser.ParsedBooleanQuery;
 import org.openrdf.query.parser.ParsedQuery;
 import org.openrdf.query.parser.sparql.SPARQLParser;
 import org.openrdf.query.resultio.TupleQueryResultWriter;
+import org.openrdf.query.resultio.binary.BinaryQueryResultWriter;
 import org.openrdf.query.resultio.sparqljson.SPARQLResultsJSONWriter;
 import org.openrdf.query.resultio.sparqlxml.SPARQLResultsXMLWriter;
+import org.openrdf.query.resultio.text.csv.SPARQLResultsCSVWriter;
+import org.openrdf.query.resultio.text.tsv.SPARQLResultsTSVWriter;
 import org.openrdf.sail.SailConnection;
 import org.openrdf.sail.SailException;
 import org.restlet.data.MediaType;
+import org.restlet.data.Preference;
 import org.restlet.representation.Variant;
 
 import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * @author Joshua Shinavier (http://fortytwo.net)
  */
 public class SparqlTools {
+    private static final Logger logger = Logger.getLogger(SparqlTools.class.getName());
+
     public enum SparqlResultFormat {
         // Note: the XML format is defined first, so that it is the default format.
-        XML("application/sparql-results+xml"),
-        JSON("application/sparql-results+json");
+        XML("application/sparql-results+xml", "xml", true, true),
+        JSON("application/sparql-results+json", "json", true, true),
+        // The following formats are more compact and cheaper to produce, but are only available for tuple results,
+        // and cannot link to further pages of results.
+        BINARY("application/x-binary-rdf-results-table", "binary", false, false),
+        TSV("text/tab-separated-values", "tsv", false, false),
+        CSV("text/csv", "csv", false, false);
 
-        private static List<Variant> VARIANTS;
+        // built once, when the class is initialized, so that it is safely shared between threads
+        private static final List<Variant> VARIANTS = createVariants();
 
         private final MediaType mediaType;
+        private final String name;
+        private final boolean booleanResults;
+        private final boolean links;
 
-        private SparqlResultFormat(final String mimeType) {
+        private SparqlResultFormat(final String mimeType,
+                                   final String name,
+                                   final boolean booleanResults,
+                                   final boolean links) {
             mediaType = new MediaType(mimeType);
+            this.name = name;
+            this.booleanResults = booleanResults;
+            this.links = links;
         }
 
         public MediaType getMediaType() {
             return mediaType;
         }
 
+        /**
+         * @return a short name for this format, as used in the "output" parameter of a SPARQL request
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return whether this format can express the result of an ASK query
+         */
+        public boolean supportsBooleanResults() {
+            return booleanResults;
+        }
+
+        /**
+         * @return whether this format can express links, e.g. to a further page of solutions
+         */
+        public boolean supportsLinks() {
+            return links;
+        }
+
         public static SparqlResultFormat lookup(final MediaType mediaType) {
             for (SparqlResultFormat f : SparqlResultFormat.values()) {
                 if (f.mediaType.equals(mediaType)) {
@@ -53,64 +103,225 @@ public class SparqlTools {
             return null;
         }
 
-        public static List<Variant> getVariants() {
-            if (null == VARIANTS) {
-                VARIANTS = new LinkedList<Variant>();
-                for (SparqlResultFormat f : SparqlResultFormat.values()) {
-                    VARIANTS.add(new Variant(f.mediaType));
+        public static SparqlResultFormat lookup(final String name) {
+            for (SparqlResultFormat f : SparqlResultFormat.values()) {
+                if (f.name.equals(name)) {
+                    return f;
+                }
+            }
+
+            return null;
+        }
+
+        /**
+         * Chooses the format most preferred by a client
+         *
+         * @param accepted       the media types accepted by the client, with their quality values
+         * @param booleanResults whether the query is an ASK query, whose result not every format can express
+         * @return the format with the highest quality value,
+         * or the default format if the client accepts none of the available formats
+         */
+        public static SparqlResultFormat negotiate(final List<Preference<MediaType>> accepted,
+                                                   final boolean booleanResults) {
+            return negotiate(accepted, booleanResults, false);
+        }
+
+        /**
+         * Chooses the format most preferred by a client
+         *
+         * @param accepted       the media types accepted by the client, with their quality values
+         * @param booleanResults whether the query is an ASK query, whose result not every format can express
+         * @param links          whether the result must be able to express links, which not every format can
+         * @return the format with the highest quality value,
+         * or the default format if the client accepts none of the available formats
+         */
+        public static SparqlResultFormat negotiate(final List<Preference<MediaType>> accepted,
+                                                   final boolean booleanResults,
+                                                   final boolean links) {
+            SparqlResultFormat best = null;
+            float bestQuality = 0;
+
+            for (SparqlResultFormat f : SparqlResultFormat.values()) {
+                if ((booleanResults && !f.booleanResults) || (links && !f.links)) {
+                    continue;
+                }
+
+                float q = findQuality(f.mediaType, accepted);
+                if (q > bestQuality) {
+                    best = f;
+                    bestQuality = q;
                 }
             }
 
+            return null == best ? SparqlResultFormat.values()[0] : best;
+        }
+
+        /**
+         * @return a variant for each format.  The list may not be modified.
+         */
+        public static List<Variant> getVariants() {
             return VARIANTS;
         }
+
+        private static List<Variant> createVariants() {
+            List<Variant> variants = new LinkedList<Variant>();
+            for (SparqlResultFormat f : SparqlResultFormat.values()) {
+                variants.add(new Variant(f.mediaType));
+            }
+
+            return Collections.unmodifiableList(variants);
+        }
+
+        // The most specific media range which matches the media type determines its quality,
+        // so that e.g. "text/csv;q=0, */*" excludes CSV.
+        private static float findQuality(final MediaType mediaType,
+                                         final List<Preference<MediaType>> accepted) {
+            float quality = 0;
+            int specificity = -1;
+
+            for (Preference<MediaType> p : accepted) {
+                MediaType range = p.getMetadata();
+                int s;
+                if (range.equals(mediaType, true)) {
+                    s = 2;
+                } else if (range.includes(mediaType)) {
+                    s = "*".equals(range.getMainType()) ? 0 : 1;
+                } else {
+                    continue;
+                }
+
+                if (s > specificity) {
+                    specificity = s;
+                    quality = p.getQuality();
+                }
+            }
+
+            return quality;
+        }
     }
 
     private static final String BASE_URI = "http://example.org/bogusBaseURI";
 
-    private static ParsedQuery parseQuery(final String query) throws MalformedQueryException {
+    static ParsedQuery parseQuery(final String query) throws MalformedQueryException {
         SPARQLParser parser = new SPARQLParser();
         return parser.parseQuery(query, BASE_URI);
 
     }
 
-    public static synchronized CloseableIteration<? extends BindingSet, QueryEvaluationException>
+    public static CloseableIteration<? extends BindingSet, QueryEvaluationException>
     evaluateQuery(final ParsedQuery query,
                   final SailConnection sc) throws QueryException {
+        return evaluateQuery(query, sc, 0);
+    }
+
+    /**
+     * Evaluates a query against a connection.  This method may be called concurrently from any number of threads,
+     * provided that each thread uses its own connection.
+     *
+     * @param query   the query to evaluate
+     * @param sc      a connection to the data store
+     * @param timeout the maximum time, in milliseconds, which may be spent finding solutions to the query,
+     *                i.e. in the <code>hasNext</code> and <code>next</code> methods of the resulting iteration.
+     *                The time for which the caller holds the iteration between calls, e.g. while writing solutions to
+     *                a client, is not counted.
+     *                Once this time has been used up, the iteration is closed
+     *                and a <code>QueryInterruptedException</code> is thrown.
+     *                If not positive, evaluation time is not limited.
+     * @return the solutions to the query
+     * @throws QueryException if evaluation fails
+     */
+    public static CloseableIteration<? extends BindingSet, QueryEvaluationException>
+    evaluateQuery(final ParsedQuery query,
+                  final SailConnection sc,
+                  final long timeout) throws QueryException {
         MapBindingSet bindings = new MapBindingSet();
         boolean includeInferred = false;
+        CloseableIteration<? extends BindingSet, QueryEvaluationException> iter;
         try {
-            return sc.evaluate(query.getTupleExpr(), query.getDataset(), bindings, includeInferred);
+            // evaluate a copy of the algebra, as the query itself may be shared (see ParsedQueryCache)
+            iter = sc.evaluate(query.getTupleExpr().clone(), query.getDataset(), bindings, includeInferred);
         } catch (SailException e) {
             throw new QueryException(e);
         }
+
+        return timeout > 0
+                ? new QueryTimeoutIteration(iter, timeout)
+                : iter;
     }
 
-    public static void executeQuery(final String queryStr,
+    public static int executeQuery(final String queryStr,
                                     final SailConnection sc,
                                     final OutputStream out,
                                     final int limit,
                                     final SparqlResultFormat format) throws QueryException {
-        TupleQueryResultWriter w;
+        return executeQuery(queryStr, sc, out, limit, format, 0);
+    }
 
-        switch (format) {
-            case JSON:
-                w = new SPARQLResultsJSONWriter(out);
-                break;
-            case XML:
-                w = new SPARQLResultsXMLWriter(out);
-                break;
-            default:
-                throw new QueryException(new Throwable("bad query result format: " + format));
+    public static int executeQuery(final String queryStr,
+                                    final SailConnection sc,
+                                    final OutputStream out,
+                                    final int limit,
+                                    final SparqlResultFormat format,
+                                    final long timeout) throws QueryException {
+        ParsedQuery query;
+        try {
+            query = parseQuery(queryStr);
+        } catch (MalformedQueryException e) {
+            throw new QueryException(e);
         }
 
-        try {
-            final ParsedQuery query = parseQuery(queryStr);
-            final CloseableIteration<? extends BindingSet, QueryEvaluationException> iter =
-                    evaluateQuery(query, sc);
+        return executeQuery(query, sc, out, limit, format, timeout);
+    }
+
+    /**
+     * Evaluates a query and writes its results
+     *
+     * @param query   a parsed SPARQL query.  Its algebra is not modified.
+     * @param sc      a connection to the data store
+     * @param out     the stream to which to write the results
+     * @param limit   the maximum number of solutions to write
+     * @param format  the query result format
+     * @param timeout the maximum evaluation time, in milliseconds.  If not positive, evaluation time is not limited.
+     * @return the number of solutions written (for an ASK query, 1)
+     * @throws QueryException if evaluation fails
+     */
+    public static int executeQuery(final ParsedQuery query,
+                                    final SailConnection sc,
+                                    final OutputStream out,
+                                    final int limit,
+                                    final SparqlResultFormat format,
+                                    final long timeout) throws QueryException {
+        if (query instanceof ParsedBooleanQuery && !format.supportsBooleanResults()) {
+            throw new QueryException(new Throwable("query result format does not support boolean results: " + format));
+        }
+
+        return writeResults(query, evaluateQuery(query, sc, timeout), out, limit, format);
+    }
 
+    /**
+     * Writes the results of a query whose evaluation has already been started, e.g. by a first call to
+     * <code>hasNext</code>.  The iteration is closed once the results have been written, or if writing fails.
+     *
+     * @param query  a parsed SPARQL query
+     * @param iter   the solutions to the query
+     * @param out    the stream to which to write the results
+     * @param limit  the maximum number of solutions to write
+     * @param format the query result format.  For an ASK query, it must support boolean results.
+     * @return the number of solutions written (for an ASK query, 1)
+     * @throws QueryException if evaluation fails
+     */
+    public static int writeResults(final ParsedQuery query,
+                                   final CloseableIteration<? extends BindingSet, QueryEvaluationException> iter,
+                                   final OutputStream out,
+                                   final int limit,
+                                   final SparqlResultFormat format) throws QueryException {
+        try {
             try {
+                TupleQueryResultWriter w = createWriter(format, out);
+
                 if (query instanceof ParsedBooleanQuery) {
                     w.handleBoolean(iter.hasNext());
+                    return 1;
                 } else {
                     final List<String> columnHeaders = new LinkedList<String>();
                     columnHeaders.addAll(query.getTupleExpr().getBindingNames());
@@ -126,6 +337,7 @@ public class SparqlTools {
                         count++;
                     }
                     w.endQueryResult();
+                    return count;
                 }
 
             } catch (QueryEvaluationException e) {
@@ -135,10 +347,197 @@ public class SparqlTools {
             } finally {
                 iter.close();
             }
-        } catch (MalformedQueryException e) {
-            throw new QueryException(e);
         } catch (QueryEvaluationException e) {
             throw new QueryException(e);
         }
     }
+
+    /**
+     * Writes solutions which have already been retrieved, e.g. a page of solutions from a <code>QueryCursor</code>
+     *
+     * @param bindingNames the names of the variables of the query
+     * @param solutions    the solutions to write
+     * @param links        URIs to be included as links in the result, e.g. to a further page of solutions.
+     *                     Links are only written in formats which support them (see
+     *                     <code>SparqlResultFormat.supportsLinks</code>).
+     * @param format       the query result format
+     * @param out          the stream to which to write the solutions
+     * @throws QueryException if the solutions cannot be written
+     */
+    public static void writeSolutions(final Collection<String> bindingNames,
+                                      final Collection<BindingSet> solutions,
+                                      final List<String> links,
+                                      final SparqlResultFormat format,
+                                      final OutputStream out) throws QueryException {
+        TupleQueryResultWriter w = createWriter(format, out);
+
+        try {
+            w.startQueryResult(new LinkedList<String>(bindingNames));
+            if (links.size() > 0 && format.supportsLinks()) {
+                w.handleLinks(links);
+            }
+            for (BindingSet b : solutions) {
+                w.handleSolution(b);
+            }
+            w.endQueryResult();
+        } catch (QueryResultHandlerException e) {
+            throw new QueryException(e);
+        }
+    }
+
+    private static TupleQueryResultWriter createWriter(final SparqlResultFormat format,
+                                                       final OutputStream out) throws QueryException {
+        switch (format) {
+            case JSON:
+                return new SPARQLResultsJSONWriter(out);
+            case XML:
+                return new SPARQLResultsXMLWriter(out);
+            case BINARY:
+                return new BinaryQueryResultWriter(out);
+            case TSV:
+                return new SPARQLResultsTSVWriter(out);
+            case CSV:
+                return new SPARQLResultsCSVWriter(out);
+            default:
+                throw new QueryException(new Throwable("bad query result format: " + format));
+        }
+    }
+
+    // Limits the time spent finding solutions, i.e. the time spent in hasNext and next.
+    // The time for which the consumer holds the iteration between calls, e.g. while writing solutions to a slow
+    // client, does not count against the limit.  A call which runs out of time is broken off by closing the iteration.
+    private static class QueryTimeoutIteration extends IterationWrapper<BindingSet, QueryEvaluationException> {
+        private static final Timer timer = new Timer("query time limit", true);
+
+        private final long timeout;
+
+        // the evaluation time used by completed calls, the start of the current call (or -1), and the pending check
+        // of the time limit; guarded by this iteration
+        private long used = 0;
+        private long callStart = -1;
+        private TimerTask watchdog;
+
+        private volatile boolean interrupted = false;
+
+        public QueryTimeoutIteration(final CloseableIteration<? extends BindingSet, QueryEvaluationException> iter,
+                                     final long timeout) {
+            super(iter);
+            this.timeout = timeout;
+        }
+
+        @Override
+        public boolean hasNext() throws QueryEvaluationException {
+            enter();
+            boolean result;
+            try {
+                result = super.hasNext();
+            } catch (QueryEvaluationException e) {
+                checkInterrupted();
+                throw e;
+            } catch (RuntimeException e) {
+                checkInterrupted();
+                throw e;
+            } finally {
+                exit();
+            }
+            checkInterrupted();
+            return result;
+        }
+
+        @Override
+        public BindingSet next() throws QueryEvaluationException {
+            enter();
+            try {
+                return super.next();
+            } catch (QueryEvaluationException e) {
+                checkInterrupted();
+                throw e;
+            } catch (RuntimeException e) {
+                checkInterrupted();
+                throw e;
+            } finally {
+                exit();
+            }
+        }
+
+        @Override
+        public void remove() throws QueryEvaluationException {
+            checkInterrupted();
+            super.remove();
+        }
+
+        @Override
+        protected void handleClose() throws QueryEvaluationException {
+            synchronized (this) {
+                if (null != watchdog) {
+                    watchdog.cancel();
+                    watchdog = null;
+                }
+            }
+            super.handleClose();
+        }
+
+        private synchronized void enter() throws QueryEvaluationException {
+            if (used >= timeout) {
+                interrupted = true;
+            }
+            checkInterrupted();
+
+            callStart = System.currentTimeMillis();
+            if (null == watchdog && !isClosed()) {
+                schedule(timeout - used);
+            }
+        }
+
+        private synchronized void exit() {
+            used += System.currentTimeMillis() - callStart;
+            callStart = -1;
+        }
+
+        private void checkInterrupted() throws QueryEvaluationException {
+            if (interrupted) {
+                throw new QueryInterruptedException("query evaluation exceeded the time limit");
+            }
+        }
+
+        // called by the watchdog once the remaining evaluation time may have been used up
+        private void check() {
+            synchronized (this) {
+                watchdog = null;
+                if (isClosed()) {
+                    return;
+                }
+
+                long now = System.currentTimeMillis();
+                long total = used + (callStart < 0 ? 0 : now - callStart);
+                if (total < timeout) {
+                    // time has been spent outside of evaluation; check again once the remainder may have been used
+                    schedule(timeout - total);
+                    return;
+                } else if (callStart < 0) {
+                    // the next call fails
+                    return;
+                }
+
+                interrupted = true;
+            }
+
+            // the iteration is closed outside of the lock, so as not to hold up the call it breaks off
+            try {
+                close();
+            } catch (QueryEvaluationException e) {
+                logger.log(Level.WARNING, "failed to close query iteration", e);
+            }
+        }
+
+        private void schedule(final long delay) {
+            watchdog = new TimerTask() {
+                @Override
+                public void run() {
+                    check();
+                }
+            };
+            timer.schedule(watchdog, delay);
+        }
+    }
 }
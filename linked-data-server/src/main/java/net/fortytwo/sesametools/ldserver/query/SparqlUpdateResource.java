@@ -0,0 +1,157 @@
+package net.fortytwo.sesametools.ldserver.query;
+
+import net.fortytwo.sesametools.ldserver.LinkedDataServer;
+import net.fortytwo.sesametools.ldserver.ResponseCache;
+import net.fortytwo.sesametools.ldserver.ServerMetrics;
+import org.openrdf.query.MalformedQueryException;
+import org.openrdf.query.QueryLanguage;
+import org.openrdf.query.algebra.Load;
+import org.openrdf.query.algebra.UpdateExpr;
+import org.openrdf.query.impl.EmptyBindingSet;
+import org.openrdf.query.parser.ParsedUpdate;
+import org.openrdf.query.parser.QueryParserUtil;
+import org.openrdf.repository.sail.helpers.SailUpdateExecutor;
+import org.openrdf.rio.ParserConfig;
+import org.openrdf.rio.RDFParseException;
+import org.openrdf.sail.Sail;
+import org.openrdf.sail.SailConnection;
+import org.openrdf.sail.SailException;
+import org.restlet.Request;
+import org.restlet.Response;
+import org.restlet.data.Method;
+import org.restlet.data.Status;
+import org.restlet.resource.ResourceException;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A RESTful resource serving as a SPARQL 1.1 Update endpoint.
+ * An update is POSTed either directly, with the media type <code>application/sparql-update</code>,
+ * or as the <code>update</code> parameter of a form.
+ * All operations of an update request are executed in a single transaction.
+ * The LOAD operation is refused unless the server allows it; see <code>LinkedDataServer.setUpdateLoadAllowed</code>.
+ * <p>
+ * The endpoint is only available if the server accepts updates; see <code>LinkedDataServer.setUpdateVerifier</code>.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class SparqlUpdateResource extends QueryResource {
+    private static final Logger logger = Logger.getLogger(SparqlUpdateResource.class.getName());
+
+    private static final String
+            UPDATE_PARAM = "update",
+            ROUTE = "sparql_update";
+
+    @Override
+    public void handle(final Request request,
+                       final Response response) {
+        LinkedDataServer server = getServer();
+        ServerMetrics metrics = server.getMetrics();
+        long start = metrics.requestStarted(ROUTE);
+        try {
+            handleUpdate(request, response, server);
+        } catch (RuntimeException e) {
+            metrics.requestFailed(ROUTE);
+            throw e;
+        } finally {
+            metrics.requestHandled(ROUTE, start, null);
+        }
+    }
+
+    private void handleUpdate(final Request request,
+                              final Response response,
+                              final LinkedDataServer server) {
+        if (request.getMethod() != Method.POST) {
+            throw new ResourceException(Status.CLIENT_ERROR_METHOD_NOT_ALLOWED, "updates must be POSTed");
+        }
+
+        server.authorizeUpdate(request, response);
+
+        String update;
+        try {
+            String type = request.getEntity().getMediaType().getName();
+            String ent = request.getEntity().getText();
+
+            if (type.equals("application/x-www-form-urlencoded")) {
+                update = parseParams(ent).get(UPDATE_PARAM);
+            } else if (type.equals("application/sparql-update")) {
+                update = ent;
+            } else {
+                throw new IllegalArgumentException("POST entity has unsupported media type for SPARQL Update");
+            }
+
+            if (null == update) {
+                throw new IllegalArgumentException("no update argument specified");
+            }
+        } catch (Throwable t) {
+            logger.log(Level.WARNING, "bad SPARQL Update request", t);
+            throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, t);
+        }
+
+        ParsedUpdate parsedUpdate;
+        long parseStart = System.nanoTime();
+        try {
+            parsedUpdate = QueryParserUtil.parseUpdate(QueryLanguage.SPARQL, update, null);
+        } catch (MalformedQueryException e) {
+            throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, e);
+        }
+        server.getMetrics().record(ROUTE + "_parse_us", (System.nanoTime() - parseStart) / 1000);
+
+        if (!server.isUpdateLoadAllowed()) {
+            for (UpdateExpr expr : parsedUpdate.getUpdateExprs()) {
+                if (expr instanceof Load) {
+                    throw new ResourceException(Status.CLIENT_ERROR_FORBIDDEN,
+                            "the LOAD operation is not allowed by this server");
+                }
+            }
+        }
+
+        long executeStart = System.nanoTime();
+        try {
+            execute(parsedUpdate, server.getSail());
+        } catch (RDFParseException e) {
+            // e.g. a LOAD of a malformed document
+            throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, e);
+        } catch (IOException e) {
+            throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, e);
+        } catch (SailException e) {
+            logger.log(Level.WARNING, "failed to execute SPARQL Update", e);
+            throw new ResourceException(Status.SERVER_ERROR_INTERNAL, e);
+        } finally {
+            // the cache only follows the data store by itself if the store notifies it of changes
+            ResponseCache cache = server.getResponseCache();
+            if (null != cache) {
+                cache.invalidate();
+            }
+        }
+        server.getMetrics().record(ROUTE + "_execute_us", (System.nanoTime() - executeStart) / 1000);
+
+        response.setStatus(Status.SUCCESS_NO_CONTENT);
+    }
+
+    private void execute(final ParsedUpdate parsedUpdate,
+                         final Sail sail) throws SailException, RDFParseException, IOException {
+        SailConnection c = sail.getConnection();
+        try {
+            c.begin();
+
+            SailUpdateExecutor executor = new SailUpdateExecutor(c, sail.getValueFactory(), new ParserConfig());
+            for (UpdateExpr expr : parsedUpdate.getUpdateExprs()) {
+                executor.executeUpdate(expr, parsedUpdate.getDatasetMapping().get(expr),
+                        EmptyBindingSet.getInstance(), true);
+            }
+
+            c.commit();
+        } finally {
+            try {
+                if (c.isActive()) {
+                    c.rollback();
+                }
+            } finally {
+                c.close();
+            }
+        }
+    }
+}
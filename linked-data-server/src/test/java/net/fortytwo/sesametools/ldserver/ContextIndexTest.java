@@ -0,0 +1,289 @@
+package net.fortytwo.sesametools.ldserver;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openrdf.model.URI;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.vocabulary.RDF;
+import org.openrdf.model.vocabulary.RDFS;
+import org.openrdf.sail.SailConnection;
+import org.openrdf.sail.memory.MemoryStore;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class ContextIndexTest {
+    private static final String NS = "http://example.org/";
+
+    private File file;
+    private File dataDir;
+    private MemoryStore store;
+    private ValueFactory vf;
+
+    private URI arthur, ford, zaphod, g1, g2, g3;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("context-index", ".bin");
+        if (!file.delete()) {
+            throw new IllegalStateException("could not delete " + file);
+        }
+
+        dataDir = new File(file.getPath() + ".data");
+        store = new MemoryStore(dataDir);
+        vf = store.getValueFactory();
+        arthur = vf.createURI(NS + "arthur");
+        ford = vf.createURI(NS + "ford");
+        zaphod = vf.createURI(NS + "zaphod");
+        g1 = vf.createURI(NS + "g1");
+        g2 = vf.createURI(NS + "g2");
+        g3 = vf.createURI(NS + "g3");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        new File(file.getPath() + ".tmp").delete();
+        file.delete();
+        deleteAll(dataDir);
+    }
+
+    @Test
+    public void testRebuildWhenFileIsMissing() throws Exception {
+        // a store which was populated without the index
+        MemoryStore unindexed = new MemoryStore(dataDir);
+        unindexed.initialize();
+        SailConnection c = unindexed.getConnection();
+        try {
+            c.begin();
+            c.addStatement(ford, RDFS.SEEALSO, arthur, g1);
+            c.addStatement(arthur, RDFS.LABEL, vf.createLiteral("Arthur Dent"), g2);
+            // neither statements in the default graph nor blank nodes and literals are indexed
+            c.addStatement(zaphod, RDF.TYPE, RDFS.RESOURCE);
+            c.addStatement(vf.createBNode(), RDFS.LABEL, vf.createLiteral("towel"), g3);
+            c.commit();
+        } finally {
+            c.close();
+        }
+        unindexed.shutDown();
+
+        Assert.assertFalse(file.exists());
+        ContextIndexSail sail = new ContextIndexSail(store, file);
+        sail.initialize();
+        try {
+            ContextIndex index = sail.getContextIndex();
+            Assert.assertEquals(set(g1, g2), index.getContexts(arthur.stringValue()).keySet());
+            Assert.assertEquals(set(g1), index.getContexts(ford.stringValue()).keySet());
+            Assert.assertTrue(index.getContexts(zaphod.stringValue()).isEmpty());
+            Assert.assertEquals(2, index.size());
+        } finally {
+            sail.shutDown();
+        }
+
+        Assert.assertTrue(file.exists());
+    }
+
+    @Test
+    public void testCommittedStatementsAreIndexed() throws Exception {
+        ContextIndexSail sail = new ContextIndexSail(store, file);
+        sail.initialize();
+        try {
+            ContextIndex index = sail.getContextIndex();
+            Assert.assertEquals(0, index.size());
+
+            SailConnection c = sail.getConnection();
+            try {
+                c.begin();
+                c.addStatement(ford, RDFS.SEEALSO, arthur, g1, g2);
+                c.rollback();
+                Assert.assertEquals(0, index.size());
+
+                c.begin();
+                c.addStatement(ford, RDFS.SEEALSO, arthur, g1, g2);
+                // not visible until the transaction is committed
+                Assert.assertEquals(0, index.size());
+                c.commit();
+            } finally {
+                c.close();
+            }
+
+            Assert.assertEquals(set(g1, g2), index.getContexts(arthur.stringValue()).keySet());
+            Assert.assertEquals(set(g1, g2), index.getContexts(ford.stringValue()).keySet());
+        } finally {
+            sail.shutDown();
+        }
+    }
+
+    @Test
+    public void testReloadFromLog() throws Exception {
+        ContextIndex index = new ContextIndex(file);
+        index.open();
+        index.addAll(contexts(arthur, g1, g2));
+        index.addAll(contexts(ford, g1));
+
+        // the index is not closed, as after a crash, and the last entry of the log has been cut short
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file, true));
+        try {
+            out.writeInt(100);
+            out.write(new byte[]{'h', 't', 't', 'p'});
+        } finally {
+            out.close();
+        }
+
+        ContextIndex reloaded = new ContextIndex(file);
+        Assert.assertTrue(reloaded.exists());
+        reloaded.open();
+        try {
+            Assert.assertEquals(set(g1, g2), reloaded.getContexts(arthur.stringValue()).keySet());
+            Assert.assertEquals(set(g1), reloaded.getContexts(ford.stringValue()).keySet());
+            Assert.assertEquals(2, reloaded.size());
+        } finally {
+            reloaded.close();
+        }
+    }
+
+    @Test
+    public void testAppendAfterTruncatedEntry() throws Exception {
+        ContextIndex index = new ContextIndex(file);
+        index.open();
+        index.addAll(contexts(arthur, g1));
+
+        // a crash cuts the last entry short
+        long complete = file.length();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file, true));
+        try {
+            out.writeInt(100);
+            out.write(new byte[]{'h', 't', 't', 'p'});
+        } finally {
+            out.close();
+        }
+
+        // the partial entry is discarded, so that new entries follow the last complete one
+        ContextIndex reloaded = new ContextIndex(file);
+        reloaded.open();
+        Assert.assertEquals(complete, file.length());
+        reloaded.addAll(contexts(ford, g2, g3));
+
+        // neither index is closed, as after a second crash, so nothing is compacted
+        ContextIndex reloadedAgain = new ContextIndex(file);
+        reloadedAgain.open();
+        try {
+            Assert.assertEquals(set(g1), reloadedAgain.getContexts(arthur.stringValue()).keySet());
+            Assert.assertEquals(set(g2, g3), reloadedAgain.getContexts(ford.stringValue()).keySet());
+            Assert.assertEquals(2, reloadedAgain.size());
+        } finally {
+            reloadedAgain.close();
+        }
+    }
+
+    @Test
+    public void testCompactionOnClose() throws Exception {
+        ContextIndex index = new ContextIndex(file);
+        index.open();
+        index.addAll(contexts(arthur, g1, g2, g3));
+        // entries already in the index are not logged again
+        index.addAll(contexts(arthur, g1, g2, g3));
+        Map<String, Long> entries = index.getContexts(arthur.stringValue());
+        Assert.assertTrue(index.prune(arthur.stringValue(), g2.stringValue(), entries.get(g2.stringValue())));
+        Assert.assertTrue(index.prune(arthur.stringValue(), g3.stringValue(), entries.get(g3.stringValue())));
+        long logged = file.length();
+        index.close();
+
+        // only the remaining entry is persisted
+        Assert.assertTrue(file.length() < logged);
+        Assert.assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        ContextIndex reloaded = new ContextIndex(file);
+        reloaded.open();
+        try {
+            Assert.assertEquals(set(g1), reloaded.getContexts(arthur.stringValue()).keySet());
+        } finally {
+            reloaded.close();
+        }
+    }
+
+    @Test
+    public void testPruneStaleGraphs() throws Exception {
+        ContextIndex index = new ContextIndex(file);
+        index.open();
+        try {
+            index.addAll(contexts(arthur, g1, g2));
+
+            Map<String, Long> entries = index.getContexts(arthur.stringValue());
+            long v = entries.get(g1.stringValue());
+            Assert.assertTrue(index.prune(arthur.stringValue(), g1.stringValue(), v));
+            // pruning is idempotent, and unknown entries are ignored
+            Assert.assertFalse(index.prune(arthur.stringValue(), g1.stringValue(), v));
+            Assert.assertFalse(index.prune(ford.stringValue(), g1.stringValue(), v));
+
+            Assert.assertEquals(set(g2), index.getContexts(arthur.stringValue()).keySet());
+        } finally {
+            index.close();
+        }
+    }
+
+    @Test
+    public void testEntryAddedAgainIsNotPruned() throws Exception {
+        ContextIndex index = new ContextIndex(file);
+        index.open();
+        try {
+            index.addAll(contexts(arthur, g1));
+            long stale = index.getContexts(arthur.stringValue()).get(g1.stringValue());
+
+            // The graph is found not to mention the resource, but before it is pruned,
+            // a transaction adds the resource to the graph again.
+            index.addAll(contexts(arthur, g1));
+            long current = index.getContexts(arthur.stringValue()).get(g1.stringValue());
+            Assert.assertTrue(current > stale);
+
+            Assert.assertFalse(index.prune(arthur.stringValue(), g1.stringValue(), stale));
+            Assert.assertEquals(set(g1), index.getContexts(arthur.stringValue()).keySet());
+
+            Assert.assertTrue(index.prune(arthur.stringValue(), g1.stringValue(), current));
+            Assert.assertTrue(index.getContexts(arthur.stringValue()).isEmpty());
+        } finally {
+            index.close();
+        }
+    }
+
+    private Map<String, Set<String>> contexts(final URI resource,
+                                              final URI... contexts) {
+        Set<String> s = new HashSet<String>();
+        for (URI c : contexts) {
+            s.add(c.stringValue());
+        }
+
+        Map<String, Set<String>> m = new HashMap<String, Set<String>>();
+        m.put(resource.stringValue(), s);
+        return m;
+    }
+
+    private void deleteAll(final File f) {
+        File[] children = f.listFiles();
+        if (null != children) {
+            for (File child : children) {
+                deleteAll(child);
+            }
+        }
+        f.delete();
+    }
+
+    private Set<String> set(final URI... contexts) {
+        Set<String> s = new HashSet<String>();
+        for (URI c : contexts) {
+            s.add(c.stringValue());
+        }
+
+        return Collections.unmodifiableSet(s);
+    }
+}
@@ -0,0 +1,120 @@
+package net.fortytwo.sesametools.ldserver;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openrdf.model.Model;
+import org.openrdf.model.URI;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.vocabulary.RDFS;
+import org.openrdf.repository.Repository;
+import org.openrdf.repository.RepositoryConnection;
+import org.openrdf.repository.sail.SailRepository;
+import org.openrdf.rio.RDFFormat;
+import org.openrdf.rio.Rio;
+import org.openrdf.sail.SailConnection;
+import org.openrdf.sail.memory.MemoryStore;
+import org.restlet.Component;
+import org.restlet.data.Protocol;
+import org.restlet.engine.Engine;
+import org.restlet.routing.Router;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.logging.Level;
+
+/**
+ * Checks that resource descriptions link to the named graphs of a resource through the index of a
+ * <code>ContextIndexSail</code>, and that graphs which no longer mention the resource are pruned from the index.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class ContextIndexWebResourceTest {
+    private static final int PORT = 8002;
+
+    private static final String
+            DATA_FILE = "demoApp.trig",
+            INTERNAL_BASE_URI = "http://example.org",
+            EXTERNAL_BASE_URI = "http://localhost:" + PORT;
+
+    private static File indexFile;
+    private static ContextIndexSail sail;
+    private static Component component;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        indexFile = File.createTempFile("context-index", ".bin");
+        indexFile.delete();
+
+        sail = new ContextIndexSail(new MemoryStore(), indexFile);
+        sail.initialize();
+
+        // add test data through the indexing sail
+        Repository repo = new SailRepository(sail);
+        RepositoryConnection con = repo.getConnection();
+        try {
+            con.add(ContextIndexWebResourceTest.class.getResourceAsStream(DATA_FILE), "", RDFFormat.TRIG);
+        } finally {
+            con.close();
+        }
+
+        // turn off verbose logging in Restlet engine
+        Engine.setLogLevel(Level.WARNING);
+
+        LinkedDataServer server = new LinkedDataServer(sail, INTERNAL_BASE_URI, EXTERNAL_BASE_URI);
+        Router router = new Router();
+        router.attach("/person", WebResource.class);
+        server.setInboundRoot(router);
+
+        component = new Component();
+        component.getServers().add(Protocol.HTTP, PORT);
+        component.getDefaultHost().attach(server);
+        component.start();
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        component.stop();
+        sail.shutDown();
+        indexFile.delete();
+    }
+
+    @Test
+    public void testGraphsAreFoundThroughIndex() throws Exception {
+        ValueFactory vf = sail.getValueFactory();
+        URI arthur = vf.createURI(EXTERNAL_BASE_URI + "/person/arthur");
+        URI demoGraph = vf.createURI(EXTERNAL_BASE_URI + "/graph/demoGraph");
+        String internalArthur = INTERNAL_BASE_URI + "/person/arthur";
+        String internalDemoGraph = INTERNAL_BASE_URI + "/graph/demoGraph";
+
+        Assert.assertTrue(sail.getContextIndex().getContexts(internalArthur).containsKey(internalDemoGraph));
+        Assert.assertTrue(describe(arthur).contains(arthur, RDFS.SEEALSO, demoGraph));
+
+        // arthur no longer appears in the graph
+        SailConnection c = sail.getConnection();
+        try {
+            c.begin();
+            c.removeStatements(null, null, vf.createURI(internalArthur), vf.createURI(internalDemoGraph));
+            c.commit();
+        } finally {
+            c.close();
+        }
+
+        Assert.assertFalse(describe(arthur).contains(arthur, RDFS.SEEALSO, demoGraph));
+        Assert.assertFalse(sail.getContextIndex().getContexts(internalArthur).containsKey(internalDemoGraph));
+
+        // ford, who still appears in the graph, is still linked to it
+        URI ford = vf.createURI(EXTERNAL_BASE_URI + "/person/ford");
+        Assert.assertTrue(describe(ford).contains(ford, RDFS.SEEALSO, demoGraph));
+    }
+
+    private Model describe(final URI resource) throws Exception {
+        InputStream in = new java.net.URL(resource.stringValue() + ".nt").openStream();
+        try {
+            return Rio.parse(in, resource.stringValue(), RDFFormat.NTRIPLES);
+        } finally {
+            in.close();
+        }
+    }
+}
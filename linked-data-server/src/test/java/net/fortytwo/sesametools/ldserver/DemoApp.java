@@ -1,6 +1,7 @@
 package net.fortytwo.sesametools.ldserver;
 
 import net.fortytwo.sesametools.ldserver.query.SparqlResource;
+import net.fortytwo.sesametools.ldserver.query.SparqlUpdateResource;
 import org.openrdf.repository.Repository;
 import org.openrdf.repository.RepositoryConnection;
 import org.openrdf.repository.sail.SailRepository;
@@ -9,6 +10,8 @@ import org.openrdf.sail.Sail;
 import org.openrdf.sail.memory.MemoryStore;
 import org.restlet.Component;
 import org.restlet.data.Protocol;
+import org.restlet.routing.Router;
+import org.restlet.security.MapVerifier;
 
 /**
  * @author Joshua Shinavier (http://fortytwo.net)
@@ -31,13 +34,24 @@ public class DemoApp {
                 "http://example.org",
                 "http://localhost:8001");
 
+        // updates are accepted only from this user
+        MapVerifier verifier = new MapVerifier();
+        verifier.getLocalSecrets().put("demo", "demo".toCharArray());
+        server.setUpdateVerifier(verifier);
+
+        Router router = new Router();
+        router.attach("/person", WebResource.class);
+        router.attach("/graph", GraphResource.class);
+        router.attach("/sparql", new SparqlResource());
+        router.attach("/update", new SparqlUpdateResource());
+        router.attach("/metrics", MetricsResource.class);
+        server.setInboundRoot(router);
+
+        // further servers, e.g. for other data sets, may be attached to the same component under other paths
         Component component = new Component();
         component.getServers().add(Protocol.HTTP, 8001);
-        component.getDefaultHost().attach("/person", WebResource.class);
-        component.getDefaultHost().attach("/graph", GraphResource.class);
-        component.getDefaultHost().attach("/sparql", new SparqlResource());
-        server.setInboundRoot(component);
-        server.start();
+        component.getDefaultHost().attach(server);
+        component.start();
 
         /* Now try:
            wget http://localhost:8001/person/arthur
@@ -46,6 +60,12 @@ public class DemoApp {
 
            wget "http://localhost:8001/sparql?query=SELECT%20%3Fs%20%3Fp%20%3Fo%20WHERE%20%7B%20%3Fs%20%3Fp%20%3Fo%20%7D%20LIMIT%2010"
            curl --data-urlencode query@/tmp/myquery.rq http://localhost:8001/sparql
+           curl http://localhost:8001/metrics
+
+           curl -u demo:demo -X PUT -H "Content-Type: text/turtle" --data-binary @/tmp/mygraph.ttl \
+               http://localhost:8001/graph/myGraph
+           curl -u demo:demo -H "Content-Type: application/sparql-update" --data-binary @/tmp/myupdate.ru \
+               http://localhost:8001/update
          */
     }
 }
@@ -0,0 +1,209 @@
+package net.fortytwo.sesametools.ldserver;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openrdf.model.URI;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.vocabulary.RDFS;
+import org.openrdf.sail.Sail;
+import org.openrdf.sail.SailConnection;
+import org.openrdf.sail.memory.MemoryStore;
+import org.restlet.Component;
+import org.restlet.data.Protocol;
+import org.restlet.engine.Engine;
+import org.restlet.routing.Router;
+import org.restlet.security.MapVerifier;
+
+import java.util.logging.Level;
+
+/**
+ * Checks conditional and compressed retrieval of graphs, and that an upload which fails leaves its graph unchanged
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class GraphResourceTest {
+    private static final int PORT = 8005;
+
+    private static final long TIMEOUT = 10000;
+
+    private static final String
+            GRAPH_URL = "http://localhost:" + PORT + "/graph/test",
+            TURTLE = "text/turtle",
+            USER = "alice",
+            PASSWORD = "secret";
+
+    private static Sail sail;
+    private static Component component;
+
+    private static URI graph;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        sail = new MemoryStore();
+        sail.initialize();
+        graph = sail.getValueFactory().createURI(GRAPH_URL);
+
+        // turn off verbose logging in Restlet engine
+        Engine.setLogLevel(Level.WARNING);
+
+        LinkedDataServer server = new LinkedDataServer(sail, "", "");
+        MapVerifier verifier = new MapVerifier();
+        verifier.getLocalSecrets().put(USER, PASSWORD.toCharArray());
+        server.setUpdateVerifier(verifier);
+
+        Router router = new Router();
+        router.attach("/graph", GraphResource.class);
+        server.setInboundRoot(router);
+
+        component = new Component();
+        component.getServers().add(Protocol.HTTP, PORT);
+        component.getDefaultHost().attach(server);
+        component.start();
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        component.stop();
+        sail.shutDown();
+    }
+
+    @Before
+    public void reset() throws Exception {
+        ValueFactory vf = sail.getValueFactory();
+        SailConnection c = sail.getConnection();
+        try {
+            c.begin();
+            c.clear();
+            c.addStatement(vf.createURI("http://example.org/thing"), RDFS.LABEL, vf.createLiteral("a thing"), graph);
+            c.commit();
+        } finally {
+            c.close();
+        }
+    }
+
+    @Test
+    public void testNotModifiedByEntityTag() throws Exception {
+        TestHttp.Result r = TestHttp.get(GRAPH_URL, "Accept", TURTLE);
+        Assert.assertEquals(200, r.status);
+        String tag = r.getHeader("ETag");
+        Assert.assertNotNull(tag);
+
+        r = TestHttp.get(GRAPH_URL, "Accept", TURTLE, "If-None-Match", tag);
+        Assert.assertEquals(304, r.status);
+        Assert.assertEquals(0, r.body.length);
+        Assert.assertEquals(tag, r.getHeader("ETag"));
+
+        // a change to the data store changes the tag
+        addLabel("another thing");
+        r = TestHttp.get(GRAPH_URL, "Accept", TURTLE, "If-None-Match", tag);
+        Assert.assertEquals(200, r.status);
+        Assert.assertFalse(tag.equals(r.getHeader("ETag")));
+        Assert.assertTrue(r.getText().contains("another thing"));
+    }
+
+    @Test
+    public void testNotModifiedSinceDate() throws Exception {
+        // the modification date is only given out once the second of the last change has passed
+        String date = null;
+        long start = System.currentTimeMillis();
+        while (null == date) {
+            Assert.assertTrue(System.currentTimeMillis() - start < TIMEOUT);
+            TestHttp.Result r = TestHttp.get(GRAPH_URL, "Accept", TURTLE);
+            Assert.assertEquals(200, r.status);
+            date = r.getHeader("Last-Modified");
+            if (null == date) {
+                Thread.sleep(100);
+            }
+        }
+
+        Assert.assertEquals(304, TestHttp.get(GRAPH_URL, "Accept", TURTLE, "If-Modified-Since", date).status);
+
+        // after a change, the document is sent again
+        addLabel("another thing");
+        TestHttp.Result r = TestHttp.get(GRAPH_URL, "Accept", TURTLE, "If-Modified-Since", date);
+        Assert.assertEquals(200, r.status);
+        Assert.assertTrue(r.getText().contains("another thing"));
+    }
+
+    @Test
+    public void testCompressionIsNegotiated() throws Exception {
+        TestHttp.Result plain = TestHttp.get(GRAPH_URL, "Accept", TURTLE);
+        Assert.assertEquals(200, plain.status);
+        Assert.assertNull(plain.getHeader("Content-Encoding"));
+
+        TestHttp.Result gzipped = TestHttp.get(GRAPH_URL, "Accept", TURTLE, "Accept-Encoding", "gzip");
+        Assert.assertEquals(200, gzipped.status);
+        Assert.assertEquals("gzip", gzipped.getHeader("Content-Encoding"));
+        Assert.assertTrue(gzipped.getHeader("Vary").contains("Accept-Encoding"));
+
+        // the compressed and uncompressed documents are distinct entities
+        Assert.assertFalse(plain.getHeader("ETag").equals(gzipped.getHeader("ETag")));
+
+        // a client which refuses compression is sent the document as it is
+        TestHttp.Result identity = TestHttp.get(GRAPH_URL, "Accept", TURTLE, "Accept-Encoding", "gzip;q=0");
+        Assert.assertEquals(200, identity.status);
+        Assert.assertNull(identity.getHeader("Content-Encoding"));
+    }
+
+    @Test
+    public void testUpload() throws Exception {
+        TestHttp.Result r = TestHttp.request("POST", GRAPH_URL, TURTLE,
+                "<http://example.org/other> <" + RDFS.LABEL + "> \"another thing\" .\n",
+                "Authorization", TestHttp.basicAuthorization(USER, PASSWORD));
+        Assert.assertEquals(204, r.status);
+        Assert.assertEquals(2, countStatements());
+
+        r = TestHttp.request("PUT", GRAPH_URL, TURTLE,
+                "<http://example.org/other> <" + RDFS.LABEL + "> \"a replacement\" .\n",
+                "Authorization", TestHttp.basicAuthorization(USER, PASSWORD));
+        Assert.assertEquals(204, r.status);
+        Assert.assertEquals(1, countStatements());
+        Assert.assertTrue(TestHttp.get(GRAPH_URL, "Accept", TURTLE).getText().contains("a replacement"));
+    }
+
+    @Test
+    public void testFailedUploadLeavesGraphUnchanged() throws Exception {
+        // a document whose first statements are parsed and written before the syntax error is found
+        String broken = "<http://example.org/other> <" + RDFS.LABEL + "> \"another thing\" .\n"
+                + "<http://example.org/other> <" + RDFS.COMMENT + "> \"a comment\" .\n"
+                + "this is not Turtle\n";
+
+        TestHttp.Result r = TestHttp.request("PUT", GRAPH_URL, TURTLE, broken,
+                "Authorization", TestHttp.basicAuthorization(USER, PASSWORD));
+        Assert.assertEquals(400, r.status);
+        Assert.assertEquals(1, countStatements());
+
+        r = TestHttp.request("POST", GRAPH_URL, TURTLE, broken,
+                "Authorization", TestHttp.basicAuthorization(USER, PASSWORD));
+        Assert.assertEquals(400, r.status);
+        Assert.assertEquals(1, countStatements());
+
+        r = TestHttp.get(GRAPH_URL, "Accept", TURTLE);
+        Assert.assertTrue(r.getText().contains("a thing"));
+        Assert.assertFalse(r.getText().contains("another thing"));
+    }
+
+    private void addLabel(final String label) throws Exception {
+        ValueFactory vf = sail.getValueFactory();
+        SailConnection c = sail.getConnection();
+        try {
+            c.begin();
+            c.addStatement(vf.createURI("http://example.org/other"), RDFS.LABEL, vf.createLiteral(label), graph);
+            c.commit();
+        } finally {
+            c.close();
+        }
+    }
+
+    private long countStatements() throws Exception {
+        SailConnection c = sail.getConnection();
+        try {
+            return c.size(graph);
+        } finally {
+            c.close();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package net.fortytwo.sesametools.ldserver;
+
+import org.openrdf.rio.RDFFormat;
+import org.restlet.data.ClientInfo;
+import org.restlet.data.MediaType;
+import org.restlet.data.Preference;
+import org.restlet.representation.Variant;
+import org.restlet.service.MetadataService;
+
+import java.util.List;
+
+/**
+ * Compares the throughput of RDF content negotiation through the precomputed table of RDFMediaTypes
+ * with that of the generic Restlet negotiation algorithm, for a few typical Accept headers.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class RDFMediaTypesBenchmark {
+    private static final int
+            WARMUP_ITERATIONS = 100000,
+            ITERATIONS = 1000000;
+
+    public static void main(final String[] args) throws Exception {
+        ClientInfo[] clients = new ClientInfo[]{
+                // a browser
+                createClient(new String[]{"text/html", "application/xhtml+xml", "application/xml", "*/*"},
+                        new float[]{1.0f, 1.0f, 0.9f, 0.8f}),
+                // a Linked Data client
+                createClient(new String[]{"text/turtle", "application/rdf+xml", "application/n-triples"},
+                        new float[]{1.0f, 0.9f, 0.5f}),
+                // a client which accepts anything
+                createClient(new String[]{"*/*"}, new float[]{1.0f}),
+                // a client which excludes RDF/XML
+                createClient(new String[]{"application/rdf+xml", "application/*"}, new float[]{0.0f, 1.0f})
+        };
+
+        List<Variant> variants = RDFMediaTypes.getRDFVariants();
+        MetadataService metadataService = new MetadataService();
+
+        for (ClientInfo c : clients) {
+            RDFFormat table = RDFMediaTypes.negotiate(c.getAcceptedMediaTypes());
+            Variant restlet = c.getPreferredVariant(variants, metadataService);
+            System.out.println("table: " + (null == table ? null : table.getName())
+                    + ", Restlet: " + (null == restlet ? null : restlet.getMediaType()));
+        }
+
+        for (int round = 0; round < 2; round++) {
+            boolean warmup = 0 == round;
+            int iterations = warmup ? WARMUP_ITERATIONS : ITERATIONS;
+
+            long start = System.nanoTime();
+            int found = 0;
+            for (int i = 0; i < iterations; i++) {
+                if (null != RDFMediaTypes.negotiate(clients[i % clients.length].getAcceptedMediaTypes())) {
+                    found++;
+                }
+            }
+            long tableTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                if (null != clients[i % clients.length].getPreferredVariant(variants, metadataService)) {
+                    found++;
+                }
+            }
+            long restletTime = System.nanoTime() - start;
+
+            if (!warmup) {
+                System.out.println("negotiation table: " + rate(iterations, tableTime) + " negotiations/s");
+                System.out.println("Restlet:           " + rate(iterations, restletTime) + " negotiations/s");
+                System.out.println("(" + found + " variants found)");
+            }
+        }
+    }
+
+    private static ClientInfo createClient(final String[] mediaTypes,
+                                           final float[] qualities) {
+        ClientInfo c = new ClientInfo();
+        for (int i = 0; i < mediaTypes.length; i++) {
+            c.getAcceptedMediaTypes().add(new Preference<MediaType>(MediaType.valueOf(mediaTypes[i]), qualities[i]));
+        }
+
+        return c;
+    }
+
+    private static long rate(final int iterations,
+                             final long nanos) {
+        return iterations * 1000000000L / Math.max(1, nanos);
+    }
+}
@@ -0,0 +1,370 @@
+package net.fortytwo.sesametools.ldserver;
+
+import info.aduna.iteration.CloseableIteration;
+import info.aduna.iteration.IterationWrapper;
+import net.fortytwo.sesametools.ldserver.query.CursorRegistry;
+import net.fortytwo.sesametools.ldserver.query.SparqlResource;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.vocabulary.RDFS;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.Dataset;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.TupleExpr;
+import org.openrdf.sail.Sail;
+import org.openrdf.sail.SailConnection;
+import org.openrdf.sail.SailException;
+import org.openrdf.sail.helpers.SailConnectionWrapper;
+import org.openrdf.sail.helpers.SailWrapper;
+import org.openrdf.sail.memory.MemoryStore;
+import org.restlet.Component;
+import org.restlet.data.Protocol;
+import org.restlet.engine.Engine;
+import org.restlet.routing.Router;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.URLEncoder;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Checks the admission control, time limit, compression, cursors and connection pooling of the SPARQL endpoint
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class SparqlEndpointTest {
+    private static final int PORT = 8004;
+
+    private static final int THINGS = 5;
+
+    private static final long TIMEOUT = 10000;
+
+    private static final String
+            BASE_URL = "http://localhost:" + PORT,
+            ENDPOINT_URL = BASE_URL + "/sparql",
+            TIMED_ENDPOINT_URL = BASE_URL + "/timed",
+            METRICS_URL = BASE_URL + "/metrics",
+            SELECT_LABELS = "SELECT ?label WHERE { ?thing <" + RDFS.LABEL + "> ?label }";
+
+    private static final Pattern LINK = Pattern.compile("<link href=\"([^\"]+)\"");
+
+    private static ControlledSail sail;
+    private static LinkedDataServer server;
+    private static SparqlResource endpoint;
+    private static Component component;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        sail = new ControlledSail(new MemoryStore());
+        sail.initialize();
+
+        ValueFactory vf = sail.getValueFactory();
+        SailConnection c = sail.getConnection();
+        try {
+            c.begin();
+            for (int i = 0; i < THINGS; i++) {
+                c.addStatement(vf.createURI("http://example.org/thing" + i), RDFS.LABEL, vf.createLiteral("thing " + i));
+            }
+            c.commit();
+        } finally {
+            c.close();
+        }
+
+        // turn off verbose logging in Restlet engine
+        Engine.setLogLevel(Level.WARNING);
+
+        server = new LinkedDataServer(sail, "", "");
+
+        // one query at a time, with no queue, on the main endpoint; a short time limit on the other
+        endpoint = new SparqlResource(1, 0, 100, 0, 10);
+        Router router = new Router();
+        router.attach("/sparql", endpoint);
+        router.attach("/timed", new SparqlResource(4, 4, 1000, 200, 10));
+        router.attach("/metrics", MetricsResource.class);
+        server.setInboundRoot(router);
+
+        component = new Component();
+        component.getServers().add(Protocol.HTTP, PORT);
+        component.getDefaultHost().attach(server);
+        component.start();
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        component.stop();
+        sail.shutDown();
+    }
+
+    @Test
+    public void testQueryBeyondCapacityIsRejected() throws Exception {
+        CountDownLatch gate = new CountDownLatch(1);
+        sail.gate = gate;
+
+        // a query which holds the only evaluation slot
+        final TestHttp.Result[] first = new TestHttp.Result[1];
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    first[0] = TestHttp.get(queryURL(ENDPOINT_URL, SELECT_LABELS));
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        t.start();
+        try {
+            Assert.assertTrue(sail.entered.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS));
+
+            Assert.assertEquals(503, TestHttp.get(queryURL(ENDPOINT_URL, SELECT_LABELS)).status);
+        } finally {
+            sail.gate = null;
+            gate.countDown();
+        }
+        t.join(TIMEOUT);
+        Assert.assertFalse(t.isAlive());
+        Assert.assertEquals(200, first[0].status);
+        Assert.assertEquals(THINGS, countResults(first[0].getText()));
+
+        // the slot is given back once the first query has been answered
+        TestHttp.Result r = TestHttp.get(queryURL(ENDPOINT_URL, SELECT_LABELS));
+        Assert.assertEquals(200, r.status);
+        Assert.assertEquals(THINGS, countResults(r.getText()));
+    }
+
+    @Test
+    public void testQueryExceedingTimeLimitIsCancelled() throws Exception {
+        sail.delay = 1000;
+        TestHttp.Result r;
+        try {
+            r = TestHttp.get(queryURL(TIMED_ENDPOINT_URL, SELECT_LABELS));
+        } finally {
+            sail.delay = 0;
+        }
+        Assert.assertEquals(503, r.status);
+
+        // the endpoint is still usable
+        r = TestHttp.get(queryURL(TIMED_ENDPOINT_URL, SELECT_LABELS));
+        Assert.assertEquals(200, r.status);
+        Assert.assertEquals(THINGS, countResults(r.getText()));
+    }
+
+    @Test
+    public void testResultsAreCompressedOnRequest() throws Exception {
+        TestHttp.Result plain = TestHttp.get(queryURL(ENDPOINT_URL, SELECT_LABELS));
+        Assert.assertEquals(200, plain.status);
+        Assert.assertNull(plain.getHeader("Content-Encoding"));
+
+        TestHttp.Result gzipped = TestHttp.get(queryURL(ENDPOINT_URL, SELECT_LABELS), "Accept-Encoding", "gzip");
+        Assert.assertEquals(200, gzipped.status);
+        Assert.assertEquals("gzip", gzipped.getHeader("Content-Encoding"));
+        Assert.assertTrue(gzipped.getHeader("Vary").contains("Accept-Encoding"));
+        Assert.assertEquals(plain.getText(), gunzip(gzipped.body));
+    }
+
+    @Test
+    public void testCursorPaging() throws Exception {
+        TestHttp.Result r = TestHttp.get(queryURL(ENDPOINT_URL, SELECT_LABELS) + "&cursor=true&limit=2&output=xml");
+        Assert.assertEquals(200, r.status);
+        Assert.assertEquals(2, countResults(r.getText()));
+        String page2 = nextPage(r.getText());
+        Assert.assertNotNull(page2);
+
+        // the link keeps the output format and limit of the request
+        Assert.assertTrue(page2.startsWith(ENDPOINT_URL + "?cursor="));
+        Assert.assertTrue(page2.contains("&output=xml"));
+        Assert.assertTrue(page2.contains("&limit=2"));
+
+        r = TestHttp.get(page2);
+        Assert.assertEquals(200, r.status);
+        Assert.assertEquals(2, countResults(r.getText()));
+        String page3 = nextPage(r.getText());
+        Assert.assertNotNull(page3);
+
+        // the last page links nowhere, and the exhausted cursor is closed
+        r = TestHttp.get(page3);
+        Assert.assertEquals(200, r.status);
+        Assert.assertEquals(1, countResults(r.getText()));
+        Assert.assertNull(nextPage(r.getText()));
+        Assert.assertEquals(404, TestHttp.get(page3).status);
+
+        // a format which cannot express links is refused
+        r = TestHttp.get(queryURL(ENDPOINT_URL, SELECT_LABELS) + "&cursor=true&output=csv");
+        Assert.assertEquals(400, r.status);
+    }
+
+    @Test
+    public void testIdleCursorExpires() throws Exception {
+        CursorRegistry cursors = endpoint.getCursorRegistry();
+        long timeToLive = cursors.getTimeToLive();
+        cursors.setTimeToLive(100);
+        try {
+            TestHttp.Result r = TestHttp.get(queryURL(ENDPOINT_URL, SELECT_LABELS) + "&cursor=true&limit=2");
+            Assert.assertEquals(200, r.status);
+            String page2 = nextPage(r.getText());
+            Assert.assertNotNull(page2);
+
+            long start = System.currentTimeMillis();
+            while (cursors.size() > 0) {
+                Assert.assertTrue(System.currentTimeMillis() - start < TIMEOUT);
+                Thread.sleep(100);
+            }
+
+            Assert.assertEquals(404, TestHttp.get(page2).status);
+        } finally {
+            cursors.setTimeToLive(timeToLive);
+        }
+    }
+
+    @Test
+    public void testExhaustedConnectionPool() throws Exception {
+        ConnectionPool pool = server.getConnectionPool();
+        long borrowTimeout = pool.getBorrowTimeout();
+        pool.setBorrowTimeout(100);
+
+        // take every connection the pool will give out
+        List<SailConnection> borrowed = new LinkedList<SailConnection>();
+        try {
+            while (true) {
+                try {
+                    borrowed.add(pool.getConnection());
+                } catch (ConnectionPool.BorrowTimeoutException e) {
+                    break;
+                }
+                Assert.assertTrue(borrowed.size() <= pool.getMaxConnections());
+            }
+
+            long timeouts = pool.getTimeouts();
+            Assert.assertEquals(503, TestHttp.get(queryURL(ENDPOINT_URL, SELECT_LABELS)).status);
+            Assert.assertEquals(503,
+                    TestHttp.get(queryURL(ENDPOINT_URL, SELECT_LABELS) + "&cursor=true").status);
+            Assert.assertEquals(timeouts + 2, pool.getTimeouts());
+        } finally {
+            for (SailConnection c : borrowed) {
+                c.close();
+            }
+            pool.setBorrowTimeout(borrowTimeout);
+        }
+
+        // neither the evaluation slot nor any connection was kept by the failed requests
+        TestHttp.Result r = TestHttp.get(queryURL(ENDPOINT_URL, SELECT_LABELS));
+        Assert.assertEquals(200, r.status);
+        Assert.assertEquals(THINGS, countResults(r.getText()));
+    }
+
+    @Test
+    public void testQueryCacheIsReported() throws Exception {
+        String query = "SELECT ?thing WHERE { ?thing <" + RDFS.LABEL + "> \"thing 0\" }";
+        Assert.assertEquals(200, TestHttp.get(queryURL(ENDPOINT_URL, query)).status);
+        long hits = readMetric("ldserver_sparql_query_cache_hits");
+        Assert.assertEquals(200, TestHttp.get(queryURL(ENDPOINT_URL, query)).status);
+        Assert.assertEquals(hits + 1, readMetric("ldserver_sparql_query_cache_hits"));
+        Assert.assertTrue(readMetric("ldserver_sparql_query_cache_size") > 0);
+    }
+
+    private static String queryURL(final String endpointURL,
+                                   final String query) throws Exception {
+        return endpointURL + "?query=" + URLEncoder.encode(query, "UTF-8");
+    }
+
+    // the number of solutions in SPARQL XML results
+    private static int countResults(final String xml) {
+        int count = 0;
+        int i = 0;
+        while ((i = xml.indexOf("<result>", i)) >= 0) {
+            count++;
+            i++;
+        }
+        return count;
+    }
+
+    // the link to the next page of SPARQL XML results, if any
+    private static String nextPage(final String xml) {
+        Matcher m = LINK.matcher(xml);
+        return m.find() ? m.group(1).replace("&amp;", "&") : null;
+    }
+
+    private static long readMetric(final String name) throws Exception {
+        String text = TestHttp.get(METRICS_URL).getText();
+        for (String line : text.split("\n")) {
+            if (line.startsWith(name + " ")) {
+                return Long.valueOf(line.substring(name.length() + 1).trim());
+            }
+        }
+
+        throw new IllegalStateException("no such metric: " + name);
+    }
+
+    private static String gunzip(final byte[] data) throws Exception {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(data));
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                bos.write(buffer, 0, n);
+            }
+            return new String(bos.toByteArray(), "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    // A store whose query evaluation can be held up at the start, or slowed down for each solution
+    private static class ControlledSail extends SailWrapper {
+        private final Semaphore entered = new Semaphore(0);
+        private volatile CountDownLatch gate = null;
+        private volatile long delay = 0;
+
+        private ControlledSail(final Sail baseSail) {
+            super(baseSail);
+        }
+
+        @Override
+        public SailConnection getConnection() throws SailException {
+            return new SailConnectionWrapper(getBaseSail().getConnection()) {
+                @Override
+                public CloseableIteration<? extends BindingSet, QueryEvaluationException> evaluate(
+                        final TupleExpr tupleExpr, final Dataset dataset, final BindingSet bindings,
+                        final boolean includeInferred) throws SailException {
+                    CountDownLatch g = gate;
+                    if (null != g) {
+                        entered.release();
+                        try {
+                            g.await();
+                        } catch (InterruptedException e) {
+                            throw new SailException(e);
+                        }
+                    }
+
+                    return new IterationWrapper<BindingSet, QueryEvaluationException>(
+                            super.evaluate(tupleExpr, dataset, bindings, includeInferred)) {
+                        @Override
+                        public boolean hasNext() throws QueryEvaluationException {
+                            long d = delay;
+                            if (d > 0) {
+                                try {
+                                    Thread.sleep(d);
+                                } catch (InterruptedException e) {
+                                    throw new QueryEvaluationException(e);
+                                }
+                            }
+                            return super.hasNext();
+                        }
+                    };
+                }
+            };
+        }
+    }
+}
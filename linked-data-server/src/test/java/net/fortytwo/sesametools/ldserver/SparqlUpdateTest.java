@@ -0,0 +1,175 @@
+package net.fortytwo.sesametools.ldserver;
+
+import net.fortytwo.sesametools.ldserver.query.SparqlUpdateResource;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openrdf.model.URI;
+import org.openrdf.model.vocabulary.RDFS;
+import org.openrdf.sail.Sail;
+import org.openrdf.sail.SailConnection;
+import org.openrdf.sail.memory.MemoryStore;
+import org.restlet.Component;
+import org.restlet.data.Protocol;
+import org.restlet.engine.Engine;
+import org.restlet.routing.Router;
+import org.restlet.security.MapVerifier;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.logging.Level;
+
+/**
+ * Checks the authorization of SPARQL updates, and that LOAD is refused unless the server allows it
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class SparqlUpdateTest {
+    private static final int PORT = 8003;
+
+    private static final String
+            ENDPOINT_URL = "http://localhost:" + PORT + "/update",
+            SPARQL_UPDATE = "application/sparql-update",
+            USER = "alice",
+            PASSWORD = "secret";
+
+    private static Sail sail;
+    private static LinkedDataServer server;
+    private static Component component;
+
+    private static URI thing;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        sail = new MemoryStore();
+        sail.initialize();
+        thing = sail.getValueFactory().createURI("http://example.org/thing");
+
+        // turn off verbose logging in Restlet engine
+        Engine.setLogLevel(Level.WARNING);
+
+        server = new LinkedDataServer(sail, "", "");
+        MapVerifier verifier = new MapVerifier();
+        verifier.getLocalSecrets().put(USER, PASSWORD.toCharArray());
+        server.setUpdateVerifier(verifier);
+
+        Router router = new Router();
+        router.attach("/update", new SparqlUpdateResource());
+        server.setInboundRoot(router);
+
+        component = new Component();
+        component.getServers().add(Protocol.HTTP, PORT);
+        component.getDefaultHost().attach(server);
+        component.start();
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        component.stop();
+        sail.shutDown();
+    }
+
+    @Before
+    public void clear() throws Exception {
+        server.setUpdateLoadAllowed(false);
+
+        SailConnection c = sail.getConnection();
+        try {
+            c.begin();
+            c.clear();
+            c.commit();
+        } finally {
+            c.close();
+        }
+    }
+
+    @Test
+    public void testUpdateWithCredentials() throws Exception {
+        TestHttp.Result r = TestHttp.request("POST", ENDPOINT_URL, SPARQL_UPDATE, insertLabel("a thing"),
+                "Authorization", TestHttp.basicAuthorization(USER, PASSWORD));
+        Assert.assertEquals(204, r.status);
+        Assert.assertEquals(1, countStatements());
+    }
+
+    @Test
+    public void testUpdateWithoutCredentialsIsRefused() throws Exception {
+        TestHttp.Result r = TestHttp.request("POST", ENDPOINT_URL, SPARQL_UPDATE, insertLabel("a thing"));
+        Assert.assertEquals(401, r.status);
+        Assert.assertNotNull(r.getHeader("WWW-Authenticate"));
+        Assert.assertEquals(0, countStatements());
+    }
+
+    @Test
+    public void testUpdateWithBadCredentialsIsRefused() throws Exception {
+        TestHttp.Result r = TestHttp.request("POST", ENDPOINT_URL, SPARQL_UPDATE, insertLabel("a thing"),
+                "Authorization", TestHttp.basicAuthorization(USER, "wrong"));
+        Assert.assertEquals(401, r.status);
+        Assert.assertEquals(0, countStatements());
+    }
+
+    @Test
+    public void testUpdateMustBePosted() throws Exception {
+        TestHttp.Result r = TestHttp.get(ENDPOINT_URL + "?update=x",
+                "Authorization", TestHttp.basicAuthorization(USER, PASSWORD));
+        Assert.assertEquals(405, r.status);
+    }
+
+    @Test
+    public void testLoadIsRefusedByDefault() throws Exception {
+        File doc = createDocument();
+        try {
+            // a LOAD along with another operation: the whole update is refused
+            TestHttp.Result r = TestHttp.request("POST", ENDPOINT_URL, SPARQL_UPDATE,
+                    insertLabel("a thing") + ";\nLOAD <" + doc.toURI() + ">",
+                    "Authorization", TestHttp.basicAuthorization(USER, PASSWORD));
+            Assert.assertEquals(403, r.status);
+            Assert.assertEquals(0, countStatements());
+        } finally {
+            doc.delete();
+        }
+    }
+
+    @Test
+    public void testLoadWhenAllowed() throws Exception {
+        server.setUpdateLoadAllowed(true);
+
+        File doc = createDocument();
+        try {
+            TestHttp.Result r = TestHttp.request("POST", ENDPOINT_URL, SPARQL_UPDATE,
+                    "LOAD <" + doc.toURI() + ">",
+                    "Authorization", TestHttp.basicAuthorization(USER, PASSWORD));
+            Assert.assertEquals(204, r.status);
+            Assert.assertEquals(1, countStatements());
+        } finally {
+            doc.delete();
+        }
+    }
+
+    private String insertLabel(final String label) {
+        return "INSERT DATA { <" + thing + "> <" + RDFS.LABEL + "> \"" + label + "\" }";
+    }
+
+    // an N-Triples document with a single statement
+    private File createDocument() throws Exception {
+        File f = File.createTempFile("load", ".nt");
+        OutputStream out = new FileOutputStream(f);
+        try {
+            out.write(("<" + thing + "> <" + RDFS.LABEL + "> \"a loaded thing\" .\n").getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return f;
+    }
+
+    private long countStatements() throws Exception {
+        SailConnection c = sail.getConnection();
+        try {
+            return c.size();
+        } finally {
+            c.close();
+        }
+    }
+}
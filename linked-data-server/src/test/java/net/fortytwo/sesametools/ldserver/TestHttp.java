@@ -0,0 +1,138 @@
+package net.fortytwo.sesametools.ldserver;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal HTTP client for the endpoint tests, which exposes the status, headers and raw body of each response
+ * (including error responses, and without decompressing the body)
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+class TestHttp {
+    private static final String UTF_8 = "UTF-8";
+
+    private TestHttp() {
+    }
+
+    /**
+     * @param url     the URL to retrieve
+     * @param headers request headers, as alternating names and values
+     * @return the response
+     * @throws IOException if the request cannot be made
+     */
+    static Result get(final String url,
+                      final String... headers) throws IOException {
+        return request("GET", url, null, null, headers);
+    }
+
+    /**
+     * @param method      the HTTP method
+     * @param url         the URL of the request
+     * @param contentType the media type of the request entity, or null if there is no entity
+     * @param body        the request entity, or null if there is none
+     * @param headers     further request headers, as alternating names and values
+     * @return the response
+     * @throws IOException if the request cannot be made
+     */
+    static Result request(final String method,
+                          final String url,
+                          final String contentType,
+                          final String body,
+                          final String... headers) throws IOException {
+        HttpURLConnection c = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            c.setRequestMethod(method);
+            c.setInstanceFollowRedirects(false);
+            c.setUseCaches(false);
+            for (int i = 0; i < headers.length; i += 2) {
+                c.setRequestProperty(headers[i], headers[i + 1]);
+            }
+
+            if (null != body) {
+                c.setDoOutput(true);
+                c.setRequestProperty("Content-Type", contentType);
+                OutputStream out = c.getOutputStream();
+                try {
+                    out.write(body.getBytes(UTF_8));
+                } finally {
+                    out.close();
+                }
+            }
+
+            int status = c.getResponseCode();
+            InputStream in = status < 400 ? c.getInputStream() : c.getErrorStream();
+            byte[] data = null == in ? new byte[0] : readFully(in);
+            return new Result(status, c.getHeaderFields(), data);
+        } finally {
+            c.disconnect();
+        }
+    }
+
+    /**
+     * @param user     a user name
+     * @param password a password
+     * @return the value of an Authorization header with the given HTTP Basic credentials
+     * @throws IOException if the credentials cannot be encoded
+     */
+    static String basicAuthorization(final String user,
+                                     final String password) throws IOException {
+        return "Basic " + DatatypeConverter.printBase64Binary((user + ":" + password).getBytes(UTF_8));
+    }
+
+    private static byte[] readFully(final InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                bos.write(buffer, 0, n);
+            }
+            return bos.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * The status, headers and body of a response
+     */
+    static class Result {
+        final int status;
+        final Map<String, List<String>> headers;
+        final byte[] body;
+
+        private Result(final int status,
+                       final Map<String, List<String>> headers,
+                       final byte[] body) {
+            this.status = status;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        /**
+         * @param name the name of a header
+         * @return the first value of the header, or null if there is no such header
+         */
+        String getHeader(final String name) {
+            for (Map.Entry<String, List<String>> e : headers.entrySet()) {
+                if (null != e.getKey() && e.getKey().equalsIgnoreCase(name) && e.getValue().size() > 0) {
+                    return e.getValue().get(0);
+                }
+            }
+
+            return null;
+        }
+
+        String getText() throws IOException {
+            return new String(body, UTF_8);
+        }
+    }
+}
@@ -32,7 +32,6 @@ public class MappingSail extends SailWrapper {
 
     @Override
     public boolean isWritable() throws SailException {
-        // TODO: handle rewriting for write operations
-        return false;
+        return this.getBaseSail().isWritable();
     }
 }
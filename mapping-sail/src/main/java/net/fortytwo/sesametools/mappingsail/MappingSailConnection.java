@@ -8,6 +8,7 @@ import org.openrdf.model.Value;
 import org.openrdf.model.ValueFactory;
 import org.openrdf.sail.SailConnection;
 import org.openrdf.sail.SailException;
+import org.openrdf.sail.UpdateContext;
 import org.openrdf.sail.helpers.SailConnectionWrapper;
 
 /**
@@ -27,28 +28,85 @@ class MappingSailConnection extends SailConnectionWrapper {
 
     @Override
     public CloseableIteration<? extends Statement, SailException> getStatements(
-            Resource subj, URI pred, Value obj, final boolean includeInferred, Resource... contexts)
+            final Resource subj, final URI pred, final Value obj, final boolean includeInferred,
+            final Resource... contexts)
             throws SailException {
 
-        if (subj instanceof URI) {
-            subj = rewriters.getRewriter(
-                    MappingSchema.PartOfSpeech.SUBJECT, MappingSchema.Direction.INBOUND).rewrite((URI) subj);
-        }
-        pred = rewriters.getRewriter(
+        return new RewritingStatementIteration(this.getWrappedConnection().getStatements(
+                inboundSubject(subj), inboundPredicate(pred), inboundObject(obj), includeInferred,
+                inboundContexts(contexts)));
+    }
+
+    // Note: statements are written in terms of internal URIs, so the inbound rules apply to write operations
+
+    @Override
+    public void addStatement(final Resource subj, final URI pred, final Value obj, final Resource... contexts)
+            throws SailException {
+        this.getWrappedConnection().addStatement(
+                inboundSubject(subj), inboundPredicate(pred), inboundObject(obj), inboundContexts(contexts));
+    }
+
+    @Override
+    public void addStatement(final UpdateContext op,
+                             final Resource subj, final URI pred, final Value obj, final Resource... contexts)
+            throws SailException {
+        this.getWrappedConnection().addStatement(op,
+                inboundSubject(subj), inboundPredicate(pred), inboundObject(obj), inboundContexts(contexts));
+    }
+
+    @Override
+    public void removeStatements(final Resource subj, final URI pred, final Value obj, final Resource... contexts)
+            throws SailException {
+        this.getWrappedConnection().removeStatements(
+                inboundSubject(subj), inboundPredicate(pred), inboundObject(obj), inboundContexts(contexts));
+    }
+
+    @Override
+    public void removeStatement(final UpdateContext op,
+                                final Resource subj, final URI pred, final Value obj, final Resource... contexts)
+            throws SailException {
+        this.getWrappedConnection().removeStatement(op,
+                inboundSubject(subj), inboundPredicate(pred), inboundObject(obj), inboundContexts(contexts));
+    }
+
+    @Override
+    public void clear(final Resource... contexts) throws SailException {
+        this.getWrappedConnection().clear(inboundContexts(contexts));
+    }
+
+    private Resource inboundSubject(final Resource subj) {
+        return subj instanceof URI
+                ? rewriters.getRewriter(
+                MappingSchema.PartOfSpeech.SUBJECT, MappingSchema.Direction.INBOUND).rewrite((URI) subj)
+                : subj;
+    }
+
+    // a null (wildcard) predicate is not passed to the rewriter
+    private URI inboundPredicate(final URI pred) {
+        return null == pred
+                ? null
+                : rewriters.getRewriter(
                 MappingSchema.PartOfSpeech.PREDICATE, MappingSchema.Direction.INBOUND).rewrite(pred);
-        if (obj instanceof URI) {
-            obj = rewriters.getRewriter(
-                    MappingSchema.PartOfSpeech.OBJECT, MappingSchema.Direction.INBOUND).rewrite((URI) obj);
-        }
+    }
+
+    private Value inboundObject(final Value obj) {
+        return obj instanceof URI
+                ? rewriters.getRewriter(
+                MappingSchema.PartOfSpeech.OBJECT, MappingSchema.Direction.INBOUND).rewrite((URI) obj)
+                : obj;
+    }
+
+    // the caller's array is not modified
+    private Resource[] inboundContexts(final Resource... contexts) {
+        Resource[] result = new Resource[contexts.length];
         for (int i = 0; i < contexts.length; i++) {
-            if (contexts[i] instanceof URI) {
-                contexts[i] = rewriters.getRewriter(
-                        MappingSchema.PartOfSpeech.CONTEXT, MappingSchema.Direction.INBOUND).rewrite((URI) contexts[i]);
-            }
+            result[i] = contexts[i] instanceof URI
+                    ? rewriters.getRewriter(
+                    MappingSchema.PartOfSpeech.CONTEXT, MappingSchema.Direction.INBOUND).rewrite((URI) contexts[i])
+                    : contexts[i];
         }
 
-        return new RewritingStatementIteration(
-                this.getWrappedConnection().getStatements(subj, pred, obj, includeInferred, contexts));
+        return result;
     }
 
     private class RewritingStatementIteration implements CloseableIteration<Statement, SailException> {
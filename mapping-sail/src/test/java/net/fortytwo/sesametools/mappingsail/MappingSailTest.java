@@ -0,0 +1,240 @@
+package net.fortytwo.sesametools.mappingsail;
+
+import info.aduna.iteration.CloseableIteration;
+import junit.framework.TestCase;
+import org.openrdf.model.BNode;
+import org.openrdf.model.Literal;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.sail.Sail;
+import org.openrdf.sail.SailConnection;
+import org.openrdf.sail.SailException;
+import org.openrdf.sail.memory.MemoryStore;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class MappingSailTest extends TestCase {
+    private static final String
+            INTERNAL = "http://example.org/internal/",
+            EXTERNAL = "http://example.org/external/";
+
+    private Sail baseSail;
+    private Sail sail;
+    private ValueFactory valueFactory;
+
+    private URI
+            intS, intP, intO, intG1, intG2,
+            extS, extP, extO, extG1, extG2;
+
+    public void setUp() throws Exception {
+        // the base sail is initialized along with the mapping sail
+        baseSail = new MemoryStore();
+
+        MappingSchema schema = new MappingSchema();
+        schema.setRewriter(MappingSchema.Direction.INBOUND, new PrefixRewriter(EXTERNAL, INTERNAL));
+        schema.setRewriter(MappingSchema.Direction.OUTBOUND, new PrefixRewriter(INTERNAL, EXTERNAL));
+        sail = new MappingSail(baseSail, schema);
+        sail.initialize();
+
+        valueFactory = sail.getValueFactory();
+        intS = valueFactory.createURI(INTERNAL + "s");
+        intP = valueFactory.createURI(INTERNAL + "p");
+        intO = valueFactory.createURI(INTERNAL + "o");
+        intG1 = valueFactory.createURI(INTERNAL + "g1");
+        intG2 = valueFactory.createURI(INTERNAL + "g2");
+        extS = valueFactory.createURI(EXTERNAL + "s");
+        extP = valueFactory.createURI(EXTERNAL + "p");
+        extO = valueFactory.createURI(EXTERNAL + "o");
+        extG1 = valueFactory.createURI(EXTERNAL + "g1");
+        extG2 = valueFactory.createURI(EXTERNAL + "g2");
+    }
+
+    public void tearDown() throws Exception {
+        sail.shutDown();
+    }
+
+    public void testIsWritable() throws Exception {
+        assertTrue(sail.isWritable());
+    }
+
+    public void testWriteRoundTrip() throws Exception {
+        SailConnection sc = sail.getConnection();
+        try {
+            sc.begin();
+            sc.addStatement(extS, extP, extO, extG1);
+            sc.commit();
+
+            // statements are stored in terms of internal URIs...
+            assertEquals(1, countBase(intS, intP, intO, intG1));
+            assertEquals(0, countBase(extS, null, null));
+
+            // ...and read in terms of external URIs
+            Set<Statement> results = get(sc, extS, extP, extO);
+            assertEquals(1, results.size());
+            Statement st = results.iterator().next();
+            assertEquals(extS, st.getSubject());
+            assertEquals(extP, st.getPredicate());
+            assertEquals(extO, st.getObject());
+            assertEquals(extG1, st.getContext());
+
+            sc.begin();
+            sc.removeStatements(extS, extP, extO, extG1);
+            sc.commit();
+            assertEquals(0, countBase(null, null, null));
+        } finally {
+            sc.close();
+        }
+    }
+
+    public void testLiteralsAndBlankNodesAreNotRewritten() throws Exception {
+        BNode b = valueFactory.createBNode();
+        Literal l = valueFactory.createLiteral(EXTERNAL + "not-a-uri");
+
+        SailConnection sc = sail.getConnection();
+        try {
+            sc.begin();
+            sc.addStatement(b, extP, l);
+            sc.commit();
+
+            assertEquals(1, countBase(b, intP, l));
+            assertEquals(1, get(sc, b, extP, l).size());
+        } finally {
+            sc.close();
+        }
+    }
+
+    public void testNullPatterns() throws Exception {
+        SailConnection sc = sail.getConnection();
+        try {
+            sc.begin();
+            sc.addStatement(extS, extP, extO);
+            sc.addStatement(extO, extP, extS, extG1);
+            sc.addStatement(extS, extP, valueFactory.createLiteral("x"), extG2);
+            sc.commit();
+
+            // wildcards are passed through to the base connection
+            Set<Statement> all = get(sc, null, null, null);
+            assertEquals(3, all.size());
+            for (Statement st : all) {
+                assertTrue(st.getPredicate().stringValue().startsWith(EXTERNAL));
+            }
+            assertEquals(2, get(sc, extS, null, null).size());
+            assertEquals(1, get(sc, null, null, extS).size());
+            assertEquals(3, get(sc, null, extP, null).size());
+
+            sc.begin();
+            sc.removeStatements(null, extP, extS);
+            sc.commit();
+            assertEquals(2, countBase(null, null, null));
+            assertEquals(0, countBase(intO, intP, intS));
+
+            sc.begin();
+            sc.removeStatements(extS, null, null);
+            sc.commit();
+            assertEquals(0, countBase(null, null, null));
+        } finally {
+            sc.close();
+        }
+    }
+
+    public void testContextRewriting() throws Exception {
+        SailConnection sc = sail.getConnection();
+        try {
+            sc.begin();
+            sc.addStatement(extS, extP, extO, extG1, extG2);
+            sc.addStatement(extS, extP, extS);
+            sc.commit();
+
+            assertEquals(1, countBase(null, null, null, intG1));
+            assertEquals(1, countBase(null, null, null, intG2));
+            assertEquals(1, countBase(null, null, null, (Resource) null));
+
+            // the caller's array of contexts is not rewritten in place
+            Resource[] contexts = new Resource[]{extG1, null};
+            assertEquals(2, get(sc, null, null, null, contexts).size());
+            assertEquals(extG1, contexts[0]);
+            assertNull(contexts[1]);
+
+            sc.begin();
+            sc.clear(extG1);
+            sc.commit();
+            assertEquals(0, countBase(null, null, null, intG1));
+            assertEquals(1, countBase(null, null, null, intG2));
+            assertEquals(1, countBase(null, null, null, (Resource) null));
+
+            sc.begin();
+            sc.removeStatements(null, null, null, extG2);
+            sc.commit();
+            assertEquals(0, countBase(null, null, null, intG2));
+            assertEquals(1, countBase(null, null, null));
+
+            sc.begin();
+            sc.clear();
+            sc.commit();
+            assertEquals(0, countBase(null, null, null));
+        } finally {
+            sc.close();
+        }
+    }
+
+    private Set<Statement> get(final SailConnection sc,
+                               final Resource subj,
+                               final URI pred,
+                               final Value obj,
+                               final Resource... contexts) throws SailException {
+        Set<Statement> results = new HashSet<Statement>();
+        CloseableIteration<? extends Statement, SailException> iter
+                = sc.getStatements(subj, pred, obj, false, contexts);
+        try {
+            while (iter.hasNext()) {
+                results.add(iter.next());
+            }
+        } finally {
+            iter.close();
+        }
+
+        return results;
+    }
+
+    private int countBase(final Resource subj,
+                          final URI pred,
+                          final Value obj,
+                          final Resource... contexts) throws SailException {
+        SailConnection sc = baseSail.getConnection();
+        try {
+            sc.begin();
+            try {
+                return get(sc, subj, pred, obj, contexts).size();
+            } finally {
+                sc.rollback();
+            }
+        } finally {
+            sc.close();
+        }
+    }
+
+    private class PrefixRewriter implements RewriteRule {
+        private final String from;
+        private final String to;
+
+        public PrefixRewriter(final String from,
+                              final String to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        public URI rewrite(final URI original) {
+            String s = original.stringValue();
+            return s.startsWith(from)
+                    ? valueFactory.createURI(to + s.substring(from.length()))
+                    : original;
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package net.fortytwo.sesametools.replay;
+
+import org.openrdf.sail.SailException;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A handler which passes Sail operations to another handler in a background thread,
+ * so that the threads which perform the operations do not wait for the log to be written.
+ * Operations are queued in a bounded buffer, in the order in which they are performed,
+ * and written in batches by a single writer thread.
+ * When the buffer is full, an operation either waits for space or is dropped, according to a backpressure policy.
+ * <p>
+ * The handler must be flushed (as by <code>RecorderSail.shutDown</code>) for all queued operations to be written,
+ * and closed in order to stop its writer thread.
+ * Once the writer thread has stopped, operations and flushes fail rather than waiting,
+ * and any operations still queued are counted as dropped.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net).
+ */
+public class AsyncCallHandler implements Handler<SailConnectionCall, SailException>, Flushable, Closeable {
+    private static final Logger logger = Logger.getLogger(AsyncCallHandler.class.getName());
+
+    private static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    // the greatest number of operations written by the writer thread at once
+    private static final int MAX_BATCH_SIZE = 1024;
+
+    /**
+     * What to do with an operation when the buffer is full
+     */
+    public enum BackpressurePolicy {
+        /**
+         * Wait for space in the buffer.  No operation is lost, but a slow log slows down the store.
+         */
+        BLOCK,
+        /**
+         * Drop the operation and count it.  The store is never slowed down, but the log may be incomplete.
+         */
+        DROP
+    }
+
+    private final Handler<SailConnectionCall, SailException> baseHandler;
+    private final BackpressurePolicy policy;
+    private final BlockingQueue<Object> buffer;
+    private final Thread writerThread;
+
+    private final AtomicLong
+            dropped = new AtomicLong(0),
+            failed = new AtomicLong(0);
+
+    private volatile boolean closed = false;
+    // whether the writer thread has stopped, after which nothing more is written
+    private volatile boolean stopped = false;
+
+    /**
+     * @param baseHandler the handler to which to pass operations.  It is only called from the writer thread.
+     * @param capacity    the maximum number of operations queued but not yet written
+     * @param policy      what to do with an operation when the buffer is full
+     */
+    public AsyncCallHandler(final Handler<SailConnectionCall, SailException> baseHandler,
+                            final int capacity,
+                            final BackpressurePolicy policy) {
+        this.baseHandler = baseHandler;
+        this.policy = policy;
+        this.buffer = new ArrayBlockingQueue<Object>(capacity);
+
+        writerThread = new Thread(new Runnable() {
+            public void run() {
+                write();
+            }
+        }, "replay-sail-recorder");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    public AsyncCallHandler(final Handler<SailConnectionCall, SailException> baseHandler) {
+        this(baseHandler, DEFAULT_CAPACITY, BackpressurePolicy.BLOCK);
+    }
+
+    public void handle(final SailConnectionCall call) throws SailException {
+        if (closed || stopped) {
+            throw new SailException("handler is closed");
+        }
+
+        switch (policy) {
+            case BLOCK:
+                try {
+                    buffer.put(call);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SailException(e);
+                }
+                break;
+            case DROP:
+                if (!buffer.offer(call)) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                break;
+        }
+
+        // An operation queued after the writer thread has discarded the buffer would never be written
+        if (stopped && buffer.remove(call)) {
+            throw new SailException("handler is closed");
+        }
+    }
+
+    /**
+     * Waits until all operations queued before this call have been written,
+     * then flushes the base handler if it is flushable
+     *
+     * @throws IOException if the handler has been closed, or the base handler could not be flushed
+     */
+    public void flush() throws IOException {
+        if (stopped) {
+            throw new IOException("handler is closed");
+        }
+
+        Marker m = new Marker(false);
+        try {
+            // markers are never dropped
+            buffer.put(m);
+            if (stopped && buffer.remove(m)) {
+                throw new IOException("handler is closed");
+            }
+            m.done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+
+        if (null != m.failure) {
+            throw m.failure;
+        }
+    }
+
+    /**
+     * Writes all queued operations, stops the writer thread, and closes the base handler if it is closeable
+     */
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        Marker m = new Marker(true);
+        try {
+            buffer.put(m);
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+
+        // the writer thread was interrupted before it could close the base handler
+        if (buffer.remove(m)) {
+            throw new IOException("writer thread stopped before the handler was closed");
+        }
+        if (null != m.failure) {
+            throw m.failure;
+        }
+    }
+
+    /**
+     * @return the number of operations dropped because the buffer was full,
+     * or because they were queued while the handler was being closed
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of operations which the base handler failed to write
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    private void write() {
+        List<Object> batch = new ArrayList<Object>(MAX_BATCH_SIZE);
+
+        try {
+            while (true) {
+                batch.add(buffer.take());
+                buffer.drainTo(batch, MAX_BATCH_SIZE - 1);
+
+                for (int i = 0; i < batch.size(); i++) {
+                    Object o = batch.get(i);
+                    if (o instanceof Marker) {
+                        Marker m = (Marker) o;
+                        m.finish(baseHandler);
+                        if (m.isFinal) {
+                            stop(batch.subList(i + 1, batch.size()));
+                            return;
+                        }
+                    } else {
+                        try {
+                            baseHandler.handle((SailConnectionCall) o);
+                        } catch (Throwable t) {
+                            // the first failure is logged; the rest are only counted
+                            if (0 == failed.getAndIncrement()) {
+                                logger.log(Level.WARNING, "failed to record operation", t);
+                            }
+                        }
+                    }
+                }
+
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            logger.warning("recorder thread interrupted; queued operations will not be written");
+            stop(batch);
+        }
+    }
+
+    // Stops accepting operations, and discards those which will not be written.
+    // Waiting flushes fail, and blocked callers are released.
+    private void stop(final List<Object> unwritten) {
+        stopped = true;
+
+        List<Object> rest = new ArrayList<Object>(unwritten);
+        buffer.drainTo(rest);
+        for (Object o : rest) {
+            if (o instanceof Marker) {
+                ((Marker) o).abandon();
+            } else {
+                dropped.incrementAndGet();
+            }
+        }
+    }
+
+    // A request to flush, or to flush and close, the base handler once all preceding operations are written
+    private static class Marker {
+        private final boolean isFinal;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private IOException failure = null;
+
+        private Marker(final boolean isFinal) {
+            this.isFinal = isFinal;
+        }
+
+        private void finish(final Handler<SailConnectionCall, SailException> baseHandler) {
+            try {
+                if (isFinal && baseHandler instanceof Closeable) {
+                    ((Closeable) baseHandler).close();
+                } else if (baseHandler instanceof Flushable) {
+                    ((Flushable) baseHandler).flush();
+                }
+            } catch (IOException e) {
+                failure = e;
+            } finally {
+                done.countDown();
+            }
+        }
+
+        private void abandon() {
+            failure = new IOException("handler was closed before the flush was complete");
+            done.countDown();
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package net.fortytwo.sesametools.replay;
+
+import org.openrdf.model.Resource;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.sail.SailException;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A source of Sail operations read from a binary log written by a <code>BinaryCallWriter</code>
+ *
+ * @author Joshua Shinavier (http://fortytwo.net).
+ */
+public class BinaryCallReader implements Source<SailConnectionCall, SailException> {
+    private static final ValueFactory valueFactory = new ValueFactoryImpl();
+
+    private final InputStream in;
+    private final Inflater inflater = new Inflater();
+    private final List<Object> dictionary = new ArrayList<Object>();
+
+    private ByteArrayInputStream record;
+
+    /**
+     * @param in the stream from which to read the log, including its header
+     */
+    public BinaryCallReader(final InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * @param in a stream
+     * @return whether the stream begins with the header of a binary log.  The stream is left unchanged.
+     * It must support mark and reset.
+     */
+    public static boolean isBinaryLog(final InputStream in) throws IOException {
+        byte[] b = new byte[BinaryCallWriter.MAGIC.length];
+        in.mark(b.length);
+        try {
+            int n = 0;
+            while (n < b.length) {
+                int r = in.read(b, n, b.length - n);
+                if (r < 0) {
+                    return false;
+                }
+                n += r;
+            }
+        } finally {
+            in.reset();
+        }
+
+        for (int i = 0; i < b.length; i++) {
+            if (b[i] != BinaryCallWriter.MAGIC[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    public void writeTo(final Handler<SailConnectionCall, SailException> handler) throws SailException {
+        try {
+            try {
+                readHeader();
+
+                byte[] block;
+                while (null != (block = readBlock())) {
+                    ByteArrayInputStream blockIn = new ByteArrayInputStream(block);
+                    while (blockIn.available() > 0) {
+                        byte[] r = new byte[readVarInt(blockIn)];
+                        readFully(blockIn, r);
+                        record = new ByteArrayInputStream(r);
+
+                        int type = readByte();
+                        if (BinaryCallWriter.RESET_DICTIONARY == type) {
+                            dictionary.clear();
+                        } else {
+                            String id = readString();
+                            handler.handle(SailConnectionCall.construct(
+                                    id, SailConnectionCall.Type.values()[type], this));
+                        }
+                    }
+                }
+            } finally {
+                inflater.end();
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new SailException(e);
+        }
+    }
+
+    /**
+     * Reads a value argument of the current call
+     *
+     * @return a value, or null
+     */
+    public Value readValue() throws IOException {
+        return (Value) readEntry();
+    }
+
+    public Resource readResource() throws IOException {
+        return (Resource) readEntry();
+    }
+
+    public URI readURI() throws IOException {
+        return (URI) readEntry();
+    }
+
+    /**
+     * Reads a string argument of the current call
+     *
+     * @return a string, or null
+     */
+    public String readString() throws IOException {
+        return (String) readEntry();
+    }
+
+    /**
+     * Reads a list of contexts as an argument of the current call
+     */
+    public Resource[] readContexts() throws IOException {
+        Resource[] contexts = new Resource[readVarInt(record)];
+        for (int i = 0; i < contexts.length; i++) {
+            contexts[i] = readResource();
+        }
+
+        return contexts;
+    }
+
+    public boolean readBoolean() throws IOException {
+        return 0 != readByte();
+    }
+
+    public long readLong() throws IOException {
+        return readVarLong(record);
+    }
+
+    private Object readEntry() throws IOException {
+        int ref = readVarInt(record);
+        if (0 == ref) {
+            return null;
+        } else if (ref <= dictionary.size()) {
+            return dictionary.get(ref - 1);
+        } else if (ref != dictionary.size() + 1) {
+            throw new IOException("bad dictionary reference: " + ref);
+        }
+
+        // reserve the entry before reading it, as its definition may refer to further new entries
+        dictionary.add(null);
+
+        Object entry;
+        int kind = readByte();
+        switch (kind) {
+            case BinaryCallWriter.KIND_STRING:
+                entry = readBytes();
+                break;
+            case BinaryCallWriter.KIND_URI:
+                entry = valueFactory.createURI(readBytes());
+                break;
+            case BinaryCallWriter.KIND_BNODE:
+                entry = valueFactory.createBNode(readBytes());
+                break;
+            case BinaryCallWriter.KIND_PLAIN_LITERAL:
+                entry = valueFactory.createLiteral(readBytes());
+                break;
+            case BinaryCallWriter.KIND_LANGUAGE_LITERAL:
+                String label = readBytes();
+                entry = valueFactory.createLiteral(label, readBytes());
+                break;
+            case BinaryCallWriter.KIND_TYPED_LITERAL:
+                String typedLabel = readBytes();
+                entry = valueFactory.createLiteral(typedLabel, readURI());
+                break;
+            default:
+                throw new IOException("bad dictionary entry kind: " + kind);
+        }
+
+        dictionary.set(ref - 1, entry);
+        return entry;
+    }
+
+    private String readBytes() throws IOException {
+        byte[] b = new byte[readVarInt(record)];
+        readFully(record, b);
+        return new String(b, BinaryCallWriter.UTF8);
+    }
+
+    private int readByte() throws IOException {
+        int b = record.read();
+        if (b < 0) {
+            throw new EOFException();
+        }
+
+        return b;
+    }
+
+    private void readHeader() throws IOException {
+        byte[] magic = new byte[BinaryCallWriter.MAGIC.length];
+        readFully(in, magic);
+        for (int i = 0; i < magic.length; i++) {
+            if (magic[i] != BinaryCallWriter.MAGIC[i]) {
+                throw new IOException("not a binary replay log");
+            }
+        }
+
+        int version = in.read();
+        if (BinaryCallWriter.VERSION != version) {
+            throw new IOException("unsupported binary replay log version: " + version);
+        }
+    }
+
+    // Returns null at the end of the log
+    private byte[] readBlock() throws IOException {
+        int format = in.read();
+        if (format < 0) {
+            return null;
+        }
+
+        byte[] raw = new byte[readVarInt(in)];
+        byte[] stored = new byte[readVarInt(in)];
+        readFully(in, stored);
+
+        switch (format) {
+            case BinaryCallWriter.BLOCK_RAW:
+                return stored;
+            case BinaryCallWriter.BLOCK_DEFLATED:
+                inflater.reset();
+                inflater.setInput(stored);
+                try {
+                    int n = 0;
+                    while (n < raw.length && !inflater.finished()) {
+                        n += inflater.inflate(raw, n, raw.length - n);
+                    }
+                    if (n != raw.length) {
+                        throw new IOException("truncated block");
+                    }
+                } catch (DataFormatException e) {
+                    throw new IOException(e);
+                }
+                return raw;
+            default:
+                throw new IOException("bad block format: " + format);
+        }
+    }
+
+    private static void readFully(final InputStream in,
+                                  final byte[] b) throws IOException {
+        int n = 0;
+        while (n < b.length) {
+            int r = in.read(b, n, b.length - n);
+            if (r < 0) {
+                throw new EOFException();
+            }
+            n += r;
+        }
+    }
+
+    static int readVarInt(final InputStream in) throws IOException {
+        return (int) readVarLong(in);
+    }
+
+    static long readVarLong(final InputStream in) throws IOException {
+        long l = 0;
+        int shift = 0;
+        while (true) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            l |= (long) (b & 0x7F) << shift;
+            if (0 == (b & 0x80)) {
+                return l;
+            }
+            shift += 7;
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package net.fortytwo.sesametools.replay;
+
+import org.openrdf.model.BNode;
+import org.openrdf.model.Literal;
+import org.openrdf.model.Resource;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.sail.SailException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * A handler which writes Sail operations to a compact binary log, to be read by a <code>BinaryCallReader</code>.
+ * <p>
+ * The log begins with a short header, followed by a sequence of blocks, each of which may be compressed.
+ * A block contains a sequence of records, each prefixed with its length, and a record contains a single call.
+ * Each distinct value and string (URI, literal, connection id, etc.) is written in full only the first time it
+ * occurs, and thereafter as a variable-length reference to its first occurrence.
+ * Once the dictionary of values reaches its maximum size, it is discarded, and values are again written in full.
+ * <p>
+ * Records are buffered until a block is full, so the log must be flushed or closed in order to be complete.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net).
+ */
+public class BinaryCallWriter implements Handler<SailConnectionCall, SailException>, Flushable, Closeable {
+    static final byte[] MAGIC = {0, 'R', 'P', 'L'};
+    static final int VERSION = 1;
+
+    static final int
+            BLOCK_RAW = 0,
+            BLOCK_DEFLATED = 1;
+
+    // record types other than those of calls
+    static final int RESET_DICTIONARY = 0xFF;
+
+    // kinds of dictionary entries
+    static final int
+            KIND_STRING = 0,
+            KIND_URI = 1,
+            KIND_BNODE = 2,
+            KIND_PLAIN_LITERAL = 3,
+            KIND_LANGUAGE_LITERAL = 4,
+            KIND_TYPED_LITERAL = 5;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int
+            DEFAULT_BLOCK_SIZE = 64 * 1024,
+            DEFAULT_MAX_DICTIONARY_SIZE = 100000;
+
+    private final OutputStream out;
+    private final boolean compressed;
+    private final Deflater deflater;
+
+    private final ByteArrayOutputStream block = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+    private final Map<Object, Integer> dictionary = new HashMap<Object, Integer>();
+
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+    private int maxDictionarySize = DEFAULT_MAX_DICTIONARY_SIZE;
+    private byte[] deflated = new byte[0];
+
+    /**
+     * @param out        the stream to which to write the log
+     * @param compressed whether to compress each block of the log
+     * @throws IOException if the header of the log cannot be written
+     */
+    public BinaryCallWriter(final OutputStream out,
+                            final boolean compressed) throws IOException {
+        this.out = out;
+        this.compressed = compressed;
+        this.deflater = compressed ? new Deflater(Deflater.BEST_SPEED) : null;
+
+        out.write(MAGIC);
+        out.write(VERSION);
+    }
+
+    /**
+     * @param blockSize the number of bytes of records after which a block is written
+     */
+    public synchronized void setBlockSize(final int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * @param maxDictionarySize the number of distinct values after which the dictionary is discarded
+     */
+    public synchronized void setMaxDictionarySize(final int maxDictionarySize) {
+        this.maxDictionarySize = maxDictionarySize;
+    }
+
+    public synchronized void handle(final SailConnectionCall call) throws SailException {
+        try {
+            if (dictionary.size() >= maxDictionarySize) {
+                dictionary.clear();
+                record.reset();
+                record.write(RESET_DICTIONARY);
+                endRecord();
+            }
+
+            record.reset();
+            record.write(call.getType().ordinal());
+            writeString(call.getId());
+            call.writeArguments(this);
+            endRecord();
+        } catch (IOException e) {
+            throw new SailException(e);
+        }
+    }
+
+    /**
+     * Writes any buffered records as a block, and flushes the underlying stream
+     */
+    public synchronized void flush() throws IOException {
+        writeBlock();
+        out.flush();
+    }
+
+    public synchronized void close() throws IOException {
+        flush();
+        out.close();
+        if (null != deflater) {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Writes a value argument of the current call
+     *
+     * @param v a value, or null
+     */
+    public void writeValue(final Value v) throws IOException {
+        if (null == v) {
+            writeVarInt(record, 0);
+            return;
+        }
+
+        if (writeReference(v)) {
+            return;
+        }
+
+        if (v instanceof URI) {
+            record.write(KIND_URI);
+            writeBytes(v.stringValue());
+        } else if (v instanceof BNode) {
+            record.write(KIND_BNODE);
+            writeBytes(((BNode) v).getID());
+        } else {
+            Literal l = (Literal) v;
+            if (null != l.getLanguage()) {
+                record.write(KIND_LANGUAGE_LITERAL);
+                writeBytes(l.getLabel());
+                writeBytes(l.getLanguage());
+            } else if (null != l.getDatatype()) {
+                record.write(KIND_TYPED_LITERAL);
+                writeBytes(l.getLabel());
+                writeValue(l.getDatatype());
+            } else {
+                record.write(KIND_PLAIN_LITERAL);
+                writeBytes(l.getLabel());
+            }
+        }
+    }
+
+    /**
+     * Writes a string argument of the current call
+     *
+     * @param s a string, or null
+     */
+    public void writeString(final String s) throws IOException {
+        if (null == s) {
+            writeVarInt(record, 0);
+        } else if (!writeReference(s)) {
+            record.write(KIND_STRING);
+            writeBytes(s);
+        }
+    }
+
+    /**
+     * Writes a list of contexts as an argument of the current call
+     */
+    public void writeContexts(final Resource[] contexts) throws IOException {
+        writeVarInt(record, contexts.length);
+        for (Resource r : contexts) {
+            writeValue(r);
+        }
+    }
+
+    public void writeBoolean(final boolean b) throws IOException {
+        record.write(b ? 1 : 0);
+    }
+
+    public void writeLong(final long l) throws IOException {
+        writeVarLong(record, l);
+    }
+
+    // Writes a reference to a known entry and returns true, or writes the id of a new entry and returns false.
+    // References are offset by one, so that zero stands for null.
+    private boolean writeReference(final Object entry) throws IOException {
+        Integer i = dictionary.get(entry);
+        if (null == i) {
+            i = dictionary.size() + 1;
+            dictionary.put(entry, i);
+            writeVarInt(record, i);
+            return false;
+        } else {
+            writeVarInt(record, i);
+            return true;
+        }
+    }
+
+    private void writeBytes(final String s) throws IOException {
+        byte[] b = s.getBytes(UTF8);
+        writeVarInt(record, b.length);
+        record.write(b);
+    }
+
+    private void endRecord() throws IOException {
+        writeVarInt(block, record.size());
+        record.writeTo(block);
+
+        if (block.size() >= blockSize) {
+            writeBlock();
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        if (0 == block.size()) {
+            return;
+        }
+
+        byte[] raw = block.toByteArray();
+        block.reset();
+
+        if (compressed) {
+            if (deflated.length < raw.length + 64) {
+                deflated = new byte[raw.length + raw.length / 2 + 64];
+            }
+            deflater.reset();
+            deflater.setInput(raw);
+            deflater.finish();
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == deflated.length) {
+                    byte[] b = new byte[deflated.length * 2];
+                    System.arraycopy(deflated, 0, b, 0, length);
+                    deflated = b;
+                }
+                length += deflater.deflate(deflated, length, deflated.length - length);
+            }
+
+            out.write(BLOCK_DEFLATED);
+            writeVarInt(out, raw.length);
+            writeVarInt(out, length);
+            out.write(deflated, 0, length);
+        } else {
+            out.write(BLOCK_RAW);
+            writeVarInt(out, raw.length);
+            writeVarInt(out, raw.length);
+            out.write(raw);
+        }
+    }
+
+    static void writeVarInt(final OutputStream out,
+                            final int i) throws IOException {
+        writeVarLong(out, i & 0xFFFFFFFFL);
+    }
+
+    static void writeVarLong(final OutputStream out,
+                             final long l) throws IOException {
+        long v = l;
+        while (0 != (v & ~0x7FL)) {
+            out.write((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+}
@@ -8,6 +8,7 @@ import org.openrdf.sail.SailConnection;
 import org.openrdf.sail.SailException;
 import org.openrdf.sail.StackableSail;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
@@ -20,6 +21,8 @@ import java.util.Map;
 
 /**
  * A Sail which reads a log of previously recorded Sail operations and executes them.
+ * A log read from a stream may be either in the text format of <code>SailConnectionCall.toString</code>
+ * or in the binary format of a <code>BinaryCallWriter</code>.
  *
  * @author Joshua Shinavier (http://fortytwo.net).
  */
@@ -158,15 +161,22 @@ public class PlaybackSail implements StackableSail {
         return baseSail;
     }
 
+    // Reads either a text log or a binary log, according to the header of the stream
     private class InputStreamSource implements Source<SailConnectionCall, SailException> {
-        private BufferedReader reader;
+        private final InputStream is;
 
         public InputStreamSource(final InputStream is) {
-            reader = new BufferedReader(new InputStreamReader(is));
+            this.is = is.markSupported() ? is : new BufferedInputStream(is);
         }
 
         public void writeTo(final Handler<SailConnectionCall, SailException> handler) throws SailException {
             try {
+                if (BinaryCallReader.isBinaryLog(is)) {
+                    new BinaryCallReader(is).writeTo(handler);
+                    return;
+                }
+
+                BufferedReader reader = new BufferedReader(new InputStreamReader(is));
                 try {
                     String line;
 
@@ -5,40 +5,81 @@ import net.fortytwo.sesametools.replay.calls.HasNextCall;
 import net.fortytwo.sesametools.replay.calls.NextCall;
 import net.fortytwo.sesametools.replay.calls.RemoveCall;
 import net.fortytwo.sesametools.replay.calls.CloseIterationCall;
+import net.fortytwo.sesametools.replay.calls.ConsumeCall;
 
 /**
+ * An iteration which logs the calls made to it.
+ * In aggregate mode, <code>hasNext</code> and <code>next</code> calls are not logged individually;
+ * instead, the number of elements consumed is logged once the iteration is exhausted or closed,
+ * or before any other call is logged.
+ *
  * @author Joshua Shinavier (http://fortytwo.net).
  */
 public class RecorderIteration<T, E extends Exception> implements CloseableIteration<T, E> {
     private final String id;
     private final CloseableIteration<T, E> baseIteration;
     private final Handler<SailConnectionCall, E> queryHandler;
+    private final boolean aggregate;
+
+    // the number of elements consumed but not yet logged, in aggregate mode
+    private long consumed = 0;
 
     public RecorderIteration(final CloseableIteration<T, E> baseIteration,
                              final String id,
-                             final Handler<SailConnectionCall, E> queryHandler) {
+                             final Handler<SailConnectionCall, E> queryHandler,
+                             final boolean aggregate) {
         this.baseIteration = baseIteration;
         this.id = id;
         this.queryHandler = queryHandler;
+        this.aggregate = aggregate;
+    }
+
+    public RecorderIteration(final CloseableIteration<T, E> baseIteration,
+                             final String id,
+                             final Handler<SailConnectionCall, E> queryHandler) {
+        this(baseIteration, id, queryHandler, false);
     }
 
     public void close() throws E {
+        logConsumed();
         queryHandler.handle(new CloseIterationCall(id));
         baseIteration.close();
     }
 
     public boolean hasNext() throws E {
+        if (aggregate) {
+            boolean b = baseIteration.hasNext();
+            if (!b) {
+                logConsumed();
+            }
+            return b;
+        }
+
         queryHandler.handle(new HasNextCall(id));
         return baseIteration.hasNext();
     }
 
     public T next() throws E {
+        if (aggregate) {
+            T t = baseIteration.next();
+            consumed++;
+            return t;
+        }
+
         queryHandler.handle(new NextCall(id));
         return baseIteration.next();
     }
 
     public void remove() throws E {
+        logConsumed();
         queryHandler.handle(new RemoveCall(id));
         baseIteration.remove();
     }
+
+    private void logConsumed() throws E {
+        if (consumed > 0) {
+            queryHandler.handle(new ConsumeCall(id, consumed));
+            consumed = 0;
+        }
+    }
 }
@@ -9,12 +9,17 @@ import org.openrdf.sail.StackableSail;
 import org.openrdf.sail.helpers.SailBase;
 
 import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
 
 /**
  * A Sail which creates an ongoing log of operations as they are executed.
  * The log can later be used to recreate the operations in order.
+ * By default, each operation is written as a line of text; a <code>BinaryCallWriter</code> may be used as the
+ * handler for a much more compact log, and an <code>AsyncCallHandler</code> keeps the writing of the log off the
+ * threads which perform the operations.
  *
  * @author Joshua Shinavier (http://fortytwo.net).
  */
@@ -63,6 +68,15 @@ public class RecorderSail extends SailBase implements StackableSail {
 
     protected void shutDownInternal() throws SailException {
         baseSail.shutDown();
+
+        // write any calls buffered by the handler, e.g. by a BinaryCallWriter
+        if (queryHandler instanceof Flushable) {
+            try {
+                ((Flushable) queryHandler).flush();
+            } catch (IOException e) {
+                throw new SailException(e);
+            }
+        }
     }
 
     @Override
@@ -117,7 +117,8 @@ public class RecorderSailConnection extends SailConnectionBase {
             return new RecorderIteration<Resource, SailException>(
                     (CloseableIteration<Resource, SailException>) baseSailConnection.getContextIDs(),
                     nextIterationId(),
-                    queryHandler);
+                    queryHandler,
+                    config.aggregateIterations);
         } else {
             return baseSailConnection.getContextIDs();
         }
@@ -142,7 +143,8 @@ public class RecorderSailConnection extends SailConnectionBase {
             return new RecorderIteration<Namespace, SailException>(
                     (CloseableIteration<Namespace, SailException>) baseSailConnection.getNamespaces(),
                     nextIterationId(),
-                    queryHandler);
+                    queryHandler,
+                    config.aggregateIterations);
         } else {
             return baseSailConnection.getNamespaces();
         }
@@ -158,7 +160,8 @@ public class RecorderSailConnection extends SailConnectionBase {
                     (CloseableIteration<Statement, SailException>) baseSailConnection.getStatements(
                             subj, pred, obj, includeInferred, contexts),
                     nextIterationId(),
-                    queryHandler);
+                    queryHandler,
+                    config.aggregateIterations);
         } else {
             return baseSailConnection.getStatements(subj, pred, obj, includeInferred, contexts);
         }
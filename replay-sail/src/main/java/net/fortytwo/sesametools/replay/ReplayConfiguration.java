@@ -7,4 +7,6 @@ public class ReplayConfiguration {
     public boolean logTransactions = true;
     public boolean logReadOperations = true;
     public boolean logWriteOperations = true;
+    // If true, the hasNext and next calls of each iteration are logged only as the number of elements consumed
+    public boolean aggregateIterations = false;
 }
@@ -9,6 +9,7 @@ import net.fortytwo.sesametools.replay.calls.ClearNamespacesCall;
 import net.fortytwo.sesametools.replay.calls.CloseConnectionCall;
 import net.fortytwo.sesametools.replay.calls.CloseIterationCall;
 import net.fortytwo.sesametools.replay.calls.CommitCall;
+import net.fortytwo.sesametools.replay.calls.ConsumeCall;
 import net.fortytwo.sesametools.replay.calls.ConstructorCall;
 import net.fortytwo.sesametools.replay.calls.EvaluateCall;
 import net.fortytwo.sesametools.replay.calls.GetContextIDsCall;
@@ -33,6 +34,7 @@ import org.openrdf.model.impl.ValueFactoryImpl;
 import org.openrdf.rio.ntriples.NTriplesUtil;
 import org.openrdf.sail.SailException;
 
+import java.io.IOException;
 import java.util.StringTokenizer;
 
 /**
@@ -67,7 +69,9 @@ public abstract class SailConnectionCall<T, R> {
         REMOVE_STATEMENTS,
         ROLLBACK,
         SET_NAMESPACE,
-        SIZE
+        SIZE,
+        // New types are appended, as binary logs refer to types by ordinal
+        CONSUME
     }
 
     protected String id;
@@ -88,6 +92,13 @@ public abstract class SailConnectionCall<T, R> {
 
     public abstract R execute(T t) throws SailException;
 
+    /**
+     * Writes the arguments of this call to a binary log.
+     * Calls without arguments write nothing.
+     */
+    public void writeArguments(final BinaryCallWriter out) throws IOException {
+    }
+
     public static SailConnectionCall construct(final String s) {
         StringTokenizer tok = new StringTokenizer(s, "\t");
         String id = tok.nextToken();
@@ -135,11 +146,66 @@ public abstract class SailConnectionCall<T, R> {
                 return new SetNamespaceCall(id, type, tok);
             case SIZE:
                 return new SizeCall(id, type, tok);
+            case CONSUME:
+                return new ConsumeCall(id, type, tok);
             default:
                 throw new IllegalArgumentException("bad callback: " + s);
         }
     }
 
+    public static SailConnectionCall construct(final String id,
+                                               final Type type,
+                                               final BinaryCallReader in) throws IOException {
+        switch (type) {
+            case ADD_STATEMENT:
+                return new AddStatementCall(id, type, in);
+            case BEGIN:
+                return new BeginCall(id);
+            case CLEAR:
+                return new ClearCall(id, type, in);
+            case CLEAR_NAMESPACES:
+                return new ClearNamespacesCall(id);
+            case CLOSE_CONNECTION:
+                return new CloseConnectionCall(id);
+            case CLOSE_ITERATION:
+                return new CloseIterationCall(id);
+            case COMMIT:
+                return new CommitCall(id);
+            case CONSTRUCT:
+                return new ConstructorCall(id);
+            case EVALUATE:
+                return new EvaluateCall(id, type, in);
+            case GET_CONTEXT_IDS:
+                return new GetContextIDsCall(id);
+            case GET_NAMESPACE:
+                return new GetNamespaceCall(id, type, in);
+            case GET_NAMESPACES:
+                return new GetNamespacesCall(id);
+            case GET_STATEMENTS:
+                return new GetStatementsCall(id, type, in);
+            case HAS_NEXT:
+                return new HasNextCall(id);
+            case NEXT:
+                return new NextCall(id);
+            case REMOVE:
+                return new RemoveCall(id);
+            case REMOVE_NAMESPACE:
+                return new RemoveNamespaceCall(id, type, in);
+            case REMOVE_STATEMENTS:
+                return new RemoveStatementsCall(id, type, in);
+            case ROLLBACK:
+                return new RollbackCall(id);
+            case SET_NAMESPACE:
+                return new SetNamespaceCall(id, type, in);
+            case SIZE:
+                return new SizeCall(id, type, in);
+            case CONSUME:
+                return new ConsumeCall(id, type, in);
+            default:
+                throw new IllegalArgumentException("bad callback type: " + type);
+        }
+    }
+
     protected URI parseURI(final String s) {
         if (s.equals("null")) {
             return null;
@@ -1,6 +1,8 @@
 
 package net.fortytwo.sesametools.replay.calls;
 
+import net.fortytwo.sesametools.replay.BinaryCallReader;
+import net.fortytwo.sesametools.replay.BinaryCallWriter;
 import net.fortytwo.sesametools.replay.SailConnectionCall;
 import org.openrdf.model.Resource;
 import org.openrdf.model.URI;
@@ -8,6 +10,7 @@ import org.openrdf.model.Value;
 import org.openrdf.sail.SailConnection;
 import org.openrdf.sail.SailException;
 
+import java.io.IOException;
 import java.util.StringTokenizer;
 
 /**
@@ -53,6 +56,24 @@ public class AddStatementCall extends SailConnectionCall<SailConnection, Object>
         this.contexts = parseContexts(tok.nextToken());
     }
 
+    public AddStatementCall(final String id,
+                            final Type type,
+                            final BinaryCallReader in) throws IOException {
+        super(id, type);
+        this.subject = in.readResource();
+        this.predicate = in.readURI();
+        this.object = in.readValue();
+        this.contexts = in.readContexts();
+    }
+
+    @Override
+    public void writeArguments(final BinaryCallWriter out) throws IOException {
+        out.writeValue(subject);
+        out.writeValue(predicate);
+        out.writeValue(object);
+        out.writeContexts(contexts);
+    }
+
     public Object execute(final SailConnection sc) throws SailException {
         sc.addStatement(subject, predicate, object, contexts);
         return null;
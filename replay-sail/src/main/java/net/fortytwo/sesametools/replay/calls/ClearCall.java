@@ -1,11 +1,14 @@
 
 package net.fortytwo.sesametools.replay.calls;
 
+import net.fortytwo.sesametools.replay.BinaryCallReader;
+import net.fortytwo.sesametools.replay.BinaryCallWriter;
 import net.fortytwo.sesametools.replay.SailConnectionCall;
 import org.openrdf.model.Resource;
 import org.openrdf.sail.SailConnection;
 import org.openrdf.sail.SailException;
 
+import java.io.IOException;
 import java.util.StringTokenizer;
 
 /**
@@ -35,6 +38,18 @@ public class ClearCall extends SailConnectionCall<SailConnection, Object> {
         this.contexts = parseContexts(tok.nextToken());
     }
 
+    public ClearCall(final String id,
+                     final Type type,
+                     final BinaryCallReader in) throws IOException {
+        super(id, type);
+        this.contexts = in.readContexts();
+    }
+
+    @Override
+    public void writeArguments(final BinaryCallWriter out) throws IOException {
+        out.writeContexts(contexts);
+    }
+
     public Object execute(final SailConnection sc) throws SailException {
         sc.clear(contexts);
         return null;
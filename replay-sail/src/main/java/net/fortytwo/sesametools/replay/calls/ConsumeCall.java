@@ -0,0 +1,63 @@
+package net.fortytwo.sesametools.replay.calls;
+
+import net.fortytwo.sesametools.replay.BinaryCallReader;
+import net.fortytwo.sesametools.replay.BinaryCallWriter;
+import net.fortytwo.sesametools.replay.SailConnectionCall;
+import info.aduna.iteration.CloseableIteration;
+import org.openrdf.sail.SailException;
+
+import java.io.IOException;
+import java.util.StringTokenizer;
+
+/**
+ * A number of elements consumed from an iteration,
+ * which stands for the <code>hasNext</code> and <code>next</code> calls made to consume them
+ *
+ * @author Joshua Shinavier (http://fortytwo.net).
+ */
+public class ConsumeCall extends SailConnectionCall<CloseableIteration<?, SailException>, Object> {
+    private final long count;
+
+    public ConsumeCall(final String id,
+                       final long count) {
+        super(id, Type.CONSUME);
+        this.count = count;
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder(id).append(DELIM).append(type)
+                .append(DELIM).append(count);
+
+        return sb.toString();
+    }
+
+    public ConsumeCall(final String id,
+                       final Type type,
+                       final StringTokenizer tok) {
+        super(id, type);
+        this.count = Long.parseLong(tok.nextToken());
+    }
+
+    public ConsumeCall(final String id,
+                       final Type type,
+                       final BinaryCallReader in) throws IOException {
+        super(id, type);
+        this.count = in.readLong();
+    }
+
+    @Override
+    public void writeArguments(final BinaryCallWriter out) throws IOException {
+        out.writeLong(count);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public Object execute(final CloseableIteration<?, SailException> t) throws SailException {
+        for (long i = 0; i < count && t.hasNext(); i++) {
+            t.next();
+        }
+        return null;
+    }
+}
@@ -3,6 +3,8 @@ package net.fortytwo.sesametools.replay.calls;
 
 import info.aduna.iteration.CloseableIteration;
 import net.fortytwo.sesametools.EmptyCloseableIteration;
+import net.fortytwo.sesametools.replay.BinaryCallReader;
+import net.fortytwo.sesametools.replay.BinaryCallWriter;
 import net.fortytwo.sesametools.replay.SailConnectionCall;
 import org.openrdf.model.Resource;
 import org.openrdf.model.URI;
@@ -10,6 +12,7 @@ import org.openrdf.model.Value;
 import org.openrdf.sail.SailConnection;
 import org.openrdf.sail.SailException;
 
+import java.io.IOException;
 import java.util.StringTokenizer;
 
 /**
@@ -39,6 +42,18 @@ public class EvaluateCall extends SailConnectionCall<SailConnection, CloseableIt
         this.includeInferred = parseBoolean(tok.nextToken());
     }
 
+    public EvaluateCall(final String id,
+                        final Type type,
+                        final BinaryCallReader in) throws IOException {
+        super(id, type);
+        this.includeInferred = in.readBoolean();
+    }
+
+    @Override
+    public void writeArguments(final BinaryCallWriter out) throws IOException {
+        out.writeBoolean(includeInferred);
+    }
+
     public CloseableIteration execute(final SailConnection sc) throws SailException {
         // not enough information to reconstruct an evaluate call
         return new EmptyCloseableIteration();
@@ -1,10 +1,13 @@
 
 package net.fortytwo.sesametools.replay.calls;
 
+import net.fortytwo.sesametools.replay.BinaryCallReader;
+import net.fortytwo.sesametools.replay.BinaryCallWriter;
 import net.fortytwo.sesametools.replay.SailConnectionCall;
 import org.openrdf.sail.SailConnection;
 import org.openrdf.sail.SailException;
 
+import java.io.IOException;
 import java.util.StringTokenizer;
 
 /**
@@ -33,6 +36,18 @@ public class GetNamespaceCall extends SailConnectionCall<SailConnection, String>
         this.prefix = parseString(tok.nextToken());
     }
 
+    public GetNamespaceCall(final String id,
+                            final Type type,
+                            final BinaryCallReader in) throws IOException {
+        super(id, type);
+        this.prefix = in.readString();
+    }
+
+    @Override
+    public void writeArguments(final BinaryCallWriter out) throws IOException {
+        out.writeString(prefix);
+    }
+
     public String execute(final SailConnection sc) throws SailException {
         return sc.getNamespace(prefix);
     }
@@ -1,6 +1,8 @@
 
 package net.fortytwo.sesametools.replay.calls;
 
+import net.fortytwo.sesametools.replay.BinaryCallReader;
+import net.fortytwo.sesametools.replay.BinaryCallWriter;
 import net.fortytwo.sesametools.replay.SailConnectionCall;
 import info.aduna.iteration.CloseableIteration;
 import org.openrdf.model.Resource;
@@ -9,6 +11,7 @@ import org.openrdf.model.Value;
 import org.openrdf.sail.SailConnection;
 import org.openrdf.sail.SailException;
 
+import java.io.IOException;
 import java.util.StringTokenizer;
 
 /**
@@ -58,6 +61,26 @@ public class GetStatementsCall extends SailConnectionCall<SailConnection, Closea
         this.contexts = parseContexts(tok.nextToken());
     }
 
+    public GetStatementsCall(final String id,
+                             final Type type,
+                             final BinaryCallReader in) throws IOException {
+        super(id, type);
+        this.subject = in.readResource();
+        this.predicate = in.readURI();
+        this.object = in.readValue();
+        this.includeInferred = in.readBoolean();
+        this.contexts = in.readContexts();
+    }
+
+    @Override
+    public void writeArguments(final BinaryCallWriter out) throws IOException {
+        out.writeValue(subject);
+        out.writeValue(predicate);
+        out.writeValue(object);
+        out.writeBoolean(includeInferred);
+        out.writeContexts(contexts);
+    }
+
     public CloseableIteration execute(final SailConnection sc) throws SailException {
         return sc.getStatements(subject, predicate, object, includeInferred, contexts);
     }
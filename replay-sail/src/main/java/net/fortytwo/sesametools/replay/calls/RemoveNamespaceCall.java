@@ -1,10 +1,13 @@
 
 package net.fortytwo.sesametools.replay.calls;
 
+import net.fortytwo.sesametools.replay.BinaryCallReader;
+import net.fortytwo.sesametools.replay.BinaryCallWriter;
 import net.fortytwo.sesametools.replay.SailConnectionCall;
 import org.openrdf.sail.SailConnection;
 import org.openrdf.sail.SailException;
 
+import java.io.IOException;
 import java.util.StringTokenizer;
 
 /**
@@ -33,6 +36,18 @@ public class RemoveNamespaceCall extends SailConnectionCall<SailConnection, Obje
         this.prefix = parseString(tok.nextToken());
     }
 
+    public RemoveNamespaceCall(final String id,
+                               final Type type,
+                               final BinaryCallReader in) throws IOException {
+        super(id, type);
+        this.prefix = in.readString();
+    }
+
+    @Override
+    public void writeArguments(final BinaryCallWriter out) throws IOException {
+        out.writeString(prefix);
+    }
+
     public Object execute(final SailConnection sc) throws SailException {
         sc.removeNamespace(prefix);
         return null;
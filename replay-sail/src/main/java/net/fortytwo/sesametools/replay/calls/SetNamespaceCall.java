@@ -1,10 +1,13 @@
 
 package net.fortytwo.sesametools.replay.calls;
 
+import net.fortytwo.sesametools.replay.BinaryCallReader;
+import net.fortytwo.sesametools.replay.BinaryCallWriter;
 import net.fortytwo.sesametools.replay.SailConnectionCall;
 import org.openrdf.sail.SailConnection;
 import org.openrdf.sail.SailException;
 
+import java.io.IOException;
 import java.util.StringTokenizer;
 
 /**
@@ -38,6 +41,20 @@ public class SetNamespaceCall extends SailConnectionCall<SailConnection, Object>
         this.uri = parseString(tok.nextToken());
     }
 
+    public SetNamespaceCall(final String id,
+                            final Type type,
+                            final BinaryCallReader in) throws IOException {
+        super(id, type);
+        this.prefix = in.readString();
+        this.uri = in.readString();
+    }
+
+    @Override
+    public void writeArguments(final BinaryCallWriter out) throws IOException {
+        out.writeString(prefix);
+        out.writeString(uri);
+    }
+
     public Object execute(final SailConnection sc) throws SailException {
         sc.setNamespace(prefix, uri);
         return null;
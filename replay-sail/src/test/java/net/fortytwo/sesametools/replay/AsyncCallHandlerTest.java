@@ -0,0 +1,259 @@
+package net.fortytwo.sesametools.replay;
+
+import junit.framework.TestCase;
+import net.fortytwo.sesametools.replay.calls.SizeCall;
+import org.openrdf.sail.SailException;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class AsyncCallHandlerTest extends TestCase {
+    private static final long TIMEOUT = 10000;
+
+    private GatedHandler base;
+
+    public void setUp() throws Exception {
+        base = new GatedHandler();
+    }
+
+    public void testBlockPolicy() throws Exception {
+        final AsyncCallHandler handler = new AsyncCallHandler(base, 4, AsyncCallHandler.BackpressurePolicy.BLOCK);
+
+        Thread producer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    for (int i = 0; i < 100; i++) {
+                        handler.handle(call(i));
+                    }
+                } catch (SailException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        producer.start();
+
+        // the producer waits for the writer, which waits for the base handler
+        awaitWaiting(producer);
+        assertTrue(base.written.isEmpty());
+
+        base.open();
+        producer.join(TIMEOUT);
+        assertFalse(producer.isAlive());
+        handler.flush();
+
+        assertEquals(expected(0, 100), base.written);
+        assertEquals(0, handler.getDropped());
+        assertEquals(1, base.flushes);
+        handler.close();
+    }
+
+    public void testDropPolicy() throws Exception {
+        AsyncCallHandler handler = new AsyncCallHandler(base, 4, AsyncCallHandler.BackpressurePolicy.DROP);
+
+        // the producer never waits, even though the base handler is not yet writing
+        for (int i = 0; i < 100; i++) {
+            handler.handle(call(i));
+        }
+        assertTrue(handler.getDropped() > 0);
+
+        base.open();
+        handler.flush();
+
+        // the operations which were not dropped are written in order
+        assertEquals(100, base.written.size() + handler.getDropped());
+        List<String> written = new ArrayList<String>(base.written);
+        List<String> sorted = new ArrayList<String>(written);
+        Collections.sort(sorted);
+        assertEquals(sorted, written);
+        handler.close();
+    }
+
+    public void testFlushAndClose() throws Exception {
+        AsyncCallHandler handler = new AsyncCallHandler(base);
+        base.open();
+
+        handler.handle(call(0));
+        handler.handle(call(1));
+        handler.flush();
+        assertEquals(expected(0, 2), base.written);
+        assertEquals(1, base.flushes);
+        assertFalse(base.closed);
+
+        handler.handle(call(2));
+        handler.close();
+        assertEquals(expected(0, 3), base.written);
+        assertTrue(base.closed);
+
+        // a closed handler accepts no more operations and flushes, and may be closed again
+        try {
+            handler.handle(call(3));
+            fail();
+        } catch (SailException e) {
+            // expected
+        }
+        try {
+            handler.flush();
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+        handler.close();
+        assertEquals(3, base.written.size());
+    }
+
+    public void testFlushQueuedAfterClose() throws Exception {
+        final AsyncCallHandler handler = new AsyncCallHandler(base);
+        handler.handle(call(0));
+
+        // the writer is held up, so that the final marker of close() is queued before that of flush()
+        Thread closer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    handler.close();
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        closer.start();
+        awaitWaiting(closer);
+
+        final IOException[] failure = new IOException[1];
+        Thread flusher = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    handler.flush();
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            }
+        });
+        flusher.start();
+        awaitWaiting(flusher);
+
+        base.open();
+        closer.join(TIMEOUT);
+        flusher.join(TIMEOUT);
+        assertFalse(closer.isAlive());
+        assertFalse(flusher.isAlive());
+
+        // the flush fails, rather than waiting forever
+        assertNotNull(failure[0]);
+        assertEquals(expected(0, 1), base.written);
+        assertTrue(base.closed);
+    }
+
+    public void testBlockedCallerIsReleasedByClose() throws Exception {
+        final AsyncCallHandler handler = new AsyncCallHandler(base, 1, AsyncCallHandler.BackpressurePolicy.BLOCK);
+
+        // one operation held by the writer, and one filling the buffer
+        handler.handle(call(0));
+        awaitWritePending();
+        handler.handle(call(1));
+
+        // a caller which is waiting for space when the handler is closed
+        final SailException[] failure = new SailException[1];
+        Thread producer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    handler.handle(call(2));
+                } catch (SailException e) {
+                    failure[0] = e;
+                }
+            }
+        });
+        producer.start();
+        awaitWaiting(producer);
+
+        Thread closer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    handler.close();
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        closer.start();
+        awaitWaiting(closer);
+
+        base.open();
+        producer.join(TIMEOUT);
+        closer.join(TIMEOUT);
+        assertFalse(producer.isAlive());
+        assertFalse(closer.isAlive());
+
+        // the last operation is either written, dropped, or refused
+        long refused = null == failure[0] ? 0 : 1;
+        assertEquals(3, base.written.size() + handler.getDropped() + refused);
+        assertTrue(base.closed);
+    }
+
+    private SailConnectionCall call(final int i) {
+        // ids which sort in the order of the calls
+        return new SizeCall("" + (1000 + i));
+    }
+
+    private List<String> expected(final int from,
+                                  final int to) {
+        List<String> l = new ArrayList<String>();
+        for (int i = from; i < to; i++) {
+            l.add(call(i).toString());
+        }
+        return l;
+    }
+
+    private void awaitWaiting(final Thread t) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        while (Thread.State.WAITING != t.getState() && Thread.State.TIMED_WAITING != t.getState()) {
+            assertTrue(t.isAlive());
+            assertTrue(System.currentTimeMillis() - start < TIMEOUT);
+            Thread.sleep(10);
+        }
+    }
+
+    // Waits until the writer thread is writing an operation
+    private void awaitWritePending() throws InterruptedException {
+        assertTrue(base.pending.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    // A handler which writes nothing until it is opened
+    private static class GatedHandler implements Handler<SailConnectionCall, SailException>, Flushable, Closeable {
+        private final CountDownLatch gate = new CountDownLatch(1);
+        private final CountDownLatch pending = new CountDownLatch(1);
+        private final List<String> written = Collections.synchronizedList(new ArrayList<String>());
+        private volatile int flushes = 0;
+        private volatile boolean closed = false;
+
+        public void handle(final SailConnectionCall call) throws SailException {
+            pending.countDown();
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                throw new SailException(e);
+            }
+            written.add(call.toString());
+        }
+
+        public void flush() {
+            flushes++;
+        }
+
+        public void close() {
+            closed = true;
+        }
+
+        private void open() {
+            gate.countDown();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package net.fortytwo.sesametools.replay;
+
+import info.aduna.iteration.CloseableIteration;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.vocabulary.RDF;
+import org.openrdf.model.vocabulary.RDFS;
+import org.openrdf.sail.SailConnection;
+import org.openrdf.sail.SailException;
+import org.openrdf.sail.memory.MemoryStore;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Compares the size of the log and the time taken to record a workload of adds and scans through a RecorderSail,
+ * with a text log, a raw binary log and a compressed binary log.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class ReplayLogBenchmark {
+    private static final int
+            STATEMENTS = 50000,
+            GRAPHS = 10,
+            SCANS = 100,
+            WARMUP_ITERATIONS = 2,
+            ITERATIONS = 5;
+
+    private static final String[] FORMATS = new String[]{"text", "raw binary", "compressed binary"};
+
+    public static void main(final String[] args) throws Exception {
+        for (int format = 0; format < FORMATS.length; format++) {
+            long size = 0;
+            long calls = 0;
+            long best = Long.MAX_VALUE;
+
+            for (int i = 0; i < WARMUP_ITERATIONS + ITERATIONS; i++) {
+                CountingOutputStream out = new CountingOutputStream();
+                long before = System.currentTimeMillis();
+                calls = record(format, out);
+                long time = System.currentTimeMillis() - before;
+
+                size = out.count;
+                if (i >= WARMUP_ITERATIONS && time < best) {
+                    best = time;
+                }
+            }
+
+            System.out.println(FORMATS[format] + ": " + calls + " calls, " + size + " bytes, "
+                    + best + " ms (best of " + ITERATIONS + ")");
+        }
+    }
+
+    // Records the workload in the given format, returning the number of calls recorded
+    private static long record(final int format,
+                               final OutputStream out) throws Exception {
+        final long[] calls = new long[]{0};
+        final Handler<SailConnectionCall, SailException> base;
+        if (0 == format) {
+            base = new Handler<SailConnectionCall, SailException>() {
+                private final byte[] newline = "\n".getBytes("UTF-8");
+
+                public void handle(final SailConnectionCall call) throws SailException {
+                    try {
+                        out.write(call.toString().getBytes("UTF-8"));
+                        out.write(newline);
+                    } catch (IOException e) {
+                        throw new SailException(e);
+                    }
+                }
+            };
+        } else {
+            base = new BinaryCallWriter(out, 2 == format);
+        }
+
+        RecorderSail sail = new RecorderSail(new MemoryStore(), new Handler<SailConnectionCall, SailException>() {
+            public void handle(final SailConnectionCall call) throws SailException {
+                calls[0]++;
+                base.handle(call);
+            }
+        });
+        sail.initialize();
+
+        try {
+            ValueFactory vf = sail.getValueFactory();
+            URI[] graphs = new URI[GRAPHS];
+            for (int g = 0; g < GRAPHS; g++) {
+                graphs[g] = vf.createURI("http://example.org/graph" + g);
+            }
+
+            SailConnection sc = sail.getConnection();
+            try {
+                sc.begin();
+                for (int i = 0; i < STATEMENTS; i++) {
+                    URI thing = vf.createURI("http://example.org/thing" + i);
+                    sc.addStatement(thing, RDFS.LABEL, vf.createLiteral("thing " + i), graphs[i % GRAPHS]);
+                }
+                sc.commit();
+
+                // each scan reads the statements of a graph
+                for (int i = 0; i < SCANS; i++) {
+                    CloseableIteration<? extends Statement, SailException> iter
+                            = sc.getStatements(null, RDFS.LABEL, null, false, graphs[i % GRAPHS]);
+                    try {
+                        while (iter.hasNext()) {
+                            iter.next();
+                        }
+                    } finally {
+                        iter.close();
+                    }
+                }
+
+                sc.begin();
+                sc.removeStatements(null, RDF.TYPE, null);
+                sc.commit();
+            } finally {
+                sc.close();
+            }
+        } finally {
+            sail.shutDown();
+        }
+
+        if (base instanceof BinaryCallWriter) {
+            ((BinaryCallWriter) base).close();
+        }
+
+        return calls[0];
+    }
+
+    // Counts the bytes of the log, without keeping them
+    private static class CountingOutputStream extends OutputStream {
+        private long count = 0;
+
+        @Override
+        public void write(final int b) {
+            count++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+            count += len;
+        }
+    }
+}
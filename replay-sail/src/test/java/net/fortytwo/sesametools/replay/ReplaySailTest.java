@@ -0,0 +1,607 @@
+package net.fortytwo.sesametools.replay;
+
+import info.aduna.iteration.CloseableIteration;
+import info.aduna.iteration.CloseableIteratorIteration;
+import info.aduna.iteration.ConvertingIteration;
+import junit.framework.TestCase;
+import net.fortytwo.sesametools.replay.calls.AddStatementCall;
+import net.fortytwo.sesametools.replay.calls.BeginCall;
+import net.fortytwo.sesametools.replay.calls.ClearCall;
+import net.fortytwo.sesametools.replay.calls.ClearNamespacesCall;
+import net.fortytwo.sesametools.replay.calls.CloseConnectionCall;
+import net.fortytwo.sesametools.replay.calls.CloseIterationCall;
+import net.fortytwo.sesametools.replay.calls.CommitCall;
+import net.fortytwo.sesametools.replay.calls.ConstructorCall;
+import net.fortytwo.sesametools.replay.calls.ConsumeCall;
+import net.fortytwo.sesametools.replay.calls.EvaluateCall;
+import net.fortytwo.sesametools.replay.calls.GetContextIDsCall;
+import net.fortytwo.sesametools.replay.calls.GetNamespaceCall;
+import net.fortytwo.sesametools.replay.calls.GetNamespacesCall;
+import net.fortytwo.sesametools.replay.calls.GetStatementsCall;
+import net.fortytwo.sesametools.replay.calls.HasNextCall;
+import net.fortytwo.sesametools.replay.calls.NextCall;
+import net.fortytwo.sesametools.replay.calls.RemoveCall;
+import net.fortytwo.sesametools.replay.calls.RemoveNamespaceCall;
+import net.fortytwo.sesametools.replay.calls.RemoveStatementsCall;
+import net.fortytwo.sesametools.replay.calls.RollbackCall;
+import net.fortytwo.sesametools.replay.calls.SetNamespaceCall;
+import net.fortytwo.sesametools.replay.calls.SizeCall;
+import org.openrdf.model.BNode;
+import org.openrdf.model.Literal;
+import org.openrdf.model.Namespace;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.model.vocabulary.XMLSchema;
+import org.openrdf.sail.Sail;
+import org.openrdf.sail.SailConnection;
+import org.openrdf.sail.SailException;
+import org.openrdf.sail.helpers.SailConnectionWrapper;
+import org.openrdf.sail.helpers.SailWrapper;
+import org.openrdf.sail.memory.MemoryStore;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class ReplaySailTest extends TestCase {
+    private static final String NS = "http://example.org/ns/";
+
+    // log formats
+    private static final int
+            TEXT = 0,
+            RAW = 1,
+            COMPRESSED = 2;
+
+    private static final int DEFAULT_DICTIONARY_SIZE = 100000;
+
+    private final ValueFactory vf = new ValueFactoryImpl();
+
+    private final URI
+            s = vf.createURI(NS + "s"),
+            p = vf.createURI(NS + "p"),
+            g1 = vf.createURI(NS + "g1"),
+            g2 = vf.createURI(NS + "g2");
+    private final BNode b = vf.createBNode("b1");
+    private final Literal
+            plain = vf.createLiteral("a \"quoted\"\tlabel\nwith é and \\"),
+            language = vf.createLiteral("chat", "fr"),
+            typed = vf.createLiteral("42", XMLSchema.INTEGER);
+
+    public void testTextLog() throws Exception {
+        checkRecordAndPlayback(TEXT, DEFAULT_DICTIONARY_SIZE);
+    }
+
+    public void testRawBinaryLog() throws Exception {
+        checkRecordAndPlayback(RAW, DEFAULT_DICTIONARY_SIZE);
+    }
+
+    public void testCompressedBinaryLog() throws Exception {
+        checkRecordAndPlayback(COMPRESSED, DEFAULT_DICTIONARY_SIZE);
+    }
+
+    public void testDictionaryReset() throws Exception {
+        // the dictionary is discarded many times over the course of the log
+        checkRecordAndPlayback(RAW, 3);
+        checkRecordAndPlayback(COMPRESSED, 3);
+
+        // values written again in full make for a longer log
+        assertTrue(record(RAW, 3, new LinkedList<String>()).length
+                > record(RAW, DEFAULT_DICTIONARY_SIZE, new LinkedList<String>()).length);
+    }
+
+    public void testEveryCallType() throws Exception {
+        String id = "1234";
+        String iterId = id + "-1";
+
+        List<SailConnectionCall> calls = new LinkedList<SailConnectionCall>();
+        calls.add(new ConstructorCall(id));
+        calls.add(new BeginCall(id));
+        calls.add(new AddStatementCall(id, s, p, plain));
+        calls.add(new AddStatementCall(id, b, p, language, g1, null));
+        calls.add(new AddStatementCall(id, s, p, typed, g1, g2));
+        calls.add(new RemoveStatementsCall(id, null, null, null));
+        calls.add(new RemoveStatementsCall(id, b, null, typed, (Resource) null));
+        calls.add(new ClearCall(id));
+        calls.add(new ClearCall(id, g1, null));
+        calls.add(new SetNamespaceCall(id, "ex", NS));
+        calls.add(new GetNamespaceCall(id, "ex"));
+        calls.add(new RemoveNamespaceCall(id, "ex"));
+        calls.add(new ClearNamespacesCall(id));
+        calls.add(new GetNamespacesCall(id));
+        calls.add(new GetContextIDsCall(id));
+        calls.add(new GetStatementsCall(id, null, null, null, false));
+        calls.add(new GetStatementsCall(id, s, p, language, true, g2, null));
+        calls.add(new HasNextCall(iterId));
+        calls.add(new NextCall(iterId));
+        calls.add(new RemoveCall(iterId));
+        calls.add(new ConsumeCall(iterId, 1L << 40));
+        calls.add(new CloseIterationCall(iterId));
+        calls.add(new EvaluateCall(id, true));
+        calls.add(new SizeCall(id));
+        calls.add(new SizeCall(id, g1, null));
+        calls.add(new RollbackCall(id));
+        calls.add(new CommitCall(id));
+        calls.add(new CloseConnectionCall(id));
+
+        Set<SailConnectionCall.Type> types = EnumSet.noneOf(SailConnectionCall.Type.class);
+        List<String> expected = new LinkedList<String>();
+        for (SailConnectionCall c : calls) {
+            types.add(c.getType());
+            expected.add(c.toString());
+        }
+        assertEquals(EnumSet.allOf(SailConnectionCall.Type.class), types);
+
+        // text
+        List<String> actual = new LinkedList<String>();
+        for (String line : expected) {
+            actual.add(SailConnectionCall.construct(line).toString());
+        }
+        assertEquals(expected, actual);
+
+        // binary, with and without compression, and with a dictionary which is often reset
+        for (boolean compressed : new boolean[]{false, true}) {
+            for (int dictionarySize : new int[]{2, DEFAULT_DICTIONARY_SIZE}) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                BinaryCallWriter writer = new BinaryCallWriter(out, compressed);
+                writer.setMaxDictionarySize(dictionarySize);
+                writer.setBlockSize(64);
+                for (SailConnectionCall c : calls) {
+                    writer.handle(c);
+                }
+                writer.close();
+
+                assertEquals(expected, read(new ByteArrayInputStream(out.toByteArray())));
+            }
+        }
+    }
+
+    public void testBinaryHeaderDetection() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryCallWriter writer = new BinaryCallWriter(out, false);
+        writer.handle(new BeginCall("1234"));
+        writer.close();
+        byte[] binary = out.toByteArray();
+        byte[] text = (new BeginCall("1234").toString() + "\n").getBytes("UTF-8");
+
+        // the stream is left where it was
+        InputStream in = new ByteArrayInputStream(binary);
+        assertTrue(BinaryCallReader.isBinaryLog(in));
+        assertEquals(binary[0], in.read());
+        in = new ByteArrayInputStream(text);
+        assertFalse(BinaryCallReader.isBinaryLog(in));
+        assertEquals(text[0], in.read());
+
+        // streams shorter than the header are not binary logs
+        assertFalse(BinaryCallReader.isBinaryLog(new ByteArrayInputStream(new byte[0])));
+        assertFalse(BinaryCallReader.isBinaryLog(new ByteArrayInputStream(new byte[]{0, 'R'})));
+    }
+
+    public void testAggregateIterations() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RecorderSail recorder = new RecorderSail(new MemoryStore(), out);
+        recorder.getConfiguration().aggregateIterations = true;
+        recorder.initialize();
+        try {
+            SailConnection sc = recorder.getConnection();
+            try {
+                sc.begin();
+                for (int i = 0; i < 10; i++) {
+                    sc.addStatement(vf.createURI(NS + "thing" + i), p, plain);
+                }
+                sc.commit();
+
+                // consumed entirely, closed early, closed before any element was consumed, and closed early again
+                assertEquals(10, count(sc.getStatements(null, p, null, false), -1));
+                assertEquals(3, count(sc.getStatements(null, p, null, false), 3));
+                CloseableIteration<? extends Statement, SailException> iter
+                        = sc.getStatements(null, p, null, false);
+                assertTrue(iter.hasNext());
+                iter.close();
+                assertEquals(4, count(sc.getStatements(null, p, null, false), 4));
+            } finally {
+                sc.close();
+            }
+        } finally {
+            recorder.shutDown();
+        }
+
+        byte[] log = out.toByteArray();
+        List<String> consumed = new LinkedList<String>();
+        int closed = 0;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(log)));
+        String line;
+        while (null != (line = reader.readLine())) {
+            SailConnectionCall call = SailConnectionCall.construct(line);
+            switch (call.getType()) {
+                case HAS_NEXT:
+                case NEXT:
+                    fail("iteration call logged individually: " + line);
+                    break;
+                case CONSUME:
+                    consumed.add(call.getId().substring(call.getId().indexOf('-') + 1)
+                            + ":" + ((ConsumeCall) call).getCount());
+                    break;
+                case CLOSE_ITERATION:
+                    closed++;
+                    break;
+            }
+        }
+        assertEquals(4, closed);
+        List<String> expected = new LinkedList<String>();
+        expected.add("1:10");
+        expected.add("2:3");
+        expected.add("4:4");
+        assertEquals(expected, consumed);
+
+        // played back, each iteration consumes as many elements as were consumed when it was recorded
+        CountingSail counting = new CountingSail(new MemoryStore());
+        counting.initialize();
+        try {
+            Sail playback = new PlaybackSail(counting, new ByteArrayInputStream(log));
+            playback.initialize();
+            playback.shutDown();
+
+            List<Integer> counts = new LinkedList<Integer>();
+            counts.add(10);
+            counts.add(3);
+            counts.add(0);
+            counts.add(4);
+            assertEquals(counts, counting.getCounts());
+        } finally {
+            counting.shutDown();
+        }
+    }
+
+    public void testAggregateIterationWithRemove() throws Exception {
+        List<String> elements = new ArrayList<String>();
+        for (int i = 0; i < 5; i++) {
+            elements.add("e" + i);
+        }
+
+        final List<SailConnectionCall> calls = new LinkedList<SailConnectionCall>();
+        Handler<SailConnectionCall, SailException> handler = new Handler<SailConnectionCall, SailException>() {
+            public void handle(final SailConnectionCall call) throws SailException {
+                calls.add(call);
+            }
+        };
+
+        List<String> recorded = new ArrayList<String>(elements);
+        CloseableIteration<String, SailException> iter = new RecorderIteration<String, SailException>(
+                new CloseableIteratorIteration<String, SailException>(recorded.iterator()), "1234-1", handler, true);
+        iter.next();
+        iter.next();
+        iter.remove();
+        assertTrue(iter.hasNext());
+        iter.next();
+        iter.close();
+
+        // elements consumed before a remove are logged ahead of it
+        List<String> log = new LinkedList<String>();
+        for (SailConnectionCall c : calls) {
+            log.add(c.toString());
+        }
+        List<String> expected = new LinkedList<String>();
+        expected.add(new ConsumeCall("1234-1", 2).toString());
+        expected.add(new RemoveCall("1234-1").toString());
+        expected.add(new ConsumeCall("1234-1", 1).toString());
+        expected.add(new CloseIterationCall("1234-1").toString());
+        assertEquals(expected, log);
+
+        // replaying the calls removes the same element
+        List<String> replayed = new ArrayList<String>(elements);
+        CloseableIteration<String, SailException> target
+                = new CloseableIteratorIteration<String, SailException>(replayed.iterator());
+        for (SailConnectionCall c : calls) {
+            c.execute(target);
+        }
+        assertEquals(recorded, replayed);
+        assertFalse(replayed.contains("e1"));
+    }
+
+    // Records a series of operations in the given format, plays the log back into an empty store,
+    // and checks that both the calls and the resulting state are reproduced
+    private void checkRecordAndPlayback(final int format,
+                                        final int maxDictionarySize) throws Exception {
+        List<String> recorded = new LinkedList<String>();
+        byte[] log = record(format, maxDictionarySize, recorded);
+
+        if (TEXT == format) {
+            assertFalse(BinaryCallReader.isBinaryLog(new ByteArrayInputStream(log)));
+        } else {
+            assertTrue(BinaryCallReader.isBinaryLog(new ByteArrayInputStream(log)));
+            assertEquals(recorded, read(new ByteArrayInputStream(log)));
+        }
+
+        Sail replayed = new MemoryStore();
+        replayed.initialize();
+        try {
+            // the format is detected from the log, which is read from a stream without mark and reset
+            Sail playback = new PlaybackSail(replayed, new UnmarkableInputStream(new ByteArrayInputStream(log)));
+            playback.initialize();
+            playback.shutDown();
+
+            assertEquals(expectedStatements(), getStatements(replayed));
+            assertEquals(expectedNamespaces(), getNamespaces(replayed));
+        } finally {
+            replayed.shutDown();
+        }
+    }
+
+    private byte[] record(final int format,
+                          final int maxDictionarySize,
+                          final List<String> recorded) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Sail base = new MemoryStore();
+        RecorderSail sail;
+        if (TEXT == format) {
+            sail = new RecorderSail(base, out);
+        } else {
+            BinaryCallWriter writer = new BinaryCallWriter(out, COMPRESSED == format);
+            writer.setMaxDictionarySize(maxDictionarySize);
+            // many small blocks
+            writer.setBlockSize(100);
+            sail = new RecorderSail(base, new TeeHandler(writer, recorded));
+        }
+
+        sail.initialize();
+        try {
+            addAndRemove(sail);
+            assertEquals(expectedStatements(), getStatements(base));
+            assertEquals(expectedNamespaces(), getNamespaces(base));
+        } finally {
+            // flushes the log
+            sail.shutDown();
+        }
+
+        byte[] log = out.toByteArray();
+        if (TEXT == format) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(log)));
+            String line;
+            while (null != (line = reader.readLine())) {
+                recorded.add(line);
+            }
+        }
+
+        // every call is recorded, other than those of the checks above, which bypass the recorder
+        Set<SailConnectionCall.Type> types = EnumSet.noneOf(SailConnectionCall.Type.class);
+        for (String call : recorded) {
+            types.add(SailConnectionCall.construct(call).getType());
+        }
+        assertEquals(EnumSet.complementOf(EnumSet.of(SailConnectionCall.Type.EVALUATE,
+                SailConnectionCall.Type.REMOVE, SailConnectionCall.Type.CONSUME)), types);
+
+        return log;
+    }
+
+    private void addAndRemove(final Sail sail) throws SailException {
+        SailConnection sc = sail.getConnection();
+        try {
+            sc.begin();
+            sc.setNamespace("tmp", NS + "tmp/");
+            sc.setNamespace("ex", NS);
+            sc.addStatement(s, p, plain);
+            sc.addStatement(s, p, language, g1);
+            sc.addStatement(b, p, typed, g1, g2);
+            sc.addStatement(s, p, s, g2);
+            sc.commit();
+
+            sc.begin();
+            sc.addStatement(s, p, vf.createLiteral("rolled back"));
+            sc.rollback();
+
+            sc.begin();
+            assertEquals(NS, sc.getNamespace("ex"));
+            assertNull(sc.getNamespace("none"));
+            sc.removeNamespace("tmp");
+            assertEquals(5, sc.size());
+            assertEquals(2, sc.size(g1));
+            assertEquals(1, sc.size((Resource) null));
+
+            // iterations which are consumed entirely, in part, or not at all
+            assertEquals(1, count(sc.getNamespaces(), -1));
+            assertEquals(1, count(sc.getContextIDs(), 1));
+            assertEquals(5, count(sc.getStatements(null, null, null, false), -1));
+            assertEquals(2, count(sc.getStatements(null, p, null, false, g1), -1));
+            assertEquals(0, count(sc.getStatements(s, null, null, false, g1, g2), 0));
+
+            // wildcards and the default graph
+            sc.removeStatements(null, null, language);
+            sc.removeStatements(s, p, s, (Resource) null);
+            sc.clear(g2);
+            sc.commit();
+        } finally {
+            sc.close();
+        }
+
+        // a second connection, which clears and restores the namespaces
+        sc = sail.getConnection();
+        try {
+            sc.begin();
+            sc.clearNamespaces();
+            sc.setNamespace("ex", NS);
+            sc.addStatement(b, p, typed, g1);
+            sc.commit();
+        } finally {
+            sc.close();
+        }
+    }
+
+    private Set<String> expectedStatements() {
+        Set<String> expected = new HashSet<String>();
+        expected.add(toString(s, p, plain, null));
+        expected.add(toString(b, p, typed, g1));
+        return expected;
+    }
+
+    private Set<String> expectedNamespaces() {
+        Set<String> expected = new HashSet<String>();
+        expected.add("ex=" + NS);
+        return expected;
+    }
+
+    private Set<String> getStatements(final Sail sail) throws SailException {
+        Set<String> results = new HashSet<String>();
+        SailConnection sc = sail.getConnection();
+        try {
+            CloseableIteration<? extends Statement, SailException> iter = sc.getStatements(null, null, null, false);
+            try {
+                while (iter.hasNext()) {
+                    Statement st = iter.next();
+                    results.add(toString(st.getSubject(), st.getPredicate(), st.getObject(), st.getContext()));
+                }
+            } finally {
+                iter.close();
+            }
+        } finally {
+            sc.close();
+        }
+
+        return results;
+    }
+
+    private Set<String> getNamespaces(final Sail sail) throws SailException {
+        Set<String> results = new HashSet<String>();
+        SailConnection sc = sail.getConnection();
+        try {
+            CloseableIteration<? extends Namespace, SailException> iter = sc.getNamespaces();
+            try {
+                while (iter.hasNext()) {
+                    Namespace n = iter.next();
+                    results.add(n.getPrefix() + "=" + n.getName());
+                }
+            } finally {
+                iter.close();
+            }
+        } finally {
+            sc.close();
+        }
+
+        return results;
+    }
+
+    // Consumes at most the given number of elements, or all elements if the limit is negative
+    private int count(final CloseableIteration<?, SailException> iter,
+                      final int limit) throws SailException {
+        int c = 0;
+        try {
+            while ((limit < 0 || c < limit) && iter.hasNext()) {
+                iter.next();
+                c++;
+            }
+        } finally {
+            iter.close();
+        }
+
+        return c;
+    }
+
+    private List<String> read(final InputStream in) throws SailException {
+        final List<String> calls = new LinkedList<String>();
+        new BinaryCallReader(in).writeTo(new Handler<SailConnectionCall, SailException>() {
+            public void handle(final SailConnectionCall call) throws SailException {
+                calls.add(call.toString());
+            }
+        });
+
+        return calls;
+    }
+
+    private String toString(final Resource subj,
+                            final URI pred,
+                            final Value obj,
+                            final Resource context) {
+        return subj + " " + pred + " " + obj + " " + context;
+    }
+
+    // A handler which keeps the text of each call before passing it on
+    private static class TeeHandler implements Handler<SailConnectionCall, SailException>, Flushable {
+        private final Handler<SailConnectionCall, SailException> base;
+        private final List<String> calls;
+
+        private TeeHandler(final Handler<SailConnectionCall, SailException> base,
+                           final List<String> calls) {
+            this.base = base;
+            this.calls = calls;
+        }
+
+        public void handle(final SailConnectionCall call) throws SailException {
+            calls.add(call.toString());
+            base.handle(call);
+        }
+
+        public void flush() throws IOException {
+            if (base instanceof Flushable) {
+                ((Flushable) base).flush();
+            }
+        }
+    }
+
+    // A sail which counts the statements consumed from each iteration of getStatements
+    private static class CountingSail extends SailWrapper {
+        private final List<int[]> counts = Collections.synchronizedList(new LinkedList<int[]>());
+
+        private CountingSail(final Sail baseSail) {
+            super(baseSail);
+        }
+
+        private List<Integer> getCounts() {
+            List<Integer> l = new LinkedList<Integer>();
+            for (int[] c : counts) {
+                l.add(c[0]);
+            }
+            return l;
+        }
+
+        @Override
+        public SailConnection getConnection() throws SailException {
+            return new SailConnectionWrapper(getBaseSail().getConnection()) {
+                @Override
+                public CloseableIteration<? extends Statement, SailException> getStatements(
+                        final Resource subj, final URI pred, final Value obj, final boolean includeInferred,
+                        final Resource... contexts) throws SailException {
+                    final int[] count = new int[]{0};
+                    counts.add(count);
+                    return new ConvertingIteration<Statement, Statement, SailException>(
+                            super.getStatements(subj, pred, obj, includeInferred, contexts)) {
+                        @Override
+                        protected Statement convert(final Statement st) {
+                            count[0]++;
+                            return st;
+                        }
+                    };
+                }
+            };
+        }
+    }
+
+    // A stream which does not support mark and reset, such as that of a file or socket
+    private static class UnmarkableInputStream extends FilterInputStream {
+        private UnmarkableInputStream(final InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}